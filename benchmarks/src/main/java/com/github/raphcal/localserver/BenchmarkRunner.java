@@ -0,0 +1,38 @@
+package com.github.raphcal.localserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openjdk.jmh.Main;
+
+/**
+ * Runs the benchmarks with the JMH command line. Unless given otherwise, the
+ * results are written in JSON to <code>jmh-result.json</code> so that the
+ * results of two versions can be compared.
+ * <p>
+ * Example: <code>java -jar target/benchmarks.jar -rff localserver-2.4.0.json</code>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public final class BenchmarkRunner {
+
+    private static final String RESULT_FORMAT = "-rf";
+    private static final String RESULT_FILE = "-rff";
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains(RESULT_FORMAT)) {
+            arguments.add(0, RESULT_FORMAT);
+            arguments.add(1, "json");
+        }
+        if (!arguments.contains(RESULT_FILE)) {
+            arguments.add(0, RESULT_FILE);
+            arguments.add(1, "jmh-result.json");
+        }
+        Main.main(arguments.toArray(new String[arguments.size()]));
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.github.raphcal.localserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of requests: request line and headers with
+ * {@link HttpRequestBuilder#feedBytes(ByteBuffer)}, header values with
+ * {@link AbstractHttpMessage#parseHeaderValue(String)} and forms with
+ * {@link HttpRequest#getParameter(String)}.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    private static final String SMALL = "GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "\r\n";
+
+    private static final String BROWSER = "GET /static/css/style.css?v=2 HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+            + "Accept: text/css,*/*;q=0.1\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Accept-Language: fr-FR,fr;q=0.9,en-US;q=0.8,en;q=0.7\r\n"
+            + "Cache-Control: no-cache\r\n"
+            + "Pragma: no-cache\r\n"
+            + "Referer: http://localhost:8080/index.html\r\n"
+            + "Cookie: session=0123456789abcdef; theme=dark; lang=fr\r\n"
+            + "If-None-Match: \"1ebf-1a14b13fb6d\"\r\n"
+            + "If-Modified-Since: Sat, 17 Oct 2026 18:16:00 GMT\r\n"
+            + "\r\n";
+
+    private static final String FORM_BODY = "name=Rapha%C3%ABl&email=ddaeke-github%40yahoo.fr&subject=Benchmark"
+            + "&message=Hello+world%2C+this+is+a+message+sent+with+a+form.&page=12&sort=name&order=asc";
+
+    private static final String POST = "POST /contact HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\n"
+            + "Content-Length: " + FORM_BODY.length() + "\r\n"
+            + "\r\n"
+            + FORM_BODY;
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    private static final String MULTIPART_BODY = "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"name\"\r\n\r\n"
+            + "Raphael\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"subject\"\r\n\r\n"
+            + "Benchmark\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"message\"\r\n\r\n"
+            + "Hello world, this is a message sent with a form.\r\n"
+            + "--" + BOUNDARY + "--\r\n";
+
+    /**
+     * Raw request given to the parser.
+     */
+    @State(Scope.Thread)
+    public static class RawRequest {
+
+        @Param({"SMALL", "BROWSER", "POST"})
+        public String request;
+
+        byte[] bytes;
+
+        @Setup
+        public void setUp() {
+            final String raw = "SMALL".equals(request) ? SMALL : "BROWSER".equals(request) ? BROWSER : POST;
+            bytes = raw.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Header value given to <code>parseHeaderValue</code>.
+     */
+    @State(Scope.Thread)
+    public static class HeaderValue {
+
+        @Param({
+            "text/html; charset=UTF-8",
+            "multipart/form-data; boundary=----WebKitFormBoundary7MA4YWxkTrZu0gW",
+            "attachment; filename=\"report.pdf\"; size=123456"})
+        public String value;
+
+        final HttpRequest message = new HttpRequest();
+    }
+
+    /**
+     * Bodies of the forms.
+     */
+    @State(Scope.Thread)
+    public static class Forms {
+
+        final byte[] urlEncoded = FORM_BODY.getBytes(StandardCharsets.US_ASCII);
+        final byte[] multipart = MULTIPART_BODY.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a request received in a single buffer. Header values are not
+     * decoded.
+     */
+    @Benchmark
+    public HttpRequest feedBytes(RawRequest raw) throws IOException {
+        final HttpRequestBuilder builder = new HttpRequestBuilder();
+        builder.feedBytes(ByteBuffer.wrap(raw.bytes));
+        return builder.getRequest();
+    }
+
+    /**
+     * Reads a request received in a single buffer then reads every header.
+     */
+    @Benchmark
+    public void feedBytesAndReadHeaders(RawRequest raw, Blackhole blackhole) throws IOException {
+        final HttpRequestBuilder builder = new HttpRequestBuilder();
+        builder.feedBytes(ByteBuffer.wrap(raw.bytes));
+        for (final Map.Entry<String, String> header : builder.getRequest().getHeaders()) {
+            blackhole.consume(header.getValue());
+        }
+    }
+
+    /**
+     * Reads a request received in two buffers, cut in the middle of the
+     * headers.
+     */
+    @Benchmark
+    public HttpRequest feedBytesInTwoParts(RawRequest raw) throws IOException {
+        final HttpRequestBuilder builder = new HttpRequestBuilder();
+        final int half = raw.bytes.length / 2;
+        builder.feedBytes(ByteBuffer.wrap(raw.bytes, 0, half));
+        builder.feedBytes(ByteBuffer.wrap(raw.bytes, half, raw.bytes.length - half));
+        return builder.getRequest();
+    }
+
+    @Benchmark
+    public Map<String, String> parseHeaderValue(HeaderValue header) {
+        return header.message.parseHeaderValue(header.value);
+    }
+
+    @Benchmark
+    public String parseUrlEncodedForm(Forms forms) {
+        final HttpRequest form = new HttpRequest();
+        form.setMethod(HttpConstants.METHOD_POST);
+        form.setHeader(HttpConstants.HEADER_CONTENT_TYPE, HttpConstants.CONTENT_TYPE_FORM);
+        form.appendContent(forms.urlEncoded, true);
+        return form.getParameter("message");
+    }
+
+    @Benchmark
+    public String parseMultipartForm(Forms forms) {
+        final HttpRequest form = new HttpRequest();
+        form.setMethod(HttpConstants.METHOD_POST);
+        form.setHeader(HttpConstants.HEADER_CONTENT_TYPE, HttpConstants.CONTENT_TYPE_MULTIPART + "; boundary=" + BOUNDARY);
+        form.appendContent(forms.multipart, true);
+        return form.getParameter("message");
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.github.raphcal.localserver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of responses with {@link AbstractHttpMessage#toByteArray()}
+ * and {@link AbstractHttpMessage#toByteBuffers()}.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseSerializationBenchmark {
+
+    /**
+     * Size of the content of the response, in bytes.
+     */
+    @Param({"0", "1024", "65536"})
+    public int contentLength;
+
+    private HttpResponse response;
+
+    @Setup
+    public void setUp() {
+        final byte[] content = new byte[contentLength];
+        Arrays.fill(content, (byte) 'a');
+
+        response = new HttpResponse();
+        response.configureDefaults();
+        response.setContentType("text/plain");
+        response.setHeader(HttpConstants.HEADER_CONNECTION, HttpConstants.CONNECTION_KEEP_ALIVE);
+        response.setHeader(HttpConstants.HEADER_CACHE_CONTROL, "no-cache");
+        response.setHeader(HttpConstants.HEADER_ETAG, "\"1ebf-1a14b13fb6d\"");
+        response.setHeader(HttpConstants.HEADER_LAST_MODIFIED, "Sat, 17 Oct 2026 18:16:00 GMT");
+        response.appendContent(content, true);
+    }
+
+    /**
+     * Copies the header and the content in a single array.
+     */
+    @Benchmark
+    public byte[] toByteArray() {
+        return response.toByteArray();
+    }
+
+    /**
+     * Writes the header in a buffer and wraps the content without copying
+     * it, as done by the servers before a gathering write.
+     */
+    @Benchmark
+    public ByteBuffer[] toByteBuffers() {
+        return response.toByteBuffers();
+    }
+
+}
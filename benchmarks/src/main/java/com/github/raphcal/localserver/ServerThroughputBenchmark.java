@@ -0,0 +1,265 @@
+package com.github.raphcal.localserver;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests sent over the loopback interface to each implementation, with and
+ * without persistent connections.
+ * <p>
+ * Each benchmark thread is a client sending one request at a time. Use the
+ * <code>-t</code> option of JMH to change the number of clients.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ServerThroughputBenchmark {
+
+    private static final byte[] SMALL_CONTENT = "Hello, World!".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LARGE_CONTENT = new byte[64 * 1024];
+
+    private static final int CONNECT_ATTEMPTS = 50;
+
+    /**
+     * Server shared by every client.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"LOCALSERVER", "SUN_HTTP_SERVER", "VIRTUAL_THREADS"})
+        public ServerImplementationType type;
+
+        @Param({"true", "false"})
+        public boolean keepAlive;
+
+        LocalServer server;
+        InetSocketAddress endpoint;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException, InterruptedException {
+            final ServerConfiguration configuration = new ServerConfiguration();
+            if (!keepAlive) {
+                configuration.setKeepAliveTimeout(0);
+            }
+            server = new LocalServer(findFreePort(), new HttpServlet() {
+                @Override
+                public void doGet(HttpRequest request, HttpResponse response) {
+                    response.setContentType("text/plain");
+                    response.appendContent(request.getTarget().startsWith("/large") ? LARGE_CONTENT : SMALL_CONTENT, true);
+                }
+            }, type, configuration);
+            server.start();
+            endpoint = new InetSocketAddress("localhost", server.getEndpoint().getPort());
+            waitUntilListening(endpoint);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+        }
+    }
+
+    /**
+     * Connection of a client.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private Server server;
+        private Socket socket;
+        private InputStream inputStream;
+        private OutputStream outputStream;
+        private byte[] small;
+        private byte[] large;
+        private final byte[] buffer = new byte[8 * 1024];
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) {
+            this.server = server;
+            final String connection = server.keepAlive ? "keep-alive" : "close";
+            small = ("GET /small HTTP/1.1\r\nHost: localhost\r\nConnection: " + connection + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            large = ("GET /large HTTP/1.1\r\nHost: localhost\r\nConnection: " + connection + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            close();
+        }
+
+        /**
+         * Sends a request and reads its response entirely.
+         *
+         * @param request Request to send.
+         * @return The length of the content received.
+         * @throws IOException If the response can't be read.
+         */
+        long exchange(byte[] request) throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(server.endpoint);
+                inputStream = new BufferedInputStream(socket.getInputStream());
+                outputStream = socket.getOutputStream();
+            }
+            outputStream.write(request);
+            outputStream.flush();
+            final long length = readResponse();
+            if (!server.keepAlive) {
+                close();
+            }
+            return length;
+        }
+
+        private long readResponse() throws IOException {
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean persistent = true;
+            String line = readLine();
+            if (!line.startsWith("HTTP/1.")) {
+                throw new IOException("Unexpected status line: " + line);
+            }
+            line = readLine();
+            while (!line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                final String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                final String value = line.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+                if ("content-length".equals(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("transfer-encoding".equals(name)) {
+                    chunked = value.contains("chunked");
+                } else if ("connection".equals(name)) {
+                    persistent = !value.contains("close");
+                }
+                line = readLine();
+            }
+            final long length;
+            if (chunked) {
+                long total = 0;
+                long size = Long.parseLong(readLine().trim(), 16);
+                while (size > 0) {
+                    skip(size);
+                    total += size;
+                    readLine();
+                    size = Long.parseLong(readLine().trim(), 16);
+                }
+                readLine();
+                length = total;
+            } else if (contentLength >= 0) {
+                skip(contentLength);
+                length = contentLength;
+            } else {
+                long total = 0;
+                int count = inputStream.read(buffer);
+                while (count != -1) {
+                    total += count;
+                    count = inputStream.read(buffer);
+                }
+                length = total;
+                persistent = false;
+            }
+            if (!persistent) {
+                close();
+            }
+            return length;
+        }
+
+        private void skip(long length) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                final int count = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    throw new EOFException();
+                }
+                remaining -= count;
+            }
+        }
+
+        private String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int b = inputStream.read();
+            while (b != '\n') {
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                b = inputStream.read();
+            }
+            return line.toString();
+        }
+
+        private void close() throws IOException {
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * Small response, dominated by the cost of parsing and I/O.
+     */
+    @Benchmark
+    public long smallResponse(Client client) throws IOException {
+        return client.exchange(client.small);
+    }
+
+    /**
+     * Response of 64 KiB.
+     */
+    @Benchmark
+    public long largeResponse(Client client) throws IOException {
+        return client.exchange(client.large);
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitUntilListening(InetSocketAddress endpoint) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(endpoint);
+                return;
+            } catch (ConnectException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+}
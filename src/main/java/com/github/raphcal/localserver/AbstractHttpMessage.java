@@ -1,11 +1,16 @@
 package com.github.raphcal.localserver;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.slf4j.Logger;
@@ -22,12 +27,20 @@ abstract class AbstractHttpMessage {
 
     protected static final String HEADER_MAIN_VALUE = "%%value";
 
+    private static final int HEADER_BUFFER_SIZE = 256;
+
+    /**
+     * Dernier en-tête "Content-Type" analysé, partagé par tous les messages :
+     * les requêtes successives envoient le plus souvent le même.
+     */
+    private static volatile ContentType lastContentType;
+
     private String version;
-    private final HashMap<String, String> headers = new HashMap<String, String>();
+    private final HeaderTable headers = new HeaderTable();
     private Charset charset;
     private String contentType;
     private String formBoundary;
-    private final ByteArrayOutputStream contentBuilder = new ByteArrayOutputStream();
+    private final ContentBuilder contentBuilder = new ContentBuilder();
 
     /**
      * Défini la version du protocole HTTP à utiliser.
@@ -48,26 +61,60 @@ abstract class AbstractHttpMessage {
     }
 
     /**
-     * Défini ou modifie l'en-tête donné.
+     * Défini ou modifie l'en-tête donné. Les autres valeurs de l'en-tête sont
+     * supprimées.
      *
      * @param header En-tête HTTP.
      * @param value Valeur a attribuer.
      */
     public void setHeader(String header, String value) {
-        headers.put(header, value);
+        headers.set(header, value);
 
         if (value != null && HttpConstants.HEADER_CONTENT_TYPE.equalsIgnoreCase(header)) {
+            applyContentType(value);
+        }
+    }
 
-            final Map<String, String> contentTypeMap = parseHeaderValue(value);
-            contentType = contentTypeMap.get(HEADER_MAIN_VALUE);
+    /**
+     * Ajoute une valeur à l'en-tête donné, après celles déjà définies.
+     *
+     * @param header En-tête HTTP.
+     * @param value Valeur à ajouter.
+     */
+    public void addHeader(String header, String value) {
+        headers.add(header, value);
 
-            final String charsetName = contentTypeMap.get("charset");
-            if (charsetName != null) {
-                charset = Charset.forName(charsetName);
-            }
+        if (value != null && HttpConstants.HEADER_CONTENT_TYPE.equalsIgnoreCase(header)) {
+            applyContentType(value);
+        }
+    }
+
+    /**
+     * Ajoute une valeur à l'en-tête donné à partir des octets reçus. La valeur
+     * ne sera décodée que lors de sa première lecture.
+     *
+     * @param header En-tête HTTP.
+     * @param hash Hash de l'en-tête, calculé par
+     * {@link HeaderTable#hash(java.lang.String)}.
+     * @param bytes Octets contenant la valeur.
+     * @param start Index du premier octet de la valeur.
+     * @param end Index suivant le dernier octet de la valeur.
+     */
+    void addRawHeader(String header, int hash, byte[] bytes, int start, int end) {
+        headers.addRaw(header, hash, bytes, start, end);
+    }
 
-            formBoundary = contentTypeMap.get("boundary");
+    private void applyContentType(String value) {
+        ContentType parsed = lastContentType;
+        if (parsed == null || !parsed.value.equals(value)) {
+            parsed = new ContentType(value);
+            lastContentType = parsed;
+        }
+        contentType = parsed.type;
+        if (parsed.charset != null) {
+            charset = parsed.charset;
         }
+        formBoundary = parsed.boundary;
     }
 
     protected Map<String, String> parseHeaderValue(String value) {
@@ -126,6 +173,17 @@ abstract class AbstractHttpMessage {
         return headers.get(header);
     }
 
+    /**
+     * Récupère toutes les valeurs de l'en-tête donné, dans l'ordre où elles
+     * ont été définies.
+     *
+     * @param header Nom de l'en-tête à récupérer.
+     * @return Les valeurs de l'en-tête, une liste vide s'il n'est pas défini.
+     */
+    public List<String> getHeaderValues(String header) {
+        return headers.getAll(header);
+    }
+
     /**
      * Récupère l'ensemble des en-têtes définis.
      *
@@ -196,10 +254,23 @@ abstract class AbstractHttpMessage {
      * Content-Type et Content-Length.
      */
     public void appendContent(byte[] bytes, boolean refresh) {
-        contentBuilder.write(bytes, 0, bytes.length);
+        appendContent(bytes, 0, bytes.length, refresh);
+    }
+
+    /**
+     * Ajoute les octets donnés au contenu.
+     *
+     * @param bytes Tableau contenant les octets à ajouter.
+     * @param offset Index du premier octet à ajouter.
+     * @param length Nombre d'octets à ajouter.
+     * @param refresh <code>true</code> pour mettre à jour les en-têtes
+     * Content-Type et Content-Length.
+     */
+    public void appendContent(byte[] bytes, int offset, int length, boolean refresh) {
+        contentBuilder.write(bytes, offset, length);
 
         if (refresh) {
-            headers.put(HttpConstants.HEADER_CONTENT_LENGTH, Integer.toString(contentBuilder.size()));
+            headers.setContentLength(contentBuilder.size());
             refreshContentType();
         }
     }
@@ -210,14 +281,8 @@ abstract class AbstractHttpMessage {
      * @return La valeur en <code>int</code> de l'en-tête "Content-Length".
      */
     public int getContentLength() {
-        int length = 0;
-
-        final String value = headers.get(HttpConstants.HEADER_CONTENT_LENGTH);
-        if (value != null) {
-            length = Integer.parseInt(value);
-        }
-
-        return length;
+        final long length = headers.getContentLength();
+        return length > 0 ? (int) Math.min(length, Integer.MAX_VALUE) : 0;
     }
 
     /**
@@ -250,6 +315,25 @@ abstract class AbstractHttpMessage {
         return contentBuilder;
     }
 
+    /**
+     * Récupère un flux lisant le contenu sans le copier.
+     *
+     * @return Un flux lisant le contenu.
+     */
+    InputStream getContentInputStream() {
+        return contentBuilder.toInputStream();
+    }
+
+    /**
+     * Récupère le contenu sous forme d'une chaîne contenant un caractère par
+     * octet, sans décodage.
+     *
+     * @return Le contenu en ISO-8859-1.
+     */
+    String getRawContent() {
+        return contentBuilder.asString(StandardCharsets.ISO_8859_1);
+    }
+
     /**
      * Défini le type MIME du contenu.
      *
@@ -288,6 +372,15 @@ abstract class AbstractHttpMessage {
         return charset != null ? charset : Charset.defaultCharset();
     }
 
+    /**
+     * Récupère l'encodage défini pour le contenu, sans valeur par défaut.
+     *
+     * @return L'encodage ou <code>null</code> s'il n'est pas défini.
+     */
+    Charset getDeclaredCharset() {
+        return charset;
+    }
+
     /**
      * Récupère la chaîne utilisée pour séparer les valeurs du formulaire.
      *
@@ -304,11 +397,21 @@ abstract class AbstractHttpMessage {
             type += "; charset=" + charset.displayName();
         }
 
-        headers.put(HttpConstants.HEADER_CONTENT_TYPE, type);
+        headers.set(HttpConstants.HEADER_CONTENT_TYPE, type);
     }
 
     protected abstract String getFirstLine();
 
+    /**
+     * Récupère la première ligne du message déjà encodée, suivie de CRLF.
+     *
+     * @return La ligne encodée ou <code>null</code> pour encoder
+     * {@link #getFirstLine()}.
+     */
+    protected byte[] getEncodedFirstLine() {
+        return null;
+    }
+
     /**
      * Écrit l'en-tête HTTP sur le flux donné.
      *
@@ -316,65 +419,177 @@ abstract class AbstractHttpMessage {
      * @throws IOException En cas d'erreur pendant l'écriture.
      */
     public void writeHeader(final OutputStream outputStream) throws IOException {
-        writeStringInAscii(outputStream, getFirstLine());
-        outputStream.write((int) '\r');
-        outputStream.write((int) '\n');
-
-        for (final Map.Entry<String, String> header : getHeaders()) {
-            writeStringInAscii(outputStream, header.getKey());
-            outputStream.write((int) ':');
-            outputStream.write((int) ' ');
-            writeStringInAscii(outputStream, header.getValue());
-            outputStream.write((int) '\r');
-            outputStream.write((int) '\n');
+        final byte[] firstLine = getEncodedFirstLine();
+        if (firstLine != null) {
+            outputStream.write(firstLine);
+        } else {
+            writeStringInAscii(outputStream, getFirstLine());
+            outputStream.write(HeaderBytes.CRLF);
         }
 
-        outputStream.write((int) '\r');
-        outputStream.write((int) '\n');
+        for (int index = 0; index < headers.size(); index++) {
+            final String value = headers.getValue(index);
+            if (value == null) {
+                continue;
+            }
+            final String name = headers.getName(index);
+            final byte[] nameBytes = HeaderBytes.name(name);
+            if (nameBytes != null) {
+                outputStream.write(nameBytes);
+            } else {
+                writeStringInAscii(outputStream, name);
+                outputStream.write((int) ':');
+                outputStream.write((int) ' ');
+            }
+            final byte[] valueBytes = HeaderBytes.value(value);
+            if (valueBytes != null) {
+                outputStream.write(valueBytes);
+            } else {
+                writeStringInAscii(outputStream, value);
+            }
+            outputStream.write(HeaderBytes.CRLF);
+        }
+
+        outputStream.write(HeaderBytes.CRLF);
+    }
+
+    /**
+     * Récupère le message sous forme de deux buffers : l'en-tête puis le
+     * contenu. Ils peuvent être envoyés en une seule fois avec
+     * {@link java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[])}.
+     * <p>
+     * Le contenu n'est pas copié : les buffers ne sont valides que tant que
+     * le message n'est pas modifié.
+     *
+     * @return L'en-tête et le contenu du message.
+     */
+    public ByteBuffer[] toByteBuffers() {
+        final ContentBuilder header = new ContentBuilder(HEADER_BUFFER_SIZE);
+        try {
+            writeHeader(header);
+        } catch (IOException ex) {
+            // Pas d'erreur d'écriture en mémoire.
+            throw new IllegalStateException(ex);
+        }
+        return new ByteBuffer[]{header.toByteBuffer(), contentBuilder.toByteBuffer()};
     }
 
     /**
      * Récupère la requête complète sous forme d'un tableau d'octets.
      *
      * @return La requête complète sous forme d'un tableau d'octets.
+     * @see #toByteBuffers()
      */
     public byte[] toByteArray() {
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        writeStringInAscii(outputStream, getFirstLine());
-        outputStream.write((int) '\r');
-        outputStream.write((int) '\n');
+        final ByteBuffer[] buffers = toByteBuffers();
+        final byte[] bytes = new byte[buffers[0].remaining() + buffers[1].remaining()];
+        final int headerLength = buffers[0].remaining();
+        buffers[0].get(bytes, 0, headerLength);
+        buffers[1].get(bytes, headerLength, bytes.length - headerLength);
+        return bytes;
+    }
 
-        for (final Map.Entry<String, String> header : getHeaders()) {
-            if (header.getValue() == null) {
-                continue;
-            }
-            writeStringInAscii(outputStream, header.getKey());
-            outputStream.write((int) ':');
-            outputStream.write((int) ' ');
-            writeStringInAscii(outputStream, header.getValue());
-            outputStream.write((int) '\r');
-            outputStream.write((int) '\n');
+    private void writeStringInAscii(OutputStream outputStream, String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.US_ASCII);
+        outputStream.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Flux en mémoire donnant accès à ses octets sans copie.
+     */
+    static final class ContentBuilder extends ByteArrayOutputStream {
+
+        ContentBuilder() {
+        }
+
+        ContentBuilder(int size) {
+            super(size);
         }
 
-        outputStream.write((int) '\r');
-        outputStream.write((int) '\n');
+        /**
+         * Récupère les octets écrits sous forme d'un buffer partageant le
+         * tableau de ce flux.
+         *
+         * @return Un buffer contenant les octets écrits.
+         */
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
 
-        final byte[] content = contentBuilder.toByteArray();
-        outputStream.write(content, 0, content.length);
+        /**
+         * Récupère un flux lisant les octets écrits sans les copier.
+         *
+         * @return Un flux lisant les octets écrits.
+         */
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
 
-        return outputStream.toByteArray();
+        /**
+         * Récupère les octets écrits sous forme de chaîne.
+         *
+         * @param charset Encodage des octets.
+         * @return Les octets décodés.
+         */
+        String asString(Charset charset) {
+            return new String(buf, 0, count, charset);
+        }
     }
 
-    private void writeStringInAscii(OutputStream outputStream, String string) {
-        try {
-            final byte[] bytes = string.getBytes("ASCII");
+    /**
+     * Valeur analysée d'un en-tête "Content-Type".
+     */
+    private static final class ContentType {
+
+        private final String value;
+        private final String type;
+        private final Charset charset;
+        private final String boundary;
+
+        ContentType(String value) {
+            this.value = value;
+
+            int end = value.indexOf(';');
+            this.type = (end >= 0 ? value.substring(0, end) : value).trim();
+
+            String charsetName = null;
+            String boundary = null;
+            while (end >= 0) {
+                final int start = end + 1;
+                end = value.indexOf(';', start);
+                final int stop = end >= 0 ? end : value.length();
+                final int equals = value.indexOf('=', start);
+                if (equals < 0 || equals >= stop) {
+                    continue;
+                }
+                final String name = value.substring(start, equals).trim();
+                if ("charset".equalsIgnoreCase(name)) {
+                    charsetName = unquote(value.substring(equals + 1, stop).trim());
+                } else if ("boundary".equalsIgnoreCase(name)) {
+                    boundary = unquote(value.substring(equals + 1, stop).trim());
+                }
+            }
+            this.charset = charsetName != null ? forName(charsetName) : null;
+            this.boundary = boundary;
+        }
 
-            outputStream.write(bytes, 0, bytes.length);
+        /**
+         * Returns the given charset, or <code>null</code> if its name is
+         * invalid or unsupported: the header comes from the client.
+         */
+        private static Charset forName(String charsetName) {
+            try {
+                return Charset.forName(charsetName);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
 
-        } catch (UnsupportedEncodingException ex) {
-            // Ignoré.
-        } catch (IOException ex) {
-            // Ignoré.
+        private static String unquote(String value) {
+            if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')) {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
         }
     }
 }
@@ -1,29 +1,463 @@
 package com.github.raphcal.localserver;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 /**
  * Objets attachés à un client du serveur.
+ * <p>
+ * Les attachements des clients fermés sont réutilisés pour les clients
+ * suivants du même réacteur.
  *
  * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
  */
 class Attachment {
 
-    private static final int BUFFER_SIZE = 1024;
+    /**
+     * Valeur de {@link #requestStart} tant qu'aucun octet de la requête
+     * suivante n'a été reçu.
+     */
+    private static final long NOT_STARTED = Long.MIN_VALUE;
 
-    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
-    private final HttpRequestBuilder httpRequestBuilder = new HttpRequestBuilder();
-    private final HttpResponse response = new HttpResponse();
+    /**
+     * Octets reçus et pas encore lus ou <code>null</code> si la connexion n'a
+     * rien à lire.
+     */
+    private ByteBuffer buffer;
+    private final boolean streamBody;
+    private final HttpRequestBuilder httpRequestBuilder;
 
+    /**
+     * Réponse à la requête en cours, créée à la première utilisation.
+     */
+    private HttpResponse response;
+
+    /**
+     * Contenu de la requête en cours de réception ou <code>null</code>.
+     */
+    private RequestBodyPipe bodyPipe;
+
+    /**
+     * Contenu de la réponse en cours d'envoi lu depuis une source ou
+     * <code>null</code>.
+     */
+    private ResponseBody responseBody;
+    private boolean chunked;
+
+    private boolean keepAlive;
+    private boolean processing;
+    private boolean closing;
+
+    /**
+     * Octets en attente d'envoi.
+     */
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer[] outputArray = new ByteBuffer[2];
+    private long pendingBytes;
+    private long lastActivity = System.nanoTime();
+
+    /**
+     * Instant (en nanosecondes) de réception du premier octet de la requête
+     * en cours.
+     */
+    private long requestStart = NOT_STARTED;
+
+    /**
+     * Instants de début des requêtes dont la réponse est en cours d'envoi.
+     * Seuls les {@link #sentRequestCount} premiers éléments sont utilisés.
+     */
+    private long[] sentRequestStarts = new long[1];
+    private int sentRequestCount;
+
+    /**
+     * Instant d'acceptation de la connexion, tant que la première requête
+     * n'a pas commencé, ou {@link ExchangeTimings#NOT_RECORDED}.
+     */
+    private long acceptTime;
+
+    /**
+     * <code>true</code> si les phases des requêtes sont chronométrées.
+     */
+    private final boolean timed;
+
+    /**
+     * Phases de la requête en cours ou <code>null</code> si elle n'a pas
+     * commencé ou si les requêtes ne sont pas chronométrées.
+     */
+    private ExchangeTimings timings;
+
+    /**
+     * Phases des requêtes dont la réponse est en cours d'envoi.
+     */
+    private final ArrayDeque<ExchangeTimings> sentTimings;
+
+    /**
+     * Créé les objets attachés aux clients d'un réacteur.
+     *
+     * @param streamBody <code>true</code> si le contenu des requêtes est lu
+     * par le servlet.
+     * @param timed <code>true</code> si les phases des requêtes sont
+     * chronométrées.
+     */
+    public Attachment(boolean streamBody, boolean timed) {
+        this.streamBody = streamBody;
+        this.httpRequestBuilder = new HttpRequestBuilder(streamBody);
+        this.timed = timed;
+        this.acceptTime = ExchangeTimings.NOT_RECORDED;
+        this.sentTimings = timed ? new ArrayDeque<ExchangeTimings>() : null;
+    }
+
+    /**
+     * Prépare cet attachement pour un nouveau client.
+     *
+     * @param acceptTime Instant d'acceptation de la connexion ou
+     * {@link ExchangeTimings#NOT_RECORDED} si les phases des requêtes ne sont
+     * pas chronométrées.
+     */
+    public void open(long acceptTime) {
+        this.acceptTime = acceptTime;
+        this.lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Récupère les octets reçus et pas encore lus.
+     *
+     * @return Le buffer, en mode écriture, ou <code>null</code> si aucun
+     * octet n'attend d'être lu.
+     */
     public ByteBuffer getBuffer() {
         return buffer;
     }
 
+    /**
+     * Récupère le buffer de lecture, en l'empruntant au pool si la connexion
+     * n'en a pas.
+     *
+     * @param pool Buffers du réacteur.
+     * @return Le buffer, en mode écriture.
+     */
+    public ByteBuffer acquireBuffer(BufferPool pool) {
+        if (buffer == null) {
+            buffer = pool.acquire();
+        }
+        return buffer;
+    }
+
+    /**
+     * Rend le buffer de lecture au pool s'il ne contient plus aucun octet.
+     *
+     * @param pool Buffers du réacteur.
+     */
+    public void releaseBuffer(BufferPool pool) {
+        if (buffer != null && buffer.position() == 0) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Indique si le contenu des requêtes est lu par le servlet.
+     *
+     * @return <code>true</code> si le contenu est lu par le servlet.
+     */
+    public boolean isStreamBody() {
+        return streamBody;
+    }
+
+    /**
+     * Récupère les phases de la requête en cours.
+     *
+     * @return Les phases ou <code>null</code> si la requête n'est pas
+     * chronométrée.
+     */
+    public ExchangeTimings getTimings() {
+        return timings;
+    }
+
     public HttpRequestBuilder getRequestBuilder() {
         return httpRequestBuilder;
     }
 
     public HttpResponse getResponse() {
+        if (response == null) {
+            response = new HttpResponse();
+        }
         return response;
     }
+
+    public RequestBodyPipe getBodyPipe() {
+        return bodyPipe;
+    }
+
+    public void setBodyPipe(RequestBodyPipe bodyPipe) {
+        this.bodyPipe = bodyPipe;
+    }
+
+    public ResponseBody getResponseBody() {
+        return responseBody;
+    }
+
+    /**
+     * Défini le contenu de la réponse à lire depuis une source au fur et à
+     * mesure de l'envoi.
+     *
+     * @param responseBody Contenu ou <code>null</code> une fois envoyé.
+     * @param chunked <code>true</code> si le contenu est envoyé en morceaux.
+     */
+    public void setResponseBody(ResponseBody responseBody, boolean chunked) {
+        this.responseBody = responseBody;
+        this.chunked = chunked;
+    }
+
+    /**
+     * Indique si le contenu de la réponse en cours d'envoi est envoyé en
+     * morceaux ("Transfer-Encoding: chunked").
+     *
+     * @return <code>true</code> si le contenu est envoyé en morceaux.
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * Indique si la connexion doit rester ouverte après l'envoi de la réponse.
+     *
+     * @return <code>true</code> si la connexion doit rester ouverte.
+     */
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Indique si la requête est en cours de traitement par un thread de
+     * travail.
+     *
+     * @return <code>true</code> si la requête est en cours de traitement.
+     */
+    public boolean isProcessing() {
+        return processing;
+    }
+
+    public void setProcessing(boolean processing) {
+        this.processing = processing;
+    }
+
+    /**
+     * Indique si la connexion doit être fermée une fois les octets en attente
+     * envoyés.
+     *
+     * @return <code>true</code> si la connexion doit être fermée.
+     */
+    public boolean isClosing() {
+        return closing;
+    }
+
+    public void setClosing(boolean closing) {
+        this.closing = closing;
+    }
+
+    /**
+     * Ajoute les buffers donnés aux octets en attente d'envoi.
+     *
+     * @param buffers Buffers à envoyer.
+     */
+    public void addOutput(ByteBuffer[] buffers) {
+        for (final ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                output.add(buffer);
+                pendingBytes += buffer.remaining();
+            }
+        }
+    }
+
+    /**
+     * Récupère les buffers en attente d'envoi. Seuls les
+     * {@link #getOutputCount()} premiers éléments du tableau sont à envoyer.
+     *
+     * @return Les buffers à envoyer.
+     */
+    public ByteBuffer[] getOutput() {
+        if (outputArray.length < output.size()) {
+            outputArray = new ByteBuffer[output.size()];
+        }
+        return output.toArray(outputArray);
+    }
+
+    public int getOutputCount() {
+        return output.size();
+    }
+
+    /**
+     * Retire les octets envoyés des octets en attente.
+     *
+     * @param count Nombre d'octets envoyés.
+     */
+    public void outputWritten(long count) {
+        pendingBytes -= count;
+        while (!output.isEmpty() && !output.peekFirst().hasRemaining()) {
+            output.pollFirst();
+        }
+    }
+
+    public boolean hasPendingOutput() {
+        return !output.isEmpty();
+    }
+
+    /**
+     * Récupère le nombre d'octets en attente d'envoi.
+     *
+     * @return Le nombre d'octets en attente d'envoi.
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Récupère l'instant (en nanosecondes) de la dernière lecture ou écriture
+     * sur la connexion.
+     *
+     * @return L'instant de la dernière activité.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Met à jour l'instant de la dernière activité.
+     */
+    public void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Note l'instant de réception du premier octet de la requête en cours,
+     * s'il n'est pas encore connu.
+     *
+     * @param now Instant actuel, en nanosecondes.
+     */
+    public void requestStarted(long now) {
+        if (requestStart == NOT_STARTED) {
+            requestStart = now;
+            if (timed) {
+                timings = new ExchangeTimings();
+                timings.setAccepted(acceptTime);
+                timings.setFirstByte(now);
+                acceptTime = ExchangeTimings.NOT_RECORDED;
+            }
+        }
+    }
+
+    /**
+     * Ajoute la requête en cours aux requêtes dont la réponse est en cours
+     * d'envoi.
+     */
+    public void requestAnswered() {
+        if (requestStart == NOT_STARTED) {
+            return;
+        }
+        if (timings != null) {
+            timings.setExchange(httpRequestBuilder.getRequest(), getResponse());
+            sentTimings.add(timings);
+            timings = null;
+        }
+        if (sentRequestCount == sentRequestStarts.length) {
+            sentRequestStarts = Arrays.copyOf(sentRequestStarts, sentRequestCount * 2);
+        }
+        sentRequestStarts[sentRequestCount++] = requestStart;
+    }
+
+    /**
+     * Note l'instant d'écriture du premier octet des réponses en cours
+     * d'envoi, s'il n'est pas encore connu.
+     *
+     * @param now Instant actuel, en nanosecondes.
+     */
+    public void responseWritten(long now) {
+        for (final ExchangeTimings sent : sentTimings) {
+            if (sent.getFirstByteWritten() == ExchangeTimings.NOT_RECORDED) {
+                sent.setFirstByteWritten(now);
+            }
+        }
+    }
+
+    /**
+     * Enregistre la latence des requêtes dont la réponse a été envoyée
+     * entièrement et transmet leurs phases au listener.
+     *
+     * @param metrics Compteurs du serveur.
+     * @param listener Listener des phases ou <code>null</code>.
+     * @param now Instant actuel, en nanosecondes.
+     */
+    public void recordSentRequests(ServerMetrics metrics, ExchangeListener listener, long now) {
+        for (int index = 0; index < sentRequestCount; index++) {
+            metrics.requestLatency(now - sentRequestStarts[index]);
+        }
+        sentRequestCount = 0;
+        if (sentTimings == null) {
+            return;
+        }
+        ExchangeTimings sent = sentTimings.poll();
+        while (sent != null) {
+            sent.setLastByteWritten(now);
+            if (listener != null) {
+                ExchangeSupport.exchangeCompleted(listener, sent);
+            }
+            sent = sentTimings.poll();
+        }
+    }
+
+    public boolean hasSentRequests() {
+        return sentRequestCount > 0;
+    }
+
+    /**
+     * Prépare la lecture de la requête suivante sur la même connexion. Les
+     * données déjà présentes dans le buffer sont conservées.
+     */
+    public void reset() {
+        httpRequestBuilder.reset();
+        response = null;
+        keepAlive = false;
+        // La requête suivante a peut-être déjà été reçue (pipelining).
+        requestStart = NOT_STARTED;
+        if (buffer != null && buffer.position() > 0) {
+            requestStarted(System.nanoTime());
+        }
+    }
+
+    /**
+     * Libère les objets du client fermé pour réutiliser cet attachement.
+     * Le buffer de lecture est rendu au pool, même s'il contient des octets.
+     *
+     * @param pool Buffers du réacteur.
+     */
+    public void clear(BufferPool pool) {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        httpRequestBuilder.reset();
+        response = null;
+        bodyPipe = null;
+        responseBody = null;
+        chunked = false;
+        keepAlive = false;
+        processing = false;
+        closing = false;
+        output.clear();
+        Arrays.fill(outputArray, null);
+        pendingBytes = 0;
+        requestStart = NOT_STARTED;
+        sentRequestCount = 0;
+        acceptTime = ExchangeTimings.NOT_RECORDED;
+        timings = null;
+        if (sentTimings != null) {
+            sentTimings.clear();
+        }
+    }
 }
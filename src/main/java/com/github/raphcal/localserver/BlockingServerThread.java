@@ -0,0 +1,435 @@
+package com.github.raphcal.localserver;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server handling each connection on its own thread with blocking reads and
+ * writes.
+ * <p>
+ * Connections are run by virtual threads when the JVM supports them (Java 21
+ * and later). Otherwise, they are run by a bounded pool of platform threads
+ * whose size is given by {@link ServerConfiguration#getWorkerThreads()}.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class BlockingServerThread implements ServerThread {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockingServerThread.class);
+
+    /**
+     * Size of the pool of platform threads used when virtual threads are not
+     * available and no worker thread count is configured.
+     */
+    private static final int DEFAULT_PLATFORM_THREADS = 256;
+
+    private final HttpRequestHandler servlet;
+    private final ServerConfiguration configuration;
+    private final ServerMetrics metrics;
+
+    /**
+     * Listener receiving the timings of each request or <code>null</code> if
+     * requests are not timed.
+     */
+    private final ExchangeListener listener;
+    private int port;
+
+    private ServerSocket serverSocket;
+    private ExecutorService connectionExecutor;
+    private Thread acceptorThread;
+    private long startTime;
+
+    private final Set<Socket> openSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicBoolean stopping = new AtomicBoolean(false);
+
+    public BlockingServerThread(int port, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics) {
+        this.port = port;
+        this.servlet = servlet;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.listener = configuration.getExchangeListener();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void start() {
+        if (acceptorThread != null && acceptorThread.isAlive()) {
+            LOGGER.warn("Server is already started and listening on " + getEndpoint());
+            return;
+        }
+        LOGGER.info("Starting server thread...");
+        startTime = new Date().getTime();
+        try {
+            serverSocket = bind();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to start server thread", e);
+        }
+        connectionExecutor = createConnectionExecutor();
+        acceptorThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                acceptClients();
+            }
+
+        }, "localserver-" + port + "-acceptor");
+        acceptorThread.start();
+        LOGGER.info("Server listening on " + getEndpoint());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop() {
+        if (serverSocket == null) {
+            LOGGER.warn("Server is not started.");
+            return;
+        }
+        LOGGER.info("Stopping server " + getEndpoint() + "...");
+        closeQuietly(serverSocket);
+        connectionExecutor.shutdownNow();
+        for (final Socket socket : openSockets) {
+            closeQuietly(socket);
+        }
+        try {
+            acceptorThread.join();
+        } catch (InterruptedException e) {
+            LOGGER.debug("Interrupted while waiting for the acceptor thread", e);
+        }
+        LOGGER.info("Server stopped (total execution time : "
+                + TimeUnit.SECONDS.convert(new Date().getTime() - startTime, TimeUnit.MILLISECONDS)
+                + "s).");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop(long delay, TimeUnit unit) {
+        if (stopping.compareAndSet(false, true)) {
+            LOGGER.info("Server will stop in " + delay + ' ' + unit.name().toLowerCase() + '.');
+
+            final ScheduledExecutorService executorService = Executors.newScheduledThreadPool(1);
+            executorService.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    stop();
+                    executorService.shutdown();
+                }
+
+            }, delay, unit);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InetSocketAddress getEndpoint() {
+        return serverSocket != null && serverSocket.isBound()
+                ? new InetSocketAddress(serverSocket.getLocalPort())
+                : null;
+    }
+
+    private ServerSocket bind() throws IOException {
+        while (true) {
+            final ServerSocket socket = new ServerSocket();
+            final InetSocketAddress address = new InetSocketAddress(port);
+            try {
+                socket.bind(address);
+                return socket;
+            } catch (IOException e) {
+                LOGGER.debug("Unable to bind to address " + address, e);
+                socket.close();
+                port++;
+            }
+        }
+    }
+
+    /**
+     * Creates an executor running each task on a new virtual thread. If
+     * virtual threads are not available, a pool of platform threads is
+     * created instead.
+     *
+     * @return An executor for the connections.
+     */
+    private ExecutorService createConnectionExecutor() {
+        try {
+            final ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            LOGGER.debug("Using virtual threads");
+            return executor;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            LOGGER.debug("Virtual threads are not available, using platform threads", e);
+        }
+
+        final int threads = configuration.getWorkerThreads() > 0
+                ? configuration.getWorkerThreads()
+                : DEFAULT_PLATFORM_THREADS;
+        final String name = "localserver-" + port + "-connection-";
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, configuration.getWorkerQueueSize())),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, name + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                });
+    }
+
+    private void acceptClients() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.warn("Unable to accept a client on " + getEndpoint(), e);
+                }
+                continue;
+            }
+            final long acceptTime = listener != null ? System.nanoTime() : ExchangeTimings.NOT_RECORDED;
+            metrics.connectionAccepted();
+            openSockets.add(socket);
+            try {
+                connectionExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        handleConnection(socket, acceptTime);
+                    }
+
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.warn("Too many connections, rejecting client " + socket.getRemoteSocketAddress());
+                rejectConnection(socket);
+            }
+        }
+    }
+
+    /**
+     * Reads the requests of the given client and writes their responses until
+     * the connection is closed.
+     *
+     * @param socket Client.
+     * @param acceptTime Instant the client was accepted or
+     * {@link ExchangeTimings#NOT_RECORDED} if requests are not timed.
+     */
+    private void handleConnection(final Socket socket, long acceptTime) {
+        try {
+            socket.setTcpNoDelay(true);
+            if (configuration.isKeepAliveEnabled()) {
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, configuration.getKeepAliveTimeout()));
+            }
+            final InputStream inputStream = new CountingInputStream(socket.getInputStream(), metrics);
+            final CountingOutputStream countingStream = new CountingOutputStream(socket.getOutputStream(), metrics);
+            final OutputStream outputStream = new BufferedOutputStream(countingStream);
+            final ByteBuffer buffer = ByteBuffer.allocate(configuration.getReadBufferSize());
+            final HttpRequestBuilder requestBuilder = new HttpRequestBuilder(configuration.isStreamRequestBodies());
+
+            boolean keepAlive = true;
+            while (keepAlive) {
+                if (!awaitRequest(inputStream, buffer)) {
+                    break;
+                }
+                final long requestStart = System.nanoTime();
+                ExchangeTimings timings = null;
+                if (listener != null) {
+                    timings = new ExchangeTimings();
+                    timings.setAccepted(acceptTime);
+                    timings.setFirstByte(requestStart);
+                    acceptTime = ExchangeTimings.NOT_RECORDED;
+                }
+                requestBuilder.reset();
+                try {
+                    if (!readRequest(inputStream, buffer, requestBuilder, timings)) {
+                        break;
+                    }
+                } catch (MalformedRequestException e) {
+                    LOGGER.debug("Rejecting a malformed request", e);
+                    rejectMalformedRequest(outputStream, e);
+                    break;
+                }
+
+                final HttpRequest request = requestBuilder.getRequest();
+                RequestBodyInputStream body = null;
+                if (requestBuilder.getContentLength() > 0 && configuration.isStreamRequestBodies()) {
+                    body = new RequestBodyInputStream(buffer, inputStream, requestBuilder.getContentLength());
+                    request.setBodyStream(body);
+                } else if (timings != null) {
+                    timings.setBodyComplete(System.nanoTime());
+                }
+                final HttpResponse response = new HttpResponse();
+                keepAlive = ExchangeSupport.configureResponse(request, response, configuration);
+                ExchangeSupport.handleRequest(servlet, request, response, configuration, metrics, timings);
+                keepAlive = ExchangeSupport.completeResponse(request, response, keepAlive);
+                metrics.requestCompleted(response.getStatusCode());
+                if (body != null && keepAlive) {
+                    // The next request follows the body.
+                    body.close();
+                    if (timings != null) {
+                        timings.setBodyComplete(System.nanoTime());
+                    }
+                }
+
+                countingStream.setTimings(timings);
+                final ByteBuffer header = response.toByteBuffers()[0];
+                outputStream.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+                ExchangeSupport.writeBody(response, outputStream);
+                outputStream.flush();
+                final long requestEnd = System.nanoTime();
+                metrics.requestLatency(requestEnd - requestStart);
+                if (timings != null) {
+                    timings.setLastByteWritten(requestEnd);
+                    timings.setExchange(request, response);
+                    ExchangeSupport.exchangeCompleted(listener, timings);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            LOGGER.debug("Closing idle connection", e);
+        } catch (SocketException e) {
+            LOGGER.debug("Connection closed", e);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Closing connection after an error", e);
+        } finally {
+            openSockets.remove(socket);
+            closeQuietly(socket);
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Waits for the first byte of the next request of a client, unless bytes
+     * are already waiting in the buffer (pipelined requests).
+     *
+     * @param inputStream Stream of the client.
+     * @param buffer Buffer kept between requests, in write mode.
+     * @return <code>false</code> if the client closed the connection.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static boolean awaitRequest(final InputStream inputStream, final ByteBuffer buffer) throws IOException {
+        if (buffer.position() > 0) {
+            return true;
+        }
+        final int count = inputStream.read(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+        if (count == -1) {
+            return false;
+        }
+        ((Buffer) buffer).position(count);
+        return true;
+    }
+
+    /**
+     * Reads the next request of a client. Bytes already waiting in the buffer
+     * (pipelined requests) are parsed before reading from the stream.
+     *
+     * @param inputStream Stream of the client.
+     * @param buffer Buffer kept between requests, in write mode.
+     * @param requestBuilder Builder kept between requests, reset.
+     * @param timings Timings of the request or <code>null</code> if it is
+     * not timed.
+     * @return <code>false</code> if the client closed the connection.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static boolean readRequest(final InputStream inputStream, final ByteBuffer buffer, final HttpRequestBuilder requestBuilder, final ExchangeTimings timings) throws IOException {
+        while (true) {
+            ((Buffer) buffer).flip();
+            requestBuilder.feedBytes(buffer);
+            buffer.compact();
+
+            if (timings != null && timings.getHeadersComplete() == ExchangeTimings.NOT_RECORDED
+                    && requestBuilder.isHeadComplete()) {
+                timings.setHeadersComplete(System.nanoTime());
+            }
+
+            if (requestBuilder.isReady()) {
+                return true;
+            }
+
+            final int count = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (count == -1) {
+                return false;
+            }
+            ((Buffer) buffer).position(buffer.position() + count);
+        }
+    }
+
+    /**
+     * Answers a request that can't be read. The bytes following it can't be
+     * framed, so the connection must be closed afterwards.
+     *
+     * @param outputStream Stream of the client.
+     * @param error Error thrown while reading the request.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void rejectMalformedRequest(final OutputStream outputStream, final MalformedRequestException error) throws IOException {
+        final HttpResponse response = new HttpResponse();
+        ExchangeSupport.rejectMalformedRequest(response, error);
+        ExchangeSupport.completeResponse(null, response, false);
+        metrics.requestCompleted(response.getStatusCode());
+        outputStream.write(response.toByteArray());
+        outputStream.flush();
+    }
+
+    private void rejectConnection(final Socket socket) {
+        try {
+            final HttpResponse response = new HttpResponse();
+            response.configureDefaults();
+            ExchangeSupport.rejectRequest(response);
+            ExchangeSupport.completeResponse(null, response, false);
+            socket.getOutputStream().write(response.toByteArray());
+        } catch (IOException e) {
+            LOGGER.debug("Unable to send the rejection to the client", e);
+        } finally {
+            openSockets.remove(socket);
+            closeQuietly(socket);
+            metrics.connectionClosed();
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close " + closeable, e);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.github.raphcal.localserver;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps idle direct buffers of a fixed size to reuse them, so that a
+ * connection holds a buffer only while it has bytes to parse.
+ * <p>
+ * A pool belongs to a single reactor and is not thread-safe.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class BufferPool {
+
+    /**
+     * Maximum number of idle buffers kept by a pool.
+     */
+    private static final int MAX_IDLE = 256;
+
+    private final int bufferSize;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param bufferSize Capacity of the buffers, in bytes.
+     */
+    BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns an idle buffer or a new one.
+     *
+     * @return An empty buffer, in write mode.
+     */
+    ByteBuffer acquire() {
+        final ByteBuffer buffer = idle.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives back a buffer which is no longer used.
+     *
+     * @param buffer Buffer acquired from this pool.
+     */
+    void release(ByteBuffer buffer) {
+        if (idle.size() < MAX_IDLE) {
+            ((Buffer) buffer).clear();
+            idle.offer(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+package com.github.raphcal.localserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stream writing its bytes with the chunked transfer encoding. Each call to
+ * <code>write</code> produces one chunk.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ChunkedOutputStream extends FilterOutputStream {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private boolean finished;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param outputStream Stream of the connection.
+     */
+    ChunkedOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Last chunk already written");
+        }
+        if (len == 0) {
+            // An empty chunk would end the body.
+            return;
+        }
+        out.write(chunkSize(len));
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    /**
+     * Writes the last chunk. The stream of the connection is flushed but not
+     * closed.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes the last chunk. The stream of the connection is left open.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * Returns the line giving the size of a chunk.
+     *
+     * @param size Size of the chunk.
+     * @return The size in hexadecimal followed by CRLF.
+     */
+    static byte[] chunkSize(int size) {
+        return (Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the buffers of a chunk, to be written with a gathering write.
+     *
+     * @param content Content of the chunk, in read mode.
+     * @return The size line, the content and the final CRLF.
+     */
+    static ByteBuffer[] toChunk(ByteBuffer content) {
+        return new ByteBuffer[]{
+            ByteBuffer.wrap(chunkSize(content.remaining())),
+            content,
+            ByteBuffer.wrap(CRLF)
+        };
+    }
+
+    /**
+     * Returns the last chunk, ending the body.
+     *
+     * @return A buffer containing the last chunk.
+     */
+    static ByteBuffer lastChunk() {
+        return ByteBuffer.wrap(LAST_CHUNK);
+    }
+
+}
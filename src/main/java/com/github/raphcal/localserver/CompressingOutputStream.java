@@ -0,0 +1,133 @@
+package com.github.raphcal.localserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Stream compressing its bytes with gzip or deflate, with a deflater taken
+ * from a {@link DeflaterPool}. A call to <code>flush()</code> sends the
+ * bytes written so far.
+ * <p>
+ * {@link #finish()} ends the compressed data and gives the deflater back to
+ * the pool. If the data can't be completed, {@link #abort()} must be called
+ * instead. The underlying stream is never closed.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class CompressingOutputStream extends DeflaterOutputStream {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] GZIP_HEADER = {
+        (byte) 0x1f, (byte) 0x8b, // Magic number.
+        8, // Deflate.
+        0, // Flags.
+        0, 0, 0, 0, // Modification time.
+        0, // Extra flags.
+        (byte) 0xff // Unknown operating system.
+    };
+
+    private final DeflaterPool pool;
+
+    /**
+     * Checksum of the uncompressed bytes or <code>null</code> for deflate.
+     */
+    private final CRC32 crc;
+
+    private boolean finished;
+
+    private CompressingOutputStream(OutputStream outputStream, DeflaterPool pool, boolean gzip) {
+        super(outputStream, pool.acquire(), BUFFER_SIZE, true);
+        this.pool = pool;
+        this.crc = gzip ? new CRC32() : null;
+    }
+
+    /**
+     * Creates a stream compressing with gzip.
+     *
+     * @param outputStream Stream receiving the compressed bytes.
+     * @param pool Pool of raw deflaters.
+     * @return A new stream.
+     * @throws IOException If the header can't be written.
+     */
+    static CompressingOutputStream gzip(OutputStream outputStream, DeflaterPool pool) throws IOException {
+        outputStream.write(GZIP_HEADER);
+        return new CompressingOutputStream(outputStream, pool, true);
+    }
+
+    /**
+     * Creates a stream compressing with deflate, in the zlib format.
+     *
+     * @param outputStream Stream receiving the compressed bytes.
+     * @param pool Pool of zlib deflaters.
+     * @return A new stream.
+     */
+    static CompressingOutputStream deflate(OutputStream outputStream, DeflaterPool pool) {
+        return new CompressingOutputStream(outputStream, pool, false);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Compressed data already finished");
+        }
+        super.write(b, off, len);
+        if (crc != null) {
+            crc.update(b, off, len);
+        }
+    }
+
+    /**
+     * Ends the compressed data and gives the deflater back to its pool.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            super.finish();
+            if (crc != null) {
+                writeInt((int) crc.getValue());
+                writeInt(def.getTotalIn());
+            }
+        } finally {
+            pool.release(def);
+        }
+    }
+
+    /**
+     * Gives the deflater back to its pool without ending the compressed
+     * data, when the content could not be written entirely. Does nothing once
+     * the data is finished.
+     */
+    void abort() {
+        if (!finished) {
+            finished = true;
+            pool.release(def);
+        }
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    /**
+     * Ends the compressed data. The underlying stream is left open.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+}
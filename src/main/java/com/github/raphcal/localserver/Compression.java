@@ -0,0 +1,298 @@
+package com.github.raphcal.localserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compression of response contents with gzip or deflate.
+ * <p>
+ * Deflaters are kept in pools and reused between responses instead of being
+ * created for each one.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ServerConfiguration#setCompressResponses(boolean)
+ */
+public final class Compression {
+
+    /**
+     * MIME types compressed by default. Other formats, like images or
+     * archives, are usually compressed already.
+     */
+    public static final Set<String> DEFAULT_COMPRESSIBLE_CONTENT_TYPES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            "text/*",
+            "application/json",
+            "application/javascript",
+            "application/xml",
+            "application/xhtml+xml",
+            "image/svg+xml")));
+
+    private static final DeflaterPool GZIP_DEFLATERS = new DeflaterPool(true);
+    private static final DeflaterPool ZLIB_DEFLATERS = new DeflaterPool(false);
+
+    private Compression() {
+    }
+
+    /**
+     * Selects the encoding of a response from the <code>Accept-Encoding</code>
+     * header of the request. gzip is preferred to deflate when the client
+     * gives them the same weight.
+     *
+     * @param acceptEncoding Value of the <code>Accept-Encoding</code> header
+     * or <code>null</code>.
+     * @return {@link HttpConstants#CONTENT_ENCODING_GZIP},
+     * {@link HttpConstants#CONTENT_ENCODING_DEFLATE} or <code>null</code> if
+     * the client accepts neither.
+     */
+    public static String negotiate(final String acceptEncoding) {
+        final float gzip = getWeight(acceptEncoding, HttpConstants.CONTENT_ENCODING_GZIP);
+        final float deflate = getWeight(acceptEncoding, HttpConstants.CONTENT_ENCODING_DEFLATE);
+        if (gzip > 0 && gzip >= deflate) {
+            return HttpConstants.CONTENT_ENCODING_GZIP;
+        } else if (deflate > 0) {
+            return HttpConstants.CONTENT_ENCODING_DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Indicates if the given encoding is accepted by the client.
+     *
+     * @param acceptEncoding Value of the <code>Accept-Encoding</code> header
+     * or <code>null</code>.
+     * @param encoding Content encoding, in lower case.
+     * @return <code>true</code> if the client accepts the encoding.
+     */
+    public static boolean isAccepted(final String acceptEncoding, final String encoding) {
+        return getWeight(acceptEncoding, encoding) > 0;
+    }
+
+    /**
+     * Returns the weight given by the client to the given encoding.
+     *
+     * @param acceptEncoding Value of the <code>Accept-Encoding</code> header
+     * or <code>null</code>.
+     * @param encoding Content encoding, in lower case.
+     * @return The weight, between 0 (not accepted) and 1.
+     */
+    private static float getWeight(final String acceptEncoding, final String encoding) {
+        if (acceptEncoding == null) {
+            return 0;
+        }
+        float weight = -1;
+        float any = -1;
+        for (final String element : acceptEncoding.split(",")) {
+            final int semicolon = element.indexOf(';');
+            final String coding = (semicolon == -1 ? element : element.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+            if (encoding.equals(coding)
+                    || (HttpConstants.CONTENT_ENCODING_GZIP.equals(encoding) && "x-gzip".equals(coding))) {
+                weight = Math.max(weight, semicolon == -1 ? 1 : parseWeight(element.substring(semicolon + 1)));
+            } else if ("*".equals(coding)) {
+                any = semicolon == -1 ? 1 : parseWeight(element.substring(semicolon + 1));
+            }
+        }
+        return weight >= 0 ? weight : Math.max(any, 0);
+    }
+
+    private static float parseWeight(final String parameters) {
+        for (final String parameter : parameters.split(";")) {
+            final int equals = parameter.indexOf('=');
+            if (equals != -1 && "q".equalsIgnoreCase(parameter.substring(0, equals).trim())) {
+                try {
+                    return Float.parseFloat(parameter.substring(equals + 1).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Indicates if the given MIME type is one of the given compressible
+     * types.
+     *
+     * @param contentType MIME type of the content, without parameters.
+     * @param compressibleContentTypes Compressible types. A type ending with
+     * <code>/*</code> matches every subtype.
+     * @return <code>true</code> if the content may be compressed.
+     */
+    public static boolean isCompressible(final String contentType, final Set<String> compressibleContentTypes) {
+        if (contentType == null) {
+            return false;
+        }
+        final String type = contentType.trim().toLowerCase(Locale.ROOT);
+        if (compressibleContentTypes.contains(type)) {
+            return true;
+        }
+        final int slash = type.indexOf('/');
+        return slash != -1 && compressibleContentTypes.contains(type.substring(0, slash + 1) + '*');
+    }
+
+    /**
+     * Compresses the remaining bytes of the given buffer.
+     *
+     * @param content Content to compress, in read mode. It is not modified.
+     * @param encoding {@link HttpConstants#CONTENT_ENCODING_GZIP} or
+     * {@link HttpConstants#CONTENT_ENCODING_DEFLATE}.
+     * @return A new buffer containing the compressed content.
+     */
+    public static ByteBuffer compress(final ByteBuffer content, final String encoding) {
+        final AbstractHttpMessage.ContentBuilder builder = new AbstractHttpMessage.ContentBuilder(Math.max(64, content.remaining() / 4));
+        try {
+            final CompressingOutputStream outputStream = newOutputStream(builder, encoding);
+            final ByteBuffer source = content.duplicate();
+            if (source.hasArray()) {
+                outputStream.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            } else {
+                Channels.newChannel(outputStream).write(source);
+            }
+            outputStream.finish();
+        } catch (IOException e) {
+            // Writes in memory.
+            throw new UncheckedIOException(e);
+        }
+        return builder.toByteBuffer();
+    }
+
+    /**
+     * Returns the entity tag of the compressed variant of a content. The
+     * encoding is added to the opaque tag so that both variants are not
+     * mistaken for each other.
+     *
+     * @param entityTag Entity tag of the uncompressed content.
+     * @param encoding Content encoding.
+     * @return The entity tag of the compressed content.
+     */
+    public static String toEncodedEntityTag(final String entityTag, final String encoding) {
+        final String tag = entityTag.trim();
+        if (tag.length() >= 2 && tag.endsWith("\"")) {
+            return tag.substring(0, tag.length() - 1) + '-' + encoding + '"';
+        }
+        return tag;
+    }
+
+    /**
+     * Returns a stream compressing its bytes with the given encoding. The
+     * stream must be finished to give its deflater back to the pool.
+     *
+     * @param outputStream Stream receiving the compressed bytes.
+     * @param encoding {@link HttpConstants#CONTENT_ENCODING_GZIP} or
+     * {@link HttpConstants#CONTENT_ENCODING_DEFLATE}.
+     * @return A new stream.
+     * @throws IOException If the header of the compressed data can't be
+     * written.
+     */
+    static CompressingOutputStream newOutputStream(final OutputStream outputStream, final String encoding) throws IOException {
+        if (HttpConstants.CONTENT_ENCODING_GZIP.equals(encoding)) {
+            return CompressingOutputStream.gzip(outputStream, GZIP_DEFLATERS);
+        } else if (HttpConstants.CONTENT_ENCODING_DEFLATE.equals(encoding)) {
+            return CompressingOutputStream.deflate(outputStream, ZLIB_DEFLATERS);
+        }
+        throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+    }
+
+    /**
+     * Compresses the content of the given response once the servlet has
+     * returned, if the client accepts it and if the content is worth it.
+     * <p>
+     * Contents in memory are compressed at once and keep a
+     * <code>Content-Length</code>. Streamed contents are compressed while
+     * they are sent, as a content of unknown length. Files and shared
+     * buffers are sent as is.
+     *
+     * @param request Request received.
+     * @param response Response filled by the servlet.
+     * @param configuration Options of the server.
+     */
+    static void compressResponse(final HttpRequest request, final HttpResponse response, final ServerConfiguration configuration) {
+        if (!ExchangeSupport.mayHaveContent(response.getStatusCode())
+                || response.getStatusCode() == HttpConstants.STATUS_CODE_206_PARTIAL_CONTENT
+                || response.getHeader(HttpConstants.HEADER_CONTENT_ENCODING) != null
+                || response.getHeader(HttpConstants.HEADER_CONTENT_RANGE) != null
+                || !isCompressible(response.getContentType(), configuration.getCompressibleContentTypes())) {
+            return;
+        }
+        // The response depends on Accept-Encoding even when sent as is.
+        addVary(response, HttpConstants.HEADER_ACCEPT_ENCODING);
+
+        final ResponseBody body = response.getBody();
+        if (body instanceof ResponseBody.FileBody
+                || body instanceof ResponseBody.BufferBody
+                || (body != null && HttpConstants.METHOD_HEAD.equals(request.getMethod()))) {
+            return;
+        }
+        final long length = body != null ? body.getLength() : response.getContentBuilder().size();
+        if (length >= 0 && length < configuration.getCompressionMinSize()) {
+            return;
+        }
+        final String encoding = negotiate(request.getHeader(HttpConstants.HEADER_ACCEPT_ENCODING));
+        if (encoding == null) {
+            return;
+        }
+
+        if (body == null) {
+            final AbstractHttpMessage.ContentBuilder content = (AbstractHttpMessage.ContentBuilder) response.getContentBuilder();
+            final ByteBuffer compressed = compress(content.toByteBuffer(), encoding);
+            content.reset();
+            content.write(compressed.array(), compressed.arrayOffset() + compressed.position(), compressed.remaining());
+            response.setHeader(HttpConstants.HEADER_CONTENT_LENGTH, Integer.toString(content.size()));
+        } else {
+            response.replaceBody(ResponseBody.of(new ContentWriter() {
+
+                @Override
+                public void writeContent(OutputStream outputStream) throws IOException {
+                    CompressingOutputStream compressingOutputStream = null;
+                    try {
+                        compressingOutputStream = newOutputStream(outputStream, encoding);
+                        body.writeTo(compressingOutputStream);
+                        compressingOutputStream.finish();
+                    } finally {
+                        if (compressingOutputStream != null) {
+                            // Client gone or writer failed.
+                            compressingOutputStream.abort();
+                        }
+                        body.close();
+                    }
+                }
+
+            }));
+        }
+        response.setHeader(HttpConstants.HEADER_CONTENT_ENCODING, encoding);
+
+        final String entityTag = response.getHeader(HttpConstants.HEADER_ETAG);
+        if (entityTag != null) {
+            response.setHeader(HttpConstants.HEADER_ETAG, toEncodedEntityTag(entityTag, encoding));
+        }
+    }
+
+    /**
+     * Adds the given header name to the <code>Vary</code> header of the
+     * response, if it is not there yet.
+     *
+     * @param response Response to modify.
+     * @param header Name of a request header.
+     */
+    public static void addVary(final HttpResponse response, final String header) {
+        final String vary = response.getHeader(HttpConstants.HEADER_VARY);
+        if (vary == null || vary.trim().isEmpty()) {
+            response.setHeader(HttpConstants.HEADER_VARY, header);
+            return;
+        }
+        for (final String name : vary.split(",")) {
+            final String trimmed = name.trim();
+            if (trimmed.equalsIgnoreCase(header) || "*".equals(trimmed)) {
+                return;
+            }
+        }
+        response.setHeader(HttpConstants.HEADER_VARY, vary + ", " + header);
+    }
+
+}
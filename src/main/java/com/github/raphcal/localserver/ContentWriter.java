@@ -0,0 +1,24 @@
+package com.github.raphcal.localserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the content of a response by writing it to a stream, as it is
+ * generated.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see HttpResponse#setContentWriter(ContentWriter)
+ */
+public interface ContentWriter {
+
+    /**
+     * Writes the content of the response to the given stream. Bytes are sent
+     * to the client as they are written, a call to <code>flush()</code> sends
+     * the bytes written so far.
+     *
+     * @param outputStream Stream to the client. It must not be closed.
+     * @throws IOException If the content can't be written.
+     */
+    void writeContent(OutputStream outputStream) throws IOException;
+}
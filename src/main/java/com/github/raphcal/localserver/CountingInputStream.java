@@ -0,0 +1,40 @@
+package com.github.raphcal.localserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream counting the bytes read from a client.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ServerMetrics#getBytesRead()
+ */
+final class CountingInputStream extends FilterInputStream {
+
+    private final ServerMetrics metrics;
+
+    CountingInputStream(InputStream inputStream, ServerMetrics metrics) {
+        super(inputStream);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int value = super.read();
+        if (value != -1) {
+            metrics.bytesRead(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        final int count = super.read(bytes, offset, length);
+        if (count > 0) {
+            metrics.bytesRead(count);
+        }
+        return count;
+    }
+
+}
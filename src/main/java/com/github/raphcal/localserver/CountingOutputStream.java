@@ -0,0 +1,50 @@
+package com.github.raphcal.localserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream counting the bytes written to a client.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ServerMetrics#getBytesWritten()
+ */
+final class CountingOutputStream extends FilterOutputStream {
+
+    private final ServerMetrics metrics;
+
+    /**
+     * Timings of the response being written or <code>null</code>.
+     */
+    private ExchangeTimings timings;
+
+    CountingOutputStream(OutputStream outputStream, ServerMetrics metrics) {
+        super(outputStream);
+        this.metrics = metrics;
+    }
+
+    void setTimings(ExchangeTimings timings) {
+        this.timings = timings;
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        out.write(value);
+        written(1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        written(length);
+    }
+
+    private void written(int count) {
+        metrics.bytesWritten(count);
+        if (timings != null && timings.getFirstByteWritten() == ExchangeTimings.NOT_RECORDED) {
+            timings.setFirstByteWritten(System.nanoTime());
+        }
+    }
+
+}
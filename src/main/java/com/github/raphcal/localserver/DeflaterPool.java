@@ -0,0 +1,64 @@
+package com.github.raphcal.localserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps idle {@link Deflater} instances to reuse them, since creating one
+ * allocates native memory.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class DeflaterPool {
+
+    /**
+     * Maximum number of idle deflaters kept by a pool.
+     */
+    private static final int MAX_IDLE = 64;
+
+    private final boolean nowrap;
+    private final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param nowrap <code>true</code> for raw deflate data, as used by gzip,
+     * <code>false</code> for the zlib format.
+     */
+    DeflaterPool(boolean nowrap) {
+        this.nowrap = nowrap;
+    }
+
+    /**
+     * Returns an idle deflater or a new one.
+     *
+     * @return A deflater ready to compress.
+     */
+    Deflater acquire() {
+        final Deflater deflater = idle.poll();
+        if (deflater != null) {
+            idleCount.decrementAndGet();
+            return deflater;
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+    }
+
+    /**
+     * Gives back a deflater once its data is complete.
+     *
+     * @param deflater Deflater acquired from this pool.
+     */
+    void release(Deflater deflater) {
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            deflater.reset();
+            idle.offer(deflater);
+        } else {
+            idleCount.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+}
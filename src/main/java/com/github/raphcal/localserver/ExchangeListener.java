@@ -0,0 +1,27 @@
+package com.github.raphcal.localserver;
+
+/**
+ * Receives the timings of each request answered by a server, once its
+ * response has been sent.
+ * <p>
+ * Listeners are called by the I/O threads of the server: they must return
+ * quickly and must not block. A listener is called for every request, from
+ * several threads at once, and must be thread safe.
+ * <p>
+ * When no listener is set, timestamps are not taken at all.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ServerConfiguration#setExchangeListener(ExchangeListener)
+ * @see SlowRequestLogger
+ */
+public interface ExchangeListener {
+
+    /**
+     * Called once the last byte of a response has been written.
+     *
+     * @param request Request received.
+     * @param response Response sent. Its content may have been released.
+     * @param timings Instants of each phase of the exchange.
+     */
+    void exchangeCompleted(HttpRequest request, HttpResponse response, ExchangeTimings timings);
+}
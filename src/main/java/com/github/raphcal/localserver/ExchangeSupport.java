@@ -0,0 +1,273 @@
+package com.github.raphcal.localserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Steps shared by the server implementations to answer a request: connection
+ * persistence, call of the servlet and completion of the response headers.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ExchangeSupport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExchangeSupport.class);
+
+    private ExchangeSupport() {
+    }
+
+    /**
+     * Initializes the given response before giving it to the servlet.
+     *
+     * @param request Request received.
+     * @param response Response to initialize.
+     * @param configuration Options of the server.
+     * @return <code>true</code> if the connection may be kept open after the
+     * response.
+     */
+    static boolean configureResponse(final HttpRequest request, final HttpResponse response, final ServerConfiguration configuration) {
+        response.configureDefaults();
+
+        final boolean keepAlive = isKeepAliveRequested(request, configuration);
+        if (keepAlive) {
+            response.setHeader(HttpConstants.HEADER_CONNECTION, HttpConstants.CONNECTION_KEEP_ALIVE);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Calls the servlet. Uncaught errors are turned into a "500 INTERNAL
+     * SERVER ERROR" response, or "400 BAD REQUEST" when the content of the
+     * request is malformed. The content is then compressed if enabled by the
+     * configuration.
+     *
+     * @param servlet Servlet handling the request.
+     * @param request Request received.
+     * @param response Response to fill.
+     * @param configuration Options of the server.
+     * @param metrics Counters where to record the time spent in the servlet.
+     * @param timings Timings of the request or <code>null</code> if it is
+     * not timed.
+     */
+    static void handleRequest(final HttpRequestHandler servlet, final HttpRequest request, final HttpResponse response,
+            final ServerConfiguration configuration, final ServerMetrics metrics, final ExchangeTimings timings) {
+        request.setConfiguration(configuration);
+        final long start = System.nanoTime();
+        try {
+            servlet.handleRequest(request, response);
+        } catch (MalformedContentException e) {
+            rejectMalformedContent(request, response, e);
+        } catch (RuntimeException e) {
+            LOGGER.error("An uncaught error happened while handling request " + request.getMethod() + " to " + request.getTarget(), e);
+            response.setStatusCode(HttpConstants.STATUS_CODE_500_INTERNAL_SERVER_ERROR);
+            response.setStatusMessage(HttpConstants.STATUS_MESSAGE_500_INTERNAL_SERVER_ERROR);
+            response.setContent("");
+        } finally {
+            request.deleteParts();
+        }
+        final long end = System.nanoTime();
+        metrics.handlerTime(end - start);
+        if (timings != null) {
+            timings.setHandlerStart(start);
+            timings.setHandlerEnd(end);
+        }
+        if (configuration.isCompressResponses()) {
+            Compression.compressResponse(request, response, configuration);
+        }
+    }
+
+    /**
+     * Gives the timings of a request whose response has been sent to the
+     * given listener. Uncaught errors of the listener are logged.
+     *
+     * @param listener Listener to notify.
+     * @param timings Timings of the request.
+     */
+    static void exchangeCompleted(final ExchangeListener listener, final ExchangeTimings timings) {
+        try {
+            listener.exchangeCompleted(timings.getRequest(), timings.getResponse(), timings);
+        } catch (RuntimeException e) {
+            LOGGER.error("An uncaught error happened in exchange listener " + listener, e);
+        }
+    }
+
+    /**
+     * Completes the headers of the response once the servlet has returned.
+     * <p>
+     * A streamed content of unknown length is sent with the chunked transfer
+     * encoding to HTTP/1.1 clients. For other clients, the end of the content
+     * is given by the end of the connection. The content of a response to a
+     * HEAD request is dropped, as is the content of 204 and 304 responses.
+     *
+     * @param request Request received or <code>null</code> if unknown.
+     * @param response Response filled by the servlet.
+     * @param keepAlive <code>true</code> if the client asked to keep the
+     * connection open.
+     * @return <code>true</code> if the connection must be kept open after the
+     * response.
+     */
+    static boolean completeResponse(final HttpRequest request, final HttpResponse response, final boolean keepAlive) {
+        boolean persistent = keepAlive
+                && !hasConnectionToken(response.getHeader(HttpConstants.HEADER_CONNECTION), HttpConstants.CONNECTION_CLOSE);
+
+        final ResponseBody body = response.getBody();
+        if (!mayHaveContent(response.getStatusCode())) {
+            response.closeBody();
+            response.getContentBuilder().reset();
+        } else if (request != null && HttpConstants.METHOD_HEAD.equals(request.getMethod())) {
+            // The length of the content is announced but the content is not sent.
+            if (body == null && response.getHeader(HttpConstants.HEADER_CONTENT_LENGTH) == null) {
+                response.setHeader(HttpConstants.HEADER_CONTENT_LENGTH, Integer.toString(response.getContentBuilder().size()));
+            }
+            response.closeBody();
+            response.getContentBuilder().reset();
+        } else if (body != null && body.getLength() < 0
+                && response.getHeader(HttpConstants.HEADER_CONTENT_LENGTH) == null
+                && response.getHeader(HttpConstants.HEADER_TRANSFER_ENCODING) == null) {
+            if (request != null && HttpConstants.VERSION_1_1.equals(request.getVersion())) {
+                response.setHeader(HttpConstants.HEADER_TRANSFER_ENCODING, HttpConstants.TRANSFERT_ENCODING_CHUNKED);
+            } else {
+                persistent = false;
+            }
+        } else if (response.getHeader(HttpConstants.HEADER_CONTENT_LENGTH) == null
+                && response.getHeader(HttpConstants.HEADER_TRANSFER_ENCODING) == null) {
+            // Without a length, the client would wait for the end of the stream.
+            response.setHeader(HttpConstants.HEADER_CONTENT_LENGTH, Integer.toString(response.getContentBuilder().size()));
+        }
+
+        if (!persistent) {
+            response.setHeader(HttpConstants.HEADER_CONNECTION, HttpConstants.CONNECTION_CLOSE);
+        }
+        return persistent;
+    }
+
+    /**
+     * Indicates if a response with the given status may have a content.
+     * Informational, 204 and 304 responses end with their header.
+     *
+     * @param statusCode Status of the response.
+     * @return <code>false</code> if the response never has a content.
+     */
+    static boolean mayHaveContent(final int statusCode) {
+        return statusCode >= HttpConstants.STATUS_CODE_200_OK
+                && statusCode != HttpConstants.STATUS_CODE_204_NO_CONTENT
+                && statusCode != HttpConstants.STATUS_CODE_304_NOT_MODIFIED;
+    }
+
+    /**
+     * Indicates if the content of the given response is sent in chunks.
+     *
+     * @param response Response completed by
+     * {@link #completeResponse(HttpRequest, HttpResponse, boolean)}.
+     * @return <code>true</code> if the content is sent with the chunked
+     * transfer encoding.
+     */
+    static boolean isChunked(final HttpResponse response) {
+        return response.getBody() != null
+                && hasConnectionToken(response.getHeader(HttpConstants.HEADER_TRANSFER_ENCODING), HttpConstants.TRANSFERT_ENCODING_CHUNKED);
+    }
+
+    /**
+     * Writes the content of a response to a blocking stream.
+     *
+     * @param response Response completed by
+     * {@link #completeResponse(HttpRequest, HttpResponse, boolean)}.
+     * @param outputStream Stream of the connection.
+     * @throws IOException If an I/O error occurs.
+     */
+    static void writeBody(final HttpResponse response, final OutputStream outputStream) throws IOException {
+        final ResponseBody body = response.getBody();
+        if (body == null) {
+            response.getContentBuilder().writeTo(outputStream);
+            return;
+        }
+        try {
+            if (isChunked(response)) {
+                final ChunkedOutputStream chunkedOutputStream = new ChunkedOutputStream(outputStream);
+                body.writeTo(chunkedOutputStream);
+                chunkedOutputStream.finish();
+            } else {
+                body.writeTo(outputStream);
+            }
+        } finally {
+            response.closeBody();
+        }
+    }
+
+    /**
+     * Initializes the given response as a refusal because the server is
+     * overloaded. The connection is closed after the response.
+     *
+     * @param response Response to initialize.
+     */
+    static void rejectRequest(final HttpResponse response) {
+        response.setStatusCode(HttpConstants.STATUS_CODE_503_SERVICE_UNAVAILABLE);
+        response.setStatusMessage(HttpConstants.STATUS_MESSAGE_503_SERVICE_UNAVAILABLE);
+        response.setHeader(HttpConstants.HEADER_CONNECTION, HttpConstants.CONNECTION_CLOSE);
+    }
+
+    /**
+     * Initializes the given response as the answer to a request that can't
+     * be read. The connection is closed after the response.
+     *
+     * @param response Response to initialize.
+     * @param error Error thrown while reading the request.
+     */
+    static void rejectMalformedRequest(final HttpResponse response, final MalformedRequestException error) {
+        response.configureDefaults();
+        response.setStatusCode(error.getStatusCode());
+        response.setStatusMessage(error.getStatusMessage());
+        response.setHeader(HttpConstants.HEADER_CONNECTION, HttpConstants.CONNECTION_CLOSE);
+    }
+
+    /**
+     * Replaces the response filled by the servlet with a "400 BAD REQUEST"
+     * response when the content of the request is malformed or truncated.
+     *
+     * @param request Request received.
+     * @param response Response to replace.
+     * @param error Error thrown while reading the content.
+     */
+    static void rejectMalformedContent(final HttpRequest request, final HttpResponse response, final MalformedContentException error) {
+        LOGGER.debug("Malformed content in request " + request.getMethod() + " to " + request.getTarget(), error);
+        response.setStatusCode(HttpConstants.STATUS_CODE_400_BAD_REQUEST);
+        response.setStatusMessage(HttpConstants.STATUS_MESSAGE_400_BAD_REQUEST);
+        response.setContent("");
+    }
+
+    /**
+     * Indicates if the client asked to keep the connection open after the
+     * response. HTTP/1.1 connections are persistent by default whereas
+     * HTTP/1.0 connections must ask for it explicitly.
+     *
+     * @param request Request sent by the client.
+     * @param configuration Options of the server.
+     * @return <code>true</code> if the connection can be kept open.
+     */
+    static boolean isKeepAliveRequested(final HttpRequest request, final ServerConfiguration configuration) {
+        if (!configuration.isKeepAliveEnabled()) {
+            return false;
+        }
+        final String connection = request.getHeader(HttpConstants.HEADER_CONNECTION);
+        if (HttpConstants.VERSION_1_1.equals(request.getVersion())) {
+            return !hasConnectionToken(connection, HttpConstants.CONNECTION_CLOSE);
+        } else {
+            return hasConnectionToken(connection, HttpConstants.CONNECTION_KEEP_ALIVE);
+        }
+    }
+
+    private static boolean hasConnectionToken(final String connection, final String token) {
+        if (connection == null) {
+            return false;
+        }
+        for (final String value : connection.split(",")) {
+            if (token.equals(value.trim().toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,244 @@
+package com.github.raphcal.localserver;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instants of the phases of a request, in nanoseconds, as given by
+ * {@link System#nanoTime()}.
+ * <p>
+ * Instants are comparable only with each other. A phase which is not known by
+ * the server implementation is {@link #NOT_RECORDED}:
+ * <ul>
+ * <li>the connection is accepted only before the first request of a
+ * connection,</li>
+ * <li>the first byte and the acceptation of the connection are not known by
+ * <code>HttpHandlerAdapter</code>, which starts once the headers are
+ * read,</li>
+ * <li>the end of a body streamed to the servlet is not known by
+ * <code>HttpHandlerAdapter</code> and, with <code>VIRTUAL_THREADS</code>, is
+ * known only if the body is read before the next request.</li>
+ * </ul>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ExchangeListener
+ */
+public final class ExchangeTimings {
+
+    /**
+     * Value of a phase which was not recorded.
+     */
+    public static final long NOT_RECORDED = Long.MIN_VALUE;
+
+    private long accepted = NOT_RECORDED;
+    private long firstByte = NOT_RECORDED;
+    private long headersComplete = NOT_RECORDED;
+    private long bodyComplete = NOT_RECORDED;
+    private long handlerStart = NOT_RECORDED;
+    private long handlerEnd = NOT_RECORDED;
+    private long firstByteWritten = NOT_RECORDED;
+    private long lastByteWritten = NOT_RECORDED;
+
+    /**
+     * Request and response given to the listener once the response is sent.
+     */
+    private HttpRequest request;
+    private HttpResponse response;
+
+    /**
+     * Returns the instant the connection was accepted. Only known for the
+     * first request of a connection.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getAccepted() {
+        return accepted;
+    }
+
+    void setAccepted(long accepted) {
+        this.accepted = accepted;
+    }
+
+    /**
+     * Returns the instant the first byte of the request was received.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getFirstByte() {
+        return firstByte;
+    }
+
+    void setFirstByte(long firstByte) {
+        this.firstByte = firstByte;
+    }
+
+    /**
+     * Returns the instant the request line and the headers were parsed.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getHeadersComplete() {
+        return headersComplete;
+    }
+
+    void setHeadersComplete(long headersComplete) {
+        this.headersComplete = headersComplete;
+    }
+
+    /**
+     * Returns the instant the last byte of the body was received. When the
+     * body is streamed, it may come after the start of the servlet.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getBodyComplete() {
+        return bodyComplete;
+    }
+
+    void setBodyComplete(long bodyComplete) {
+        this.bodyComplete = bodyComplete;
+    }
+
+    /**
+     * Returns the instant the servlet was called.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getHandlerStart() {
+        return handlerStart;
+    }
+
+    void setHandlerStart(long handlerStart) {
+        this.handlerStart = handlerStart;
+    }
+
+    /**
+     * Returns the instant the servlet returned. A content given to
+     * <code>setContentWriter</code> is written after this instant.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getHandlerEnd() {
+        return handlerEnd;
+    }
+
+    void setHandlerEnd(long handlerEnd) {
+        this.handlerEnd = handlerEnd;
+    }
+
+    /**
+     * Returns the instant the first byte of the response was written to the
+     * connection.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getFirstByteWritten() {
+        return firstByteWritten;
+    }
+
+    void setFirstByteWritten(long firstByteWritten) {
+        this.firstByteWritten = firstByteWritten;
+    }
+
+    /**
+     * Returns the instant the last byte of the response was written to the
+     * connection.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getLastByteWritten() {
+        return lastByteWritten;
+    }
+
+    void setLastByteWritten(long lastByteWritten) {
+        this.lastByteWritten = lastByteWritten;
+    }
+
+    /**
+     * Returns the first recorded instant among the first byte, the end of
+     * the headers and the start of the servlet.
+     *
+     * @return Instant in nanoseconds or {@link #NOT_RECORDED}.
+     */
+    public long getStart() {
+        if (firstByte != NOT_RECORDED) {
+            return firstByte;
+        } else if (headersComplete != NOT_RECORDED) {
+            return headersComplete;
+        }
+        return handlerStart;
+    }
+
+    /**
+     * Returns the time between the start of the request and the last byte
+     * of its response.
+     *
+     * @return Duration in nanoseconds or {@link #NOT_RECORDED} if unknown.
+     * @see #getStart()
+     */
+    public long getTotalTime() {
+        final long start = getStart();
+        if (start == NOT_RECORDED || lastByteWritten == NOT_RECORDED) {
+            return NOT_RECORDED;
+        }
+        return lastByteWritten - start;
+    }
+
+    HttpRequest getRequest() {
+        return request;
+    }
+
+    HttpResponse getResponse() {
+        return response;
+    }
+
+    void setExchange(HttpRequest request, HttpResponse response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    /**
+     * Returns the recorded phases, in milliseconds from the start of the
+     * request.
+     *
+     * @return A description like
+     * <code>firstByte=+0.000ms headers=+0.052ms ...</code>.
+     */
+    @Override
+    public String toString() {
+        final long start = getStart();
+        final StringBuilder builder = new StringBuilder();
+        appendPhase(builder, "accepted", accepted, start);
+        appendPhase(builder, "firstByte", firstByte, start);
+        appendPhase(builder, "headers", headersComplete, start);
+        appendPhase(builder, "body", bodyComplete, start);
+        appendPhase(builder, "handlerStart", handlerStart, start);
+        appendPhase(builder, "handlerEnd", handlerEnd, start);
+        appendPhase(builder, "firstByteWritten", firstByteWritten, start);
+        appendPhase(builder, "lastByteWritten", lastByteWritten, start);
+        return builder.toString();
+    }
+
+    private static void appendPhase(StringBuilder builder, String name, long instant, long start) {
+        if (instant == NOT_RECORDED) {
+            return;
+        }
+        if (builder.length() > 0) {
+            builder.append(' ');
+        }
+        builder.append(name).append('=').append(instant >= start ? "+" : "")
+                .append(toMilliseconds(instant - start)).append("ms");
+    }
+
+    /**
+     * Formats the given duration in milliseconds, with a precision of a
+     * microsecond.
+     *
+     * @param nanos Duration in nanoseconds.
+     * @return The formatted duration.
+     */
+    static String toMilliseconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+}
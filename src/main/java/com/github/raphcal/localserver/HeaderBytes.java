@@ -0,0 +1,159 @@
+package com.github.raphcal.localserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Status lines, header names and header values of {@link HttpConstants}
+ * encoded once, so that writing a header block mostly copies arrays.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class HeaderBytes {
+
+    private static final String[] NAMES = {
+        HttpConstants.HEADER_ACCEPT, HttpConstants.HEADER_ACCEPT_ENCODING,
+        HttpConstants.HEADER_ACCEPT_RANGES, HttpConstants.HEADER_AGE,
+        HttpConstants.HEADER_ALLOW, HttpConstants.HEADER_AUTHORIZATION,
+        HttpConstants.HEADER_CACHE_CONTROL, HttpConstants.HEADER_CONNECTION,
+        HttpConstants.HEADER_CONTENT_DISPOSITION, HttpConstants.HEADER_CONTENT_ENCODING,
+        HttpConstants.HEADER_CONTENT_LANGUAGE, HttpConstants.HEADER_CONTENT_LENGTH,
+        HttpConstants.HEADER_CONTENT_LOCATION, HttpConstants.HEADER_CONTENT_RANGE,
+        HttpConstants.HEADER_CONTENT_TYPE, HttpConstants.HEADER_COOKIE,
+        HttpConstants.HEADER_DATE, HttpConstants.HEADER_ETAG,
+        HttpConstants.HEADER_EXPIRES, HttpConstants.HEADER_HOST,
+        HttpConstants.HEADER_KEEP_ALIVE, HttpConstants.HEADER_LAST_MODIFIED,
+        HttpConstants.HEADER_LOCATION, HttpConstants.HEADER_PRAGMA,
+        HttpConstants.HEADER_PROXY_AUTHENTICATE, HttpConstants.HEADER_RETRY_AFTER,
+        HttpConstants.HEADER_SERVER, HttpConstants.HEADER_SET_COOKIE,
+        HttpConstants.HEADER_TRAILER, HttpConstants.HEADER_TRANSFER_ENCODING,
+        HttpConstants.HEADER_USER_AGENT, HttpConstants.HEADER_VARY,
+        HttpConstants.HEADER_WWW_AUTHENTICATE
+    };
+
+    private static final String[] VALUES = {
+        HttpConstants.CONNECTION_CLOSE, HttpConstants.CONNECTION_KEEP_ALIVE,
+        HttpConstants.TRANSFERT_ENCODING_CHUNKED, HttpConstants.ACCEPT_RANGES_BYTES,
+        HttpConstants.ACCEPT_RANGES_NONE, HttpConstants.CONTENT_ENCODING_GZIP,
+        HttpConstants.CONTENT_ENCODING_DEFLATE, HttpConstants.CONTENT_ENCODING_IDENTITY,
+        HttpConstants.CONTENT_TYPE_JSON, HttpConstants.CONTENT_TYPE_FORM,
+        HttpConstants.CONTENT_TYPE_MULTIPART, HttpConstants.CONTENT_TYPE_MULTIPART_BYTERANGES,
+        "text/html", "text/plain", "0"
+    };
+
+    private static final Object[] STATUSES = {
+        HttpConstants.STATUS_CODE_100_CONTINUE, HttpConstants.STATUS_MESSAGE_100_CONTINUE,
+        HttpConstants.STATUS_CODE_101_SWITCHING_PROTOCOLS, HttpConstants.STATUS_MESSAGE_101_SWITCHING_PROTOCOLS,
+        HttpConstants.STATUS_CODE_200_OK, HttpConstants.STATUS_MESSAGE_200_OK,
+        HttpConstants.STATUS_CODE_201_CREATED, HttpConstants.STATUS_MESSAGE_201_CREATED,
+        HttpConstants.STATUS_CODE_202_ACCEPTED, HttpConstants.STATUS_MESSAGE_202_ACCEPTED,
+        HttpConstants.STATUS_CODE_204_NO_CONTENT, HttpConstants.STATUS_MESSAGE_204_NO_CONTENT,
+        HttpConstants.STATUS_CODE_206_PARTIAL_CONTENT, HttpConstants.STATUS_MESSAGE_206_PARTIAL_CONTENT,
+        HttpConstants.STATUS_CODE_300_MULTIPLE_CHOICES, HttpConstants.STATUS_MESSAGE_300_MULTIPLE_CHOICES,
+        HttpConstants.STATUS_CODE_301_MOVED_PERMANENTLY, HttpConstants.STATUS_MESSAGE_301_MOVED_PERMANENTLY,
+        HttpConstants.STATUS_CODE_304_NOT_MODIFIED, HttpConstants.STATUS_MESSAGE_304_NOT_MODIFIED,
+        HttpConstants.STATUS_CODE_400_BAD_REQUEST, HttpConstants.STATUS_MESSAGE_400_BAD_REQUEST,
+        HttpConstants.STATUS_CODE_401_UNAUTHORIZED, HttpConstants.STATUS_MESSAGE_401_UNAUTHORIZED,
+        HttpConstants.STATUS_CODE_403_FORBIDDEN, HttpConstants.STATUS_MESSAGE_403_FORBIDDEN,
+        HttpConstants.STATUS_CODE_404_NOT_FOUND, HttpConstants.STATUS_MESSAGE_404_NOT_FOUND,
+        HttpConstants.STATUS_CODE_405_METHOD_NOT_ALLOWED, HttpConstants.STATUS_MESSAGE_405_METHOD_NOT_ALLOWED,
+        HttpConstants.STATUS_CODE_407_PROXY_AUTHENTICATION_REQUIRED, HttpConstants.STATUS_MESSAGE_407_PROXY_AUTHENTICATION_REQUIRED,
+        HttpConstants.STATUS_CODE_410_GONE, HttpConstants.STATUS_MESSAGE_410_GONE,
+        HttpConstants.STATUS_CODE_416_RANGE_NOT_SATISFIABLE, HttpConstants.STATUS_MESSAGE_416_RANGE_NOT_SATISFIABLE,
+        HttpConstants.STATUS_CODE_500_INTERNAL_SERVER_ERROR, HttpConstants.STATUS_MESSAGE_500_INTERNAL_SERVER_ERROR,
+        HttpConstants.STATUS_CODE_501_NOT_IMPLEMENTED, HttpConstants.STATUS_MESSAGE_501_NOT_IMPLEMENTED,
+        HttpConstants.STATUS_CODE_503_SERVICE_UNAVAILABLE, HttpConstants.STATUS_MESSAGE_503_SERVICE_UNAVAILABLE
+    };
+
+    private static final int FIRST_STATUS_CODE = 100;
+    private static final int LAST_STATUS_CODE = 599;
+
+    /**
+     * Names followed by ": ".
+     */
+    private static final Map<String, byte[]> NAME_BYTES = new HashMap<String, byte[]>();
+    private static final Map<String, byte[]> VALUE_BYTES = new HashMap<String, byte[]>();
+
+    /**
+     * Messages and status lines of HTTP/1.1 and HTTP/1.0, followed by CRLF,
+     * indexed by status code.
+     */
+    private static final String[] STATUS_MESSAGES = new String[LAST_STATUS_CODE - FIRST_STATUS_CODE + 1];
+    private static final byte[][] STATUS_LINES_1_1 = new byte[STATUS_MESSAGES.length][];
+    private static final byte[][] STATUS_LINES_1_0 = new byte[STATUS_MESSAGES.length][];
+
+    static final byte[] CRLF = {'\r', '\n'};
+
+    static {
+        for (final String name : NAMES) {
+            NAME_BYTES.put(name, encode(name + ": "));
+        }
+        for (final String value : VALUES) {
+            VALUE_BYTES.put(value, encode(value));
+        }
+        for (int index = 0; index < STATUSES.length; index += 2) {
+            final int code = (Integer) STATUSES[index];
+            final String message = (String) STATUSES[index + 1];
+            STATUS_MESSAGES[code - FIRST_STATUS_CODE] = message;
+            STATUS_LINES_1_1[code - FIRST_STATUS_CODE] = encode(HttpConstants.VERSION_1_1 + ' ' + code + ' ' + message + "\r\n");
+            STATUS_LINES_1_0[code - FIRST_STATUS_CODE] = encode(HttpConstants.VERSION_1_0 + ' ' + code + ' ' + message + "\r\n");
+        }
+    }
+
+    private HeaderBytes() {
+    }
+
+    /**
+     * Returns the encoded status line for the given status.
+     *
+     * @param version Version of the protocol.
+     * @param code Status code.
+     * @param message Status message.
+     * @return The status line followed by CRLF, or <code>null</code> if it is
+     * not a status line of {@link HttpConstants}.
+     */
+    static byte[] statusLine(String version, int code, String message) {
+        if (code < FIRST_STATUS_CODE || code > LAST_STATUS_CODE) {
+            return null;
+        }
+        final String knownMessage = STATUS_MESSAGES[code - FIRST_STATUS_CODE];
+        if (knownMessage == null || !knownMessage.equals(message)) {
+            return null;
+        }
+        if (HttpConstants.VERSION_1_1.equals(version)) {
+            return STATUS_LINES_1_1[code - FIRST_STATUS_CODE];
+        } else if (HttpConstants.VERSION_1_0.equals(version)) {
+            return STATUS_LINES_1_0[code - FIRST_STATUS_CODE];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the encoded header name followed by ": ".
+     *
+     * @param name Name of a header.
+     * @return The encoded name or <code>null</code> if it is not a name of
+     * {@link HttpConstants}.
+     */
+    static byte[] name(String name) {
+        return NAME_BYTES.get(name);
+    }
+
+    /**
+     * Returns the encoded value of a header.
+     *
+     * @param value Value of a header.
+     * @return The encoded value or <code>null</code> if it is neither a value
+     * of {@link HttpConstants} nor the current date.
+     */
+    static byte[] value(String value) {
+        final byte[] bytes = VALUE_BYTES.get(value);
+        return bytes != null ? bytes : HttpDate.bytesOf(value);
+    }
+
+    private static byte[] encode(String string) {
+        return string.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
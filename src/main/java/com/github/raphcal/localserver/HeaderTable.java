@@ -0,0 +1,336 @@
+package com.github.raphcal.localserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Headers of an HTTP message stored in flat arrays, in insertion order.
+ * <p>
+ * Names are compared without case. Each slot keeps a case-insensitive hash of
+ * its name so that a lookup only compares the names whose hash matches. A name
+ * may be given several times to hold several values.
+ * <p>
+ * Values parsed from a request are kept as offsets in the bytes received and
+ * decoded only when read for the first time.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class HeaderTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final int CONTENT_LENGTH_HASH = hash(HttpConstants.HEADER_CONTENT_LENGTH);
+
+    /**
+     * Value of {@link #contentLength} when the header has not been parsed.
+     */
+    private static final long UNPARSED = -2;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private String[] values = new String[INITIAL_CAPACITY];
+
+    /**
+     * Bytes containing the values not decoded yet.
+     */
+    private byte[] source;
+    private int[] valueStarts = new int[INITIAL_CAPACITY];
+    private int[] valueEnds = new int[INITIAL_CAPACITY];
+
+    private int size;
+
+    /**
+     * Parsed value of the "Content-Length" header, -1 if it is not defined.
+     */
+    private long contentLength = -1;
+
+    private final EntrySet entrySet = new EntrySet();
+
+    /**
+     * Computes the hash of the given header name, ignoring case.
+     *
+     * @param name Name of a header.
+     * @return A hash equal for every case of the name.
+     */
+    static int hash(String name) {
+        int hash = 0;
+        for (int index = 0; index < name.length(); index++) {
+            char c = name.charAt(index);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the first value of the given header.
+     *
+     * @param name Name of the header.
+     * @return The value or <code>null</code> if the header is not defined.
+     */
+    public String get(String name) {
+        final int index = indexOf(name, hash(name), 0);
+        return index >= 0 ? getValue(index) : null;
+    }
+
+    /**
+     * Returns every value of the given header, in insertion order.
+     *
+     * @param name Name of the header.
+     * @return The values, an empty list if the header is not defined.
+     */
+    public List<String> getAll(String name) {
+        final int hash = hash(name);
+        int index = indexOf(name, hash, 0);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        final List<String> all = new ArrayList<String>(2);
+        do {
+            all.add(getValue(index));
+            index = indexOf(name, hash, index + 1);
+        } while (index >= 0);
+        return all;
+    }
+
+    /**
+     * Defines or replaces the value of the given header. Other values of the
+     * header are removed.
+     *
+     * @param name Name of the header.
+     * @param value Value of the header.
+     */
+    public void set(String name, String value) {
+        final int index = slotOf(name, hash(name));
+        values[index] = value;
+        valueStarts[index] = -1;
+    }
+
+    /**
+     * Adds a value to the given header, after the values already defined.
+     *
+     * @param name Name of the header.
+     * @param value Value to add.
+     */
+    public void add(String name, String value) {
+        final int index = append(name, hash(name));
+        values[index] = value;
+        valueStarts[index] = -1;
+    }
+
+    /**
+     * Adds a value to the given header with bytes that will be decoded when
+     * the value is read.
+     *
+     * @param name Name of the header.
+     * @param hash Hash of the name, as given by {@link #hash(java.lang.String)}.
+     * @param bytes Bytes containing the value. The array must not be modified
+     * afterwards.
+     * @param start Index of the first byte of the value.
+     * @param end Index following the last byte of the value.
+     */
+    public void addRaw(String name, int hash, byte[] bytes, int start, int end) {
+        if (source != bytes) {
+            decodeAll();
+            source = bytes;
+        }
+        final int index = append(name, hash);
+        values[index] = null;
+        valueStarts[index] = start;
+        valueEnds[index] = end;
+    }
+
+    /**
+     * Removes every value of the given header.
+     *
+     * @param name Name of the header.
+     */
+    public void remove(String name) {
+        final int hash = hash(name);
+        int index = indexOf(name, hash, 0);
+        while (index >= 0) {
+            removeAt(index);
+            index = indexOf(name, hash, index);
+        }
+    }
+
+    /**
+     * Removes every header.
+     */
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        source = null;
+        size = 0;
+        contentLength = -1;
+    }
+
+    /**
+     * Returns the value of the "Content-Length" header, parsed once.
+     *
+     * @return The length or -1 if the header is not defined.
+     * @throws NumberFormatException If the value is not a number.
+     */
+    public long getContentLength() {
+        if (contentLength == UNPARSED) {
+            final String value = get(HttpConstants.HEADER_CONTENT_LENGTH);
+            contentLength = value != null ? Long.parseLong(value) : -1;
+        }
+        return contentLength;
+    }
+
+    /**
+     * Defines the "Content-Length" header.
+     *
+     * @param length Length of the content.
+     */
+    public void setContentLength(long length) {
+        set(HttpConstants.HEADER_CONTENT_LENGTH, Long.toString(length));
+        contentLength = length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public String getValue(int index) {
+        if (valueStarts[index] >= 0) {
+            values[index] = new String(source, valueStarts[index], valueEnds[index] - valueStarts[index], StandardCharsets.ISO_8859_1);
+            valueStarts[index] = -1;
+        }
+        return values[index];
+    }
+
+    /**
+     * Returns a view of the headers as map entries.
+     *
+     * @return A view of the headers.
+     */
+    public Set<Map.Entry<String, String>> entrySet() {
+        return entrySet;
+    }
+
+    private int indexOf(String name, int hash, int from) {
+        for (int index = from; index < size; index++) {
+            if (hashes[index] == hash && (names[index] == name || names[index].equalsIgnoreCase(name))) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private int slotOf(String name, int hash) {
+        final int index = indexOf(name, hash, 0);
+        if (index < 0) {
+            return append(name, hash);
+        }
+        int other = indexOf(name, hash, index + 1);
+        while (other >= 0) {
+            removeAt(other);
+            other = indexOf(name, hash, other);
+        }
+        names[index] = name;
+        touch(hash);
+        return index;
+    }
+
+    private int append(String name, int hash) {
+        if (size == names.length) {
+            final int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            valueStarts = Arrays.copyOf(valueStarts, capacity);
+            valueEnds = Arrays.copyOf(valueEnds, capacity);
+        }
+        final int index = size++;
+        names[index] = name;
+        hashes[index] = hash;
+        touch(hash);
+        return index;
+    }
+
+    private void removeAt(int index) {
+        touch(hashes[index]);
+        final int moved = size - index - 1;
+        System.arraycopy(names, index + 1, names, index, moved);
+        System.arraycopy(hashes, index + 1, hashes, index, moved);
+        System.arraycopy(values, index + 1, values, index, moved);
+        System.arraycopy(valueStarts, index + 1, valueStarts, index, moved);
+        System.arraycopy(valueEnds, index + 1, valueEnds, index, moved);
+        size--;
+        names[size] = null;
+        values[size] = null;
+    }
+
+    /**
+     * Forgets the parsed length when a slot which may hold the
+     * "Content-Length" header changes.
+     */
+    private void touch(int hash) {
+        if (hash == CONTENT_LENGTH_HASH) {
+            contentLength = UNPARSED;
+        }
+    }
+
+    private void decodeAll() {
+        for (int index = 0; index < size; index++) {
+            getValue(index);
+        }
+    }
+
+    /**
+     * View of the headers as a set of map entries.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    final Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<String, String>(names[index], getValue(index));
+                    index++;
+                    return entry;
+                }
+
+                @Override
+                public void remove() {
+                    removeAt(--index);
+                }
+
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
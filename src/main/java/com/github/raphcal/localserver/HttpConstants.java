@@ -21,6 +21,7 @@ public final class HttpConstants {
     public static final String METHOD_OPTIONS = "OPTIONS";
     public static final String METHOD_TRACE = "TRACE";
     public static final String METHOD_CONNECT = "CONNECT";
+    public static final String METHOD_PATCH = "PATCH";
 
     public static final String HEADER_ACCEPT = "Accept";
     /**
@@ -137,6 +138,7 @@ public final class HttpConstants {
     public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
     public static final String HEADER_IF_RANGE = "If-Range";
     public static final String HEADER_IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
+    public static final String HEADER_KEEP_ALIVE = "Keep-Alive";
     public static final String HEADER_LAST_MODIFIED = "Last-Modified";
     public static final String HEADER_LOCATION = "Location";
     public static final String HEADER_FORWARDS = "Max-Forwards";
@@ -158,9 +160,18 @@ public final class HttpConstants {
     public static final String HEADER_WARNING = "Warning";
     public static final String HEADER_WWW_AUTHENTICATE = "WWW-Authenticate";
 
+    public static final String CONTENT_TYPE_JSON = "application/json";
     public static final String CONTENT_TYPE_FORM = "application/x-www-form-urlencoded";
     public static final String CONTENT_TYPE_MULTIPART = "multipart/form-data";
+    public static final String CONTENT_TYPE_MULTIPART_BYTERANGES = "multipart/byteranges";
     public static final String TRANSFERT_ENCODING_CHUNKED = "chunked";
+    public static final String CONTENT_ENCODING_GZIP = "gzip";
+    public static final String CONTENT_ENCODING_DEFLATE = "deflate";
+    public static final String CONTENT_ENCODING_IDENTITY = "identity";
+    public static final String CONNECTION_CLOSE = "close";
+    public static final String CONNECTION_KEEP_ALIVE = "keep-alive";
+    public static final String ACCEPT_RANGES_BYTES = "bytes";
+    public static final String ACCEPT_RANGES_NONE = "none";
 
     public static final String AUTH_BASIC = "Basic";
     public static final String AUTH_NTLM = "NTLM";
@@ -176,6 +187,10 @@ public final class HttpConstants {
     public static final String STATUS_MESSAGE_201_CREATED = "CREATED";
     public static final int STATUS_CODE_202_ACCEPTED = 202;
     public static final String STATUS_MESSAGE_202_ACCEPTED = "ACCEPTED";
+    public static final int STATUS_CODE_204_NO_CONTENT = 204;
+    public static final String STATUS_MESSAGE_204_NO_CONTENT = "NO CONTENT";
+    public static final int STATUS_CODE_206_PARTIAL_CONTENT = 206;
+    public static final String STATUS_MESSAGE_206_PARTIAL_CONTENT = "PARTIAL CONTENT";
 
     public static final int STATUS_CODE_300_MULTIPLE_CHOICES = 300;
     public static final String STATUS_MESSAGE_300_MULTIPLE_CHOICES = "MULTIPLE CHOICES";
@@ -192,11 +207,19 @@ public final class HttpConstants {
     public static final String STATUS_MESSAGE_403_FORBIDDEN = "FORBIDDEN";
     public static final int STATUS_CODE_404_NOT_FOUND = 404;
     public static final String STATUS_MESSAGE_404_NOT_FOUND = "NOT FOUND";
+    public static final int STATUS_CODE_405_METHOD_NOT_ALLOWED = 405;
+    public static final String STATUS_MESSAGE_405_METHOD_NOT_ALLOWED = "METHOD NOT ALLOWED";
     public static final int STATUS_CODE_407_PROXY_AUTHENTICATION_REQUIRED = 407;
     public static final String STATUS_MESSAGE_407_PROXY_AUTHENTICATION_REQUIRED = "PROXY AUTHENTICATION REQUIRED";
     public static final int STATUS_CODE_410_GONE = 410;
     public static final String STATUS_MESSAGE_410_GONE = "GONE";
+    public static final int STATUS_CODE_416_RANGE_NOT_SATISFIABLE = 416;
+    public static final String STATUS_MESSAGE_416_RANGE_NOT_SATISFIABLE = "RANGE NOT SATISFIABLE";
 
     public static final int STATUS_CODE_500_INTERNAL_SERVER_ERROR = 500;
     public static final String STATUS_MESSAGE_500_INTERNAL_SERVER_ERROR = "INTERNAL SERVER ERROR";
+    public static final int STATUS_CODE_501_NOT_IMPLEMENTED = 501;
+    public static final String STATUS_MESSAGE_501_NOT_IMPLEMENTED = "NOT IMPLEMENTED";
+    public static final int STATUS_CODE_503_SERVICE_UNAVAILABLE = 503;
+    public static final String STATUS_MESSAGE_503_SERVICE_UNAVAILABLE = "SERVICE UNAVAILABLE";
 }
@@ -0,0 +1,68 @@
+package com.github.raphcal.localserver;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Value of the "Date" header, formatted at most once per second and shared by
+ * every response.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class HttpDate {
+
+    /**
+     * IMF-fixdate of RFC 7231. Unlike RFC_1123_DATE_TIME, the day always has
+     * two digits.
+     */
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private static volatile HttpDate current = new HttpDate(System.currentTimeMillis() / 1000);
+
+    private final long second;
+    private final String value;
+    private final byte[] bytes;
+
+    private HttpDate(long second) {
+        this.second = second;
+        this.value = FORMATTER.format(Instant.ofEpochSecond(second));
+        this.bytes = value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the current date, formatted for the "Date" header.
+     * <p>
+     * The value is formatted again by the first call of each second. Threads
+     * racing on a new second may format it more than once, which is harmless.
+     *
+     * @return The current date.
+     */
+    static String now() {
+        final long second = System.currentTimeMillis() / 1000;
+        HttpDate date = current;
+        if (date.second != second) {
+            date = new HttpDate(second);
+            current = date;
+        }
+        return date.value;
+    }
+
+    /**
+     * Returns the ASCII bytes of the given value if it is the date returned
+     * by {@link #now()}.
+     *
+     * @param value Value of a header.
+     * @return The bytes of the value, or <code>null</code> if it is not the
+     * current date.
+     */
+    static byte[] bytesOf(String value) {
+        final HttpDate date = current;
+        return date.value == value ? date.bytes : null;
+    }
+
+}
@@ -3,7 +3,6 @@ package com.github.raphcal.localserver;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
@@ -22,13 +21,57 @@ public class HttpHandlerAdapter implements HttpHandler {
      */
     private final HttpRequestHandler servlet;
 
+    /**
+     * Options of the server or <code>null</code>.
+     */
+    private final ServerConfiguration configuration;
+
+    /**
+     * Counters updated by this adapter or <code>null</code>.
+     */
+    private final ServerMetrics metrics;
+
+    /**
+     * Listener receiving the timings of each request or <code>null</code>.
+     */
+    private final ExchangeListener listener;
+
     /**
      * Creates a new adapter for the given servlet.
      *
      * @param servlet Servlet to adapt into an HttpHandler.
      */
     public HttpHandlerAdapter(HttpRequestHandler servlet) {
+        this(servlet, null);
+    }
+
+    /**
+     * Creates a new adapter for the given servlet, applying the response
+     * options of the given configuration, like compression, and giving the
+     * timings of each request to its exchange listener.
+     *
+     * @param servlet Servlet to adapt into an HttpHandler.
+     * @param configuration Options of the server or <code>null</code>.
+     */
+    public HttpHandlerAdapter(HttpRequestHandler servlet, ServerConfiguration configuration) {
+        this(servlet, configuration, null);
+    }
+
+    /**
+     * Creates a new adapter for the given servlet, counting the requests,
+     * their status codes, their latencies and the bytes of their bodies in
+     * the given metrics. Connections and the bytes of the heads are not known
+     * by an <code>HttpHandler</code> and are not counted.
+     *
+     * @param servlet Servlet to adapt into an HttpHandler.
+     * @param configuration Options of the server or <code>null</code>.
+     * @param metrics Counters to update or <code>null</code>.
+     */
+    HttpHandlerAdapter(HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics) {
         this.servlet = servlet;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.listener = configuration != null ? configuration.getExchangeListener() : null;
     }
 
     /**
@@ -36,6 +79,10 @@ public class HttpHandlerAdapter implements HttpHandler {
      */
     @Override
     public void handle(HttpExchange exchange) throws IOException {
+        // The headers have been read by the exchange.
+        final ExchangeTimings timings = listener != null ? new ExchangeTimings() : null;
+        final boolean timed = metrics != null || timings != null;
+        final long start = timed ? System.nanoTime() : 0;
         final HttpRequest request = new HttpRequest();
         final HttpResponse response = new HttpResponse();
 
@@ -43,38 +90,104 @@ public class HttpHandlerAdapter implements HttpHandler {
         request.setTarget(exchange.getRequestURI().toString());
         request.setVersion(exchange.getProtocol());
         for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
-            request.setHeader(header.getKey(), String.join(";", header.getValue()));
-        }
-        try (BufferedInputStream bufferedInputStream = new BufferedInputStream(exchange.getRequestBody())) {
-            byte[] result = new byte[4096];
-            int index = 0;
-
-            final byte[] bytes = new byte[2048];
-            int read = bufferedInputStream.read(bytes, 0, bytes.length);
-            while (read != -1) {
-                if (index + read > result.length) {
-                    byte[] copy = new byte[Math.max(index + read * 2, result.length * 2)];
-                    System.arraycopy(result, 0, copy, 0, index);
-                    result = copy;
-                }
-                System.arraycopy(bytes, 0, result, index, read);
-                index += read;
-                read = bufferedInputStream.read(bytes, 0, bytes.length);
+            for (String value : header.getValue()) {
+                request.addHeader(header.getKey(), value);
             }
-
-            request.setContent(new String(result, request.getCharset()));
         }
+        // The body is read from the exchange only if the servlet asks for it.
+        request.setBodyStream(metrics != null
+                ? new CountingInputStream(exchange.getRequestBody(), metrics)
+                : exchange.getRequestBody());
 
-        servlet.handleRequest(request, response);
+        request.setConfiguration(configuration);
+
+        // Same defaults as the other implementations, except for the
+        // persistence of the connection, which is managed by the exchange.
+        response.configureDefaults();
+        response.removeHeader(HttpConstants.HEADER_CONNECTION);
+
+        final long handlerStart = timed ? System.nanoTime() : 0;
+        try {
+            servlet.handleRequest(request, response);
+        } catch (MalformedContentException e) {
+            ExchangeSupport.rejectMalformedContent(request, response, e);
+        } finally {
+            request.deleteParts();
+        }
+        if (timed) {
+            final long handlerEnd = System.nanoTime();
+            if (metrics != null) {
+                metrics.handlerTime(handlerEnd - handlerStart);
+            }
+            if (timings != null) {
+                timings.setHeadersComplete(start);
+                timings.setHandlerStart(handlerStart);
+                timings.setHandlerEnd(handlerEnd);
+            }
+        }
+        if (configuration != null && configuration.isCompressResponses()) {
+            Compression.compressResponse(request, response, configuration);
+        }
 
         final Headers responseHeaders = exchange.getResponseHeaders();
         for (Map.Entry<String, String> header : response.getHeaders()) {
-            responseHeaders.add(header.getKey(), header.getValue());
+            if (header.getValue() != null && !isFramingHeader(header.getKey())) {
+                responseHeaders.add(header.getKey(), header.getValue());
+            }
+        }
+        exchange.sendResponseHeaders(response.getStatusCode(), getResponseLength(response));
+        if (timings != null) {
+            timings.setFirstByteWritten(System.nanoTime());
         }
-        exchange.sendResponseHeaders(response.getStatusCode(), response.getContentLength());
-        try (OutputStream outputStream = exchange.getResponseBody()) {
-            outputStream.write(response.getContentBuilder().toByteArray());
+        try (OutputStream outputStream = metrics != null
+                ? new CountingOutputStream(exchange.getResponseBody(), metrics)
+                : exchange.getResponseBody()) {
+            ExchangeSupport.writeBody(response, outputStream);
+        }
+        if (timed) {
+            final long end = System.nanoTime();
+            if (metrics != null) {
+                metrics.requestCompleted(response.getStatusCode());
+                metrics.requestLatency(end - start);
+            }
+            if (timings != null) {
+                timings.setLastByteWritten(end);
+                timings.setExchange(request, response);
+                ExchangeSupport.exchangeCompleted(listener, timings);
+            }
         }
     }
 
+    /**
+     * Returns the length to give to
+     * {@link HttpExchange#sendResponseHeaders(int, long)}: 0 to send the
+     * content in chunks and -1 if there is no content.
+     *
+     * @param response Response filled by the servlet.
+     * @return The length of the response for the exchange.
+     */
+    private static long getResponseLength(HttpResponse response) {
+        final long length = response.getBody() != null
+                ? response.getBody().getLength()
+                : response.getContentBuilder().size();
+        if (length < 0) {
+            return 0;
+        } else if (length == 0) {
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * Indicates if the given header is set by the exchange itself from the
+     * length of the response.
+     *
+     * @param name Name of the header.
+     * @return <code>true</code> for "Content-Length" and "Transfer-Encoding".
+     */
+    private static boolean isFramingHeader(String name) {
+        return HttpConstants.HEADER_CONTENT_LENGTH.equalsIgnoreCase(name)
+                || HttpConstants.HEADER_TRANSFER_ENCODING.equalsIgnoreCase(name);
+    }
+
 }
@@ -1,13 +1,15 @@
 package com.github.raphcal.localserver;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,9 +20,38 @@ import java.util.Set;
  */
 public class HttpRequest extends AbstractHttpMessage {
 
+    private static final int BODY_CHUNK_SIZE = 8192;
+
     private String method;
     private String target;
-    private HashMap<String, String> parameterMap;
+    private ParameterIndex parameters;
+
+    /**
+     * Names of the parameters captured from the path by a {@link Router} or
+     * <code>null</code>.
+     */
+    private String[] pathParameterNames;
+
+    /**
+     * Start and end indexes in the target of each captured parameter.
+     */
+    private int[] pathParameterBounds;
+
+    /**
+     * Flux lisant le contenu depuis la connexion ou <code>null</code> si le
+     * contenu a déjà été reçu.
+     */
+    private InputStream bodyStream;
+
+    /**
+     * Parts of a multipart body, once read.
+     */
+    private List<Part> parts;
+
+    /**
+     * Options of the server or <code>null</code> for the default ones.
+     */
+    private ServerConfiguration configuration;
 
     /**
      * Réinitialise la requête avec des valeurs par défaut :<ul>
@@ -50,6 +81,9 @@ public class HttpRequest extends AbstractHttpMessage {
      */
     public void setTarget(String target) {
         this.target = target;
+        this.pathParameterNames = null;
+        this.pathParameterBounds = null;
+        this.parameters = null;
     }
 
     /**
@@ -79,6 +113,56 @@ public class HttpRequest extends AbstractHttpMessage {
         return method;
     }
 
+    /**
+     * Returns a parameter captured from the path by the route of a
+     * {@link Router}, percent-decoded. The rest of the path matched by a
+     * <code>*</code> wildcard is named <code>"*"</code>.
+     *
+     * @param name Name of the parameter, as given in the route.
+     * @return The value of the parameter or <code>null</code> if the route
+     * does not define it.
+     */
+    public String getPathParameter(String name) {
+        if (pathParameterNames == null) {
+            return null;
+        }
+        for (int index = 0; index < pathParameterNames.length; index++) {
+            if (pathParameterNames[index].equals(name)) {
+                return PercentDecoder.decode(target, pathParameterBounds[index * 2], pathParameterBounds[index * 2 + 1], false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the parameters captured from the path by the route of a
+     * {@link Router}, percent-decoded, in the order of the route.
+     *
+     * @return An unmodifiable map, empty if no parameter was captured.
+     */
+    public Map<String, String> getPathParameters() {
+        if (pathParameterNames == null) {
+            return Collections.emptyMap();
+        }
+        final LinkedHashMap<String, String> parameters = new LinkedHashMap<String, String>();
+        for (int index = 0; index < pathParameterNames.length; index++) {
+            parameters.put(pathParameterNames[index],
+                    PercentDecoder.decode(target, pathParameterBounds[index * 2], pathParameterBounds[index * 2 + 1], false));
+        }
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    /**
+     * Defines the parameters captured from the target of this request.
+     *
+     * @param names Names of the parameters.
+     * @param bounds Start and end indexes in the target of each parameter.
+     */
+    void setPathParameters(String[] names, int[] bounds) {
+        this.pathParameterNames = names;
+        this.pathParameterBounds = bounds;
+    }
+
     /**
      * Récupère la ligne d'en-tête de la requête.
      *
@@ -90,219 +174,192 @@ public class HttpRequest extends AbstractHttpMessage {
     }
 
     /**
-     * Récupère la valeur d'un paramètre.
+     * Récupère la valeur d'un paramètre, donné par la chaîne de requête ou par
+     * un formulaire en contenu.
+     * <p>
+     * Les paramètres sont repérés au premier appel et chaque valeur n'est
+     * décodée qu'à sa lecture. Si un paramètre est donné plusieurs fois, la
+     * première valeur est renvoyée : la chaîne de requête passe avant le
+     * contenu.
      *
      * @param name Nom du paramètre à récupérer.
      * @return Valeur associée au paramètre ou <code>null</code> s'il n'est pas
      * déclaré.
+     * @throws IllegalStateException Si le contenu ne peut pas être lu. Le
+     * serveur répond "400 BAD REQUEST" si le contenu est mal formé ou tronqué.
+     * @see #getParameterValues(java.lang.String)
      */
     public String getParameter(String name) {
-        String value = null;
-
-        if (HttpConstants.METHOD_POST.equalsIgnoreCase(method)) {
-
-            if (parameterMap == null) {
-                buildParameterMap();
-            }
+        return getParameterIndex().get(name);
+    }
 
-            value = parameterMap.get(name);
-        }
+    /**
+     * Returns every value of the given parameter, from the query string then
+     * from a form content.
+     *
+     * @param name Name of the parameter.
+     * @return The values, an empty list if the parameter is not given.
+     */
+    public List<String> getParameterValues(String name) {
+        return getParameterIndex().getAll(name);
+    }
 
-        return value;
+    /**
+     * Returns the names of the parameters, in order and without duplicates.
+     *
+     * @return The names of the parameters.
+     */
+    public Set<String> getParameterNames() {
+        return getParameterIndex().getNames();
     }
 
     /**
-     * Récupère tous les paramètres presents dans la requête.
+     * Récupère tous les paramètres presents dans la requête. Un paramètre
+     * donné plusieurs fois apparaît dans plusieurs entrées.
      *
      * @return L'ensemble des paramètres.
      */
     public Set<Map.Entry<String, String>> getParameters() {
-
-        if (parameterMap == null) {
-            buildParameterMap();
-        }
-
-        if (parameterMap != null) {
-            return parameterMap.entrySet();
-        } else {
-            return null;
-        }
+        return getParameterIndex().entrySet();
     }
 
     /**
-     * Demande la construction de la table des paramètres.
+     * Locates the parameters of the query string and of a form content, on
+     * the first call.
+     *
+     * @return The parameters.
      */
-    private void buildParameterMap() {
-
-        final HashMap<String, String> map = new HashMap<String, String>();
+    private ParameterIndex getParameterIndex() {
+        if (parameters == null) {
+            final ParameterIndex index = new ParameterIndex();
+            final int queryStart = target != null ? target.indexOf('?') : -1;
+            if (queryStart >= 0) {
+                int queryEnd = target.indexOf('#', queryStart);
+                if (queryEnd < 0) {
+                    queryEnd = target.length();
+                }
+                index.addEncoded(target, queryStart + 1, queryEnd, StandardCharsets.UTF_8);
+            }
 
-        if (HttpConstants.CONTENT_TYPE_FORM.equals(getContentType())) {
-            parseURLEncodedForm(map);
-        } else if (HttpConstants.CONTENT_TYPE_MULTIPART.equals(getContentType())) {
-            parseMultipartForm(map);
+            if (HttpConstants.CONTENT_TYPE_FORM.equalsIgnoreCase(getContentType())) {
+                parseURLEncodedForm(index);
+            } else if (HttpConstants.CONTENT_TYPE_MULTIPART.equalsIgnoreCase(getContentType())) {
+                parseMultipartForm(index);
+            }
+            parameters = index;
         }
-
-        parameterMap = map;
+        return parameters;
     }
 
     /**
-     * Parse le contenu d'une requête au format Multipart.
+     * Parse le contenu d'une requête au format Multipart. Seuls les champs
+     * sont ajoutés à la table, les fichiers sont donnés par
+     * {@link #getParts()}.
      *
-     * @param map Table contenant le résultat.
+     * @param index Table contenant le résultat.
      */
-    private void parseMultipartForm(HashMap<String, String> map) {
-
-        // Recherche du délimiteur
-        final String boundary = getFormBoundary();
-        if (boundary == null) {
-            throw new IllegalStateException("Pas de délimiteur.");
-        }
-
-        // Récupération du contenu
-        final String content = getContent();
-        final char[] characters = content.toCharArray();
-        boolean done = false;
-
-        int index = 0;
-
-        while (!done) {
-
-            if (characters[index] == '-' && characters[index + 1] == '-') {
-                // Début d'un délimiteur
-                index += 2;
-
-                if (content.startsWith(boundary, index)) {
-                    // Il s'agit d'un délimiteur
-                    index += boundary.length();
-
-                    // Vérifie s'il s'agit du délimiteur final
-                    if (!(characters[index] == '-' && characters[index + 1] == '-')) {
-
-                        // Lecture des données d'en-tête
-                        final HashMap<String, String> fieldHeaders = new HashMap<String, String>();
-                        boolean headers = true;
-
-                        // Buffer
-                        final StringBuilder stringBuilder = new StringBuilder();
-                        String currentHeader = null;
-
-                        // Etat
-                        boolean parsingHeaderName = true;
-                        boolean parsing = false;
-
-                        // Nombre de retours à la ligne (permet de déterminer la
-                        // fin des en-têtes).
-                        int newLineCount = 0;
-
-                        while (headers) {
-                            // Lecture des en-têtes
-
-                            if (index < characters.length) {
-                                final char c = characters[index];
-
-                                if (parsingHeaderName) {
-                                    // Lecture du nom de l'en-tête
-                                    if (Character.isWhitespace(c) || c == ':') {
-                                        if (parsing && c == ':') {
-                                            currentHeader = stringBuilder.toString();
-                                            parsingHeaderName = false;
-
-                                            stringBuilder.setLength(0);
-                                            parsing = false;
-                                        }
-
-                                    } else {
-                                        // Fin de l'en-tête
-                                        stringBuilder.append(c);
-                                        parsing = true;
-                                    }
-
-                                } else {
-                                    // Lecture de la valeur
-                                    if (c == '\r' || c == '\n') {
-                                        if (parsing) {
-                                            fieldHeaders.put(currentHeader, stringBuilder.toString());
-                                            parsingHeaderName = true;
-
-                                            currentHeader = null;
-                                            stringBuilder.setLength(0);
-                                            parsing = false;
-                                        }
-
-                                    } else if (parsing || c != ' ') {
-                                        // Valeur de l'en-tête
-                                        stringBuilder.append(c);
-                                        parsing = true;
-                                    }
-                                }
-
-                                // Comptage des sauts de lignes
-                                if (c == '\n') {
-                                    newLineCount++;
-                                } else if (c != '\r') {
-                                    newLineCount = 0;
-                                }
-
-                                if (newLineCount >= 2) {
-                                    headers = false;
-                                }
-
-                                index++;
-
-                            } else {
-                                headers = false;
-                            }
-                        }
-
-                        // Récupération du contenu
-                        final int contentEnd = content.indexOf("--" + boundary, index);
-                        final String value = content.substring(index, contentEnd).trim();
-
-                        final String contentDisposition = fieldHeaders.get(HttpConstants.HEADER_CONTENT_DISPOSITION);
-                        if (contentDisposition != null) {
-                            // Ajout de la valeur
-                            final Map<String, String> headerValueMap = parseHeaderValue(contentDisposition);
-                            map.put(headerValueMap.get("name"), value);
-                        }
-
-                        index = contentEnd;
-
-                    } else {
-                        done = true;
-                    }
-
-                } else {
-                    done = true;
+    private void parseMultipartForm(ParameterIndex index) {
+        try {
+            for (final Part part : getParts()) {
+                if (part.getName() != null && part.getFileName() == null) {
+                    index.add(part.getName(), part.getString());
                 }
+            }
+        } catch (MalformedRequestException | EOFException ex) {
+            throw new MalformedContentException("Malformed request body", ex);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read the request body", ex);
+        }
+    }
 
+    /**
+     * Returns the parts of a <code>multipart/form-data</code> body, read on
+     * the first call.
+     * <p>
+     * The body is parsed while it is read, without being kept in memory as a
+     * whole: parts larger than
+     * {@link ServerConfiguration#getMultipartMemoryThreshold()} are written to
+     * temporary files, deleted once the servlet has returned. When the server
+     * streams request bodies, the parts are read from the connection.
+     *
+     * @return The parts, in the order of the body. The list is empty if the
+     * body is not multipart.
+     * @throws IOException If the body cannot be read or is malformed.
+     * @see ServerConfiguration#setStreamRequestBodies(boolean)
+     */
+    public List<Part> getParts() throws IOException {
+        if (parts == null) {
+            if (!HttpConstants.CONTENT_TYPE_MULTIPART.equalsIgnoreCase(getContentType())) {
+                parts = Collections.emptyList();
             } else {
-                done = true;
+                final String boundary = getFormBoundary();
+                if (boundary == null || boundary.isEmpty()) {
+                    throw new MalformedRequestException("Multipart body without boundary");
+                }
+                final InputStream inputStream = getInputStream();
+                bodyStream = null;
+                final MultipartParser parser = configuration != null
+                        ? new MultipartParser(inputStream, boundary, configuration.getMultipartMemoryThreshold(), configuration.getMultipartDirectory())
+                        : new MultipartParser(inputStream, boundary, ServerConfiguration.DEFAULT_MULTIPART_MEMORY_THRESHOLD, null);
+                parts = Collections.unmodifiableList(parser.parse());
             }
         }
+        return parts;
     }
 
     /**
-     * Parse le contenu d'une requête au format URLEncoded.
+     * Returns the first part of a <code>multipart/form-data</code> body with
+     * the given name.
      *
-     * @param map Table contenant le résultat.
+     * @param name Name of the form field.
+     * @return The part or <code>null</code> if there is none.
+     * @throws IOException If the body cannot be read or is malformed.
+     * @see #getParts()
      */
-    private void parseURLEncodedForm(HashMap<String, String> map) {
-
-        final String content = getContent();
-        final String charset = "UTF-8";
-
-        final String[] items = content.split("&");
-        for (final String item : items) {
-            final String[] parts = item.split("=");
-            try {
-                map.put(URLDecoder.decode(parts[0], charset), URLDecoder.decode(parts[1], charset));
+    public Part getPart(String name) throws IOException {
+        for (final Part part : getParts()) {
+            if (name.equals(part.getName())) {
+                return part;
+            }
+        }
+        return null;
+    }
 
-            } catch (UnsupportedEncodingException ex) {
-                throw new IllegalStateException(ex);
+    /**
+     * Deletes the temporary files of the parts, once the servlet has
+     * returned.
+     */
+    void deleteParts() {
+        if (parts != null) {
+            for (final Part part : parts) {
+                part.delete();
             }
         }
     }
 
+    /**
+     * Defines the options of the server which received this request.
+     *
+     * @param configuration Options of the server.
+     */
+    void setConfiguration(ServerConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Parse le contenu d'une requête au format URLEncoded. Les octets sont
+     * décodés avec l'encodage donné par l'en-tête "Content-Type", UTF-8 par
+     * défaut.
+     *
+     * @param index Table contenant le résultat.
+     */
+    private void parseURLEncodedForm(ParameterIndex index) {
+        receiveBody();
+        final String content = getRawContent();
+        final Charset charset = getDeclaredCharset();
+        index.addEncoded(content, 0, content.length(), charset != null ? charset : StandardCharsets.UTF_8);
+    }
+
     @Override
     public String toString() {
         final StringBuilder request = new StringBuilder();
@@ -319,13 +376,19 @@ public class HttpRequest extends AbstractHttpMessage {
 
     /**
      * Récupère un flux permettant de lire le contenu de la requête.
+     * <p>
+     * Si le serveur lit les contenus au fil de l'eau, le flux renvoyé lit
+     * directement la connexion et ne peut être lu qu'une fois. Sinon, il lit
+     * le contenu déjà reçu.
      *
      * @return Un flux permettant de lire le contenu de la requête.
+     * @see ServerConfiguration#setStreamRequestBodies(boolean)
      */
     public InputStream getInputStream() {
-
-        final byte[] bytes = getContentBuilder().toByteArray();
-        return new ByteArrayInputStream(bytes);
+        if (bodyStream != null) {
+            return bodyStream;
+        }
+        return getContentInputStream();
     }
 
     /**
@@ -340,4 +403,51 @@ public class HttpRequest extends AbstractHttpMessage {
 
         return new InputStreamReader(getInputStream(), getCharset());
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Si le contenu est lu au fil de l'eau, les octets pas encore lus depuis
+     * {@link #getInputStream()} sont d'abord reçus et gardés en mémoire.
+     *
+     * @throws IllegalStateException Si le contenu ne peut pas être lu. Le
+     * serveur répond "400 BAD REQUEST" si le contenu est tronqué.
+     */
+    @Override
+    public String getContent() {
+        receiveBody();
+        return super.getContent();
+    }
+
+    /**
+     * Défini le flux permettant de lire le contenu depuis la connexion.
+     *
+     * @param bodyStream Flux lisant le contenu.
+     */
+    void setBodyStream(InputStream bodyStream) {
+        this.bodyStream = bodyStream;
+    }
+
+    /**
+     * Reads the rest of the streamed body, if any, into the content.
+     */
+    private void receiveBody() {
+        if (bodyStream == null) {
+            return;
+        }
+        final InputStream inputStream = bodyStream;
+        bodyStream = null;
+        try {
+            final byte[] bytes = new byte[BODY_CHUNK_SIZE];
+            int read = inputStream.read(bytes, 0, bytes.length);
+            while (read != -1) {
+                appendContent(bytes, 0, read, false);
+                read = inputStream.read(bytes, 0, bytes.length);
+            }
+        } catch (EOFException ex) {
+            throw new MalformedContentException("Truncated request body", ex);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read the request body", ex);
+        }
+    }
 }
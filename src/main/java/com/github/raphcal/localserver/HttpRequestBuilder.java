@@ -1,183 +1,459 @@
 package com.github.raphcal.localserver;
 
 import java.io.ByteArrayOutputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Gère la construction de requêtes HTTP à partir d'une connexion du serveur
  * local.
+ * <p>
+ * The header block is copied in bulk from the buffers given to
+ * {@link #feedBytes(java.nio.ByteBuffer)} until an empty line is found. It is
+ * then parsed in a single pass: the method, the version and the common header
+ * names are taken from the constants of {@link HttpConstants} and header
+ * values are only decoded when read.
+ * <p>
+ * Bodies are framed by the "Content-Length" header only. Requests with a
+ * "Transfer-Encoding" header are rejected, as are conflicting lengths.
  *
  * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
  */
 class HttpRequestBuilder {
 
+    /**
+     * Maximum size of the request line and headers.
+     */
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    private static final int INITIAL_HEAD_SIZE = 512;
+
+    private static final int BODY_CHUNK_SIZE = 8192;
+
+    private static final String[] METHODS = {
+        HttpConstants.METHOD_GET, HttpConstants.METHOD_POST, HttpConstants.METHOD_PUT,
+        HttpConstants.METHOD_HEAD, HttpConstants.METHOD_DELETE, HttpConstants.METHOD_OPTIONS,
+        HttpConstants.METHOD_TRACE, HttpConstants.METHOD_CONNECT, HttpConstants.METHOD_PATCH
+    };
+
+    private static final String[] VERSIONS = {
+        HttpConstants.VERSION_1_1, HttpConstants.VERSION_1_0
+    };
+
+    private static final String[] HEADER_NAMES = {
+        HttpConstants.HEADER_ACCEPT, HttpConstants.HEADER_ACCEPT_CHARSET,
+        HttpConstants.HEADER_ACCEPT_ENCODING, HttpConstants.HEADER_ACCEPT_LANGUAGE,
+        HttpConstants.HEADER_AUTHORIZATION, HttpConstants.HEADER_CACHE_CONTROL,
+        HttpConstants.HEADER_CONNECTION, HttpConstants.HEADER_CONTENT_DISPOSITION,
+        HttpConstants.HEADER_CONTENT_ENCODING, HttpConstants.HEADER_CONTENT_LENGTH,
+        HttpConstants.HEADER_CONTENT_TYPE, HttpConstants.HEADER_COOKIE,
+        HttpConstants.HEADER_EXPECT, HttpConstants.HEADER_HOST,
+        HttpConstants.HEADER_IF_MATCH, HttpConstants.HEADER_IF_MODIFIED_SINCE,
+        HttpConstants.HEADER_IF_NONE_MATCH, HttpConstants.HEADER_IF_RANGE,
+        HttpConstants.HEADER_IF_UNMODIFIED_SINCE, HttpConstants.HEADER_KEEP_ALIVE,
+        HttpConstants.HEADER_PRAGMA, HttpConstants.HEADER_RANGE,
+        HttpConstants.HEADER_REFERER, HttpConstants.HEADER_TE,
+        HttpConstants.HEADER_TRANSFER_ENCODING, HttpConstants.HEADER_UPGRADE,
+        HttpConstants.HEADER_USER_AGENT, HttpConstants.HEADER_VIA
+    };
+
+    /**
+     * Hashes of {@link #HEADER_NAMES}, computed once.
+     */
+    private static final int[] HEADER_HASHES = new int[HEADER_NAMES.length];
+
+    static {
+        for (int index = 0; index < HEADER_NAMES.length; index++) {
+            HEADER_HASHES[index] = HeaderTable.hash(HEADER_NAMES[index]);
+        }
+    }
+
     private static enum State {
-        METHOD,
-        TARGET,
-        VERSION,
-        HEADER_NAME,
-        HEADER_VALUE,
+        HEAD,
         BODY,
         END;
     }
 
-    private State state = State.METHOD;
-    private boolean parsing = false;
+    private State state = State.HEAD;
 
-    private HttpRequest request = new HttpRequest();
+    /**
+     * <code>true</code> if the body is read by the servlet instead of this
+     * builder.
+     */
+    private final boolean streamBody;
 
-    private String currentHeader;
-    private StringBuilder stringBuilder = new StringBuilder();
-    private ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-    private long length;
+    /**
+     * Request being built, created once its headers are parsed.
+     */
+    private HttpRequest request;
 
-    private int newLineCount;
+    /**
+     * Request line and headers. The array is given to the request, whose
+     * header values are decoded from it, and is allocated again for the next
+     * request.
+     */
+    private byte[] head;
+    private int headLength;
 
     /**
-     * Construit la requête à partir des données du buffer. Il est possible
-     * d'appeler plusieurs fois cette méthode successivement pour construire la
-     * requête.
-     *
-     * @param buffer Données à lire.
-     * @throws UnsupportedEncodingException Si l'encodage du message est
-     * inconnu.
+     * Index from which the end of the headers is searched.
      */
-    public void feedBytes(ByteBuffer buffer) throws UnsupportedEncodingException {
+    private int scanIndex;
 
-        while (buffer.hasRemaining() && state != State.END) {
-            // Il reste des données dans le buffer.
+    private long contentLength;
+    private long length;
 
-            switch (state) {
-                case METHOD:
-                case TARGET:
-                case VERSION: {
-                    // Lecture de l'en-tête HTTP
+    /**
+     * <code>true</code> once a "Content-Length" header has been read.
+     */
+    private boolean contentLengthGiven;
 
-                    final char c = (char) buffer.get();
+    /**
+     * <code>true</code> if the request has a "Transfer-Encoding" header.
+     */
+    private boolean transferEncodingGiven;
 
-                    if (Character.isWhitespace(c)) {
-                        if (parsing) {
-                            // Fin du champ actuel
-                            if (state == State.METHOD) {
-                                request.setMethod(stringBuilder.toString());
-                                state = State.TARGET;
+    /**
+     * Bytes copied from a direct buffer to the content of the request, kept
+     * between requests.
+     */
+    private byte[] chunk;
 
-                            } else if (state == State.TARGET) {
-                                request.setTarget(stringBuilder.toString());
-                                state = State.VERSION;
+    /**
+     * Creates a builder reading the whole request, body included.
+     */
+    public HttpRequestBuilder() {
+        this(false);
+    }
 
-                            } else if (state == State.VERSION) {
-                                request.setVersion(stringBuilder.toString());
-                                state = State.HEADER_NAME;
-                            }
+    /**
+     * Creates a new builder.
+     *
+     * @param streamBody <code>true</code> to consider the request as ready
+     * once its headers are read. The body is then left in the buffer and must
+     * be read by the caller.
+     */
+    public HttpRequestBuilder(boolean streamBody) {
+        this.streamBody = streamBody;
+    }
 
-                            // Remise à zéro des caches.
-                            stringBuilder.setLength(0);
-                            parsing = false;
-                        }
+    /**
+     * Construit la requête à partir des données du buffer. Il est possible
+     * d'appeler plusieurs fois cette méthode successivement pour construire la
+     * requête.
+     * <p>
+     * Les octets suivant la fin de la requête ne sont pas lus et restent dans
+     * le buffer.
+     *
+     * @param buffer Données à lire.
+     * @throws MalformedRequestException Si la requête est invalide.
+     */
+    public void feedBytes(ByteBuffer buffer) throws MalformedRequestException {
+        if (state == State.HEAD) {
+            feedHead(buffer);
+        }
+        if (state == State.BODY) {
+            feedBody(buffer);
+        }
+    }
 
-                    } else {
-                        // Nom
-                        stringBuilder.append(c);
-                        parsing = true;
-                    }
+    private void feedHead(ByteBuffer buffer) throws MalformedRequestException {
+        if (headLength == 0) {
+            // Empty lines before the request line are ignored.
+            while (buffer.hasRemaining() && isLineBreak(buffer.get(buffer.position()))) {
+                buffer.get();
+            }
+        }
 
-                    // Comptage des sauts de ligne.
-                    countNewLines(c);
+        final int count = Math.min(buffer.remaining(), MAX_HEAD_SIZE - headLength);
+        if (count == 0) {
+            if (buffer.hasRemaining()) {
+                throw new MalformedRequestException("Request headers are too large");
+            }
+            return;
+        }
+        if (head == null) {
+            head = new byte[INITIAL_HEAD_SIZE];
+        }
+        if (headLength + count > head.length) {
+            head = Arrays.copyOf(head, Math.min(MAX_HEAD_SIZE, Math.max(head.length * 2, headLength + count)));
+        }
+        buffer.get(head, headLength, count);
+        headLength += count;
+
+        final int end = findEndOfHead();
+        if (end >= 0) {
+            // Bytes following the headers are given back to the buffer.
+            ((Buffer) buffer).position(buffer.position() - (headLength - end));
+            headLength = end;
+            parseHead();
+            state = streamBody ? State.END : State.BODY;
+        } else if (headLength == MAX_HEAD_SIZE) {
+            throw new MalformedRequestException("Request headers are too large");
+        }
+    }
 
+    /**
+     * Searches an empty line in the bytes received.
+     *
+     * @return The index following the empty line or -1 if the headers are
+     * not complete.
+     */
+    private int findEndOfHead() {
+        final byte[] bytes = head;
+        for (int index = scanIndex; index < headLength; index++) {
+            if (bytes[index] == '\n') {
+                if (index + 1 < headLength && bytes[index + 1] == '\n') {
+                    return index + 2;
                 }
-                break;
-
-                case HEADER_NAME: {
-                    // Lecture du nom d'un en-tête
-
-                    final char c = (char) buffer.get();
+                if (index + 2 < headLength && bytes[index + 1] == '\r' && bytes[index + 2] == '\n') {
+                    return index + 3;
+                }
+            }
+        }
+        // The last bytes may be the beginning of an empty line.
+        scanIndex = Math.max(scanIndex, headLength - 2);
+        return -1;
+    }
 
-                    if (Character.isWhitespace(c) || c == ':') {
-                        if (parsing && c == ':') {
-                            // Fin du nom de l'en-tête
-                            currentHeader = stringBuilder.toString();
-                            state = State.HEADER_VALUE;
+    private void parseHead() throws MalformedRequestException {
+        final byte[] bytes = head;
+        final HttpRequest request = getRequest();
 
-                            stringBuilder.setLength(0);
-                            parsing = false;
-                        }
+        // Ligne de requête : méthode, adresse et version.
+        int lineEnd = lineEnd(0);
+        int start = 0;
+        int space = indexOf(bytes, (byte) ' ', start, lineEnd);
+        if (space < 0) {
+            throw new MalformedRequestException("Invalid request line");
+        }
+        request.setMethod(toString(bytes, start, space, METHODS));
+
+        start = skipSpaces(bytes, space + 1, lineEnd);
+        space = indexOf(bytes, (byte) ' ', start, lineEnd);
+        if (space < 0) {
+            request.setTarget(toString(bytes, start, trimEnd(bytes, start, lineEnd), null));
+        } else {
+            request.setTarget(toString(bytes, start, space, null));
+            start = skipSpaces(bytes, space + 1, lineEnd);
+            request.setVersion(toString(bytes, start, trimEnd(bytes, start, lineEnd), VERSIONS));
+        }
 
-                    } else {
-                        // Nom de l'en-tête
-                        stringBuilder.append(c);
-                        parsing = true;
-                    }
+        // En-têtes
+        start = nextLine(lineEnd);
+        while (start < headLength) {
+            lineEnd = lineEnd(start);
+            final int end = trimEnd(bytes, start, lineEnd);
+            if (end == start) {
+                break;
+            }
+            final int colon = indexOf(bytes, (byte) ':', start, end);
+            if (colon > start) {
+                final int nameEnd = trimEnd(bytes, start, colon);
+                final int known = indexOfHeaderName(bytes, start, nameEnd);
+                final String name;
+                final int hash;
+                if (known >= 0) {
+                    name = HEADER_NAMES[known];
+                    hash = HEADER_HASHES[known];
+                } else {
+                    name = toString(bytes, start, nameEnd, null);
+                    hash = HeaderTable.hash(name);
+                }
+                final int valueStart = skipSpaces(bytes, colon + 1, end);
+                addHeader(name, hash, valueStart, end);
+            }
+            start = nextLine(lineEnd);
+        }
 
-                    // Comptage des sauts de ligne.
-                    countNewLines(c);
+        // The body would be framed differently by a proxy reading the
+        // transfer coding: the request is rejected instead of guessing.
+        if (transferEncodingGiven) {
+            if (contentLengthGiven) {
+                throw new MalformedRequestException("Both Content-Length and Transfer-Encoding are given");
+            }
+            throw new MalformedRequestException("Transfer-Encoding is not supported",
+                    HttpConstants.STATUS_CODE_501_NOT_IMPLEMENTED, HttpConstants.STATUS_MESSAGE_501_NOT_IMPLEMENTED);
+        }
+    }
 
-                    if (newLineCount >= 2) // Fin des en-têtes
-                    {
-                        state = State.BODY;
-                    }
+    private void addHeader(final String name, final int hash, final int start, final int end) throws MalformedRequestException {
+        final HttpRequest request = getRequest();
+        if (HttpConstants.HEADER_CONTENT_LENGTH == name) {
+            final long value = parseLength(head, start, end);
+            if (contentLengthGiven && value != contentLength) {
+                throw new MalformedRequestException("Conflicting Content-Length values");
+            }
+            contentLength = value;
+            contentLengthGiven = true;
+            request.addRawHeader(name, hash, head, start, end);
+        } else if (HttpConstants.HEADER_TRANSFER_ENCODING == name) {
+            transferEncodingGiven = true;
+            request.addRawHeader(name, hash, head, start, end);
+        } else if (HttpConstants.HEADER_CONTENT_TYPE == name) {
+            // Type and charset are needed immediately.
+            request.addHeader(name, toString(head, start, end, null));
+        } else {
+            request.addRawHeader(name, hash, head, start, end);
+        }
+    }
 
+    private void feedBody(ByteBuffer buffer) {
+        // Les octets suivants appartiennent à la requête suivante
+        // (pipelining) et restent dans le buffer.
+        final int count = (int) Math.min(buffer.remaining(), contentLength - length);
+        if (count > 0) {
+            final ByteArrayOutputStream content = getRequest().getContentBuilder();
+            if (buffer.hasArray()) {
+                content.write(buffer.array(), buffer.arrayOffset() + buffer.position(), count);
+                ((Buffer) buffer).position(buffer.position() + count);
+            } else {
+                if (chunk == null) {
+                    chunk = new byte[BODY_CHUNK_SIZE];
                 }
-                break;
-
-                case HEADER_VALUE: {
-                    // Lecture de la valeur d'un en-tête
+                int remaining = count;
+                while (remaining > 0) {
+                    final int read = Math.min(remaining, chunk.length);
+                    buffer.get(chunk, 0, read);
+                    content.write(chunk, 0, read);
+                    remaining -= read;
+                }
+            }
+            length += count;
+        }
 
-                    final char c = (char) buffer.get();
+        if (length >= contentLength) {
+            state = State.END;
+        }
+    }
 
-                    if (c == '\r' || c == '\n') {
-                        if (parsing) {
-                            // Fin de la valeur
-                            request.setHeader(currentHeader, stringBuilder.toString());
-                            state = State.HEADER_NAME;
+    private int lineEnd(int start) {
+        final int index = indexOf(head, (byte) '\n', start, headLength);
+        return index >= 0 ? index : headLength;
+    }
 
-                            currentHeader = null;
-                            stringBuilder.setLength(0);
-                            parsing = false;
-                        }
+    private static int nextLine(int lineEnd) {
+        return lineEnd + 1;
+    }
 
-                    } else if (parsing || c != ' ') {
-                        // Valeur de l'en-tête
-                        stringBuilder.append(c);
-                        parsing = true;
-                    }
+    private static boolean isLineBreak(byte b) {
+        return b == '\r' || b == '\n';
+    }
 
-                    // Comptage des sauts de ligne.
-                    countNewLines(c);
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
 
-                }
-                break;
+    private static int indexOf(byte[] bytes, byte value, int start, int end) {
+        for (int index = start; index < end; index++) {
+            if (bytes[index] == value) {
+                return index;
+            }
+        }
+        return -1;
+    }
 
-                case BODY:
-                    // Lecture du corps du message
+    private static int skipSpaces(byte[] bytes, int start, int end) {
+        while (start < end && isSpace(bytes[start])) {
+            start++;
+        }
+        return start;
+    }
 
-                    byteStream.write(buffer.get());
-                    length++;
-                    break;
+    private static int trimEnd(byte[] bytes, int start, int end) {
+        while (end > start && isSpace(bytes[end - 1])) {
+            end--;
+        }
+        return end;
+    }
 
-                default:
-                    break;
+    private static long parseLength(byte[] bytes, int start, int end) throws MalformedRequestException {
+        if (start == end) {
+            throw new MalformedRequestException("Empty Content-Length");
+        }
+        long value = 0;
+        for (int index = start; index < end; index++) {
+            final int digit = bytes[index] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new MalformedRequestException("Invalid Content-Length");
             }
+            value = value * 10 + digit;
         }
+        return value;
+    }
 
-        // Vérification du nombre d'octets lu pour déterminer si la requête
-        // est terminée.
-        if (state == State.BODY && length >= request.getContentLength()) {
-            final String charsetName = request.getCharset().displayName();
-            request.setContent(byteStream.toString(charsetName), false);
+    /**
+     * Returns the given bytes as a string. If they match one of the given
+     * constants, the constant is returned instead of a new string.
+     *
+     * @param bytes Bytes to decode.
+     * @param start Index of the first byte.
+     * @param end Index following the last byte.
+     * @param constants Known values or <code>null</code>.
+     * @return The decoded string.
+     */
+    private static String toString(byte[] bytes, int start, int end, String[] constants) {
+        if (constants != null) {
+            final int length = end - start;
+            for (final String constant : constants) {
+                if (constant.length() == length && matches(bytes, start, constant)) {
+                    return constant;
+                }
+            }
+        }
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
 
-            state = State.END;
+    /**
+     * Finds the well-known header name written in the given bytes, whatever
+     * its case.
+     *
+     * @return The index of the name in {@link #HEADER_NAMES} or -1.
+     */
+    private static int indexOfHeaderName(byte[] bytes, int start, int end) {
+        final int length = end - start;
+        for (int index = 0; index < HEADER_NAMES.length; index++) {
+            final String constant = HEADER_NAMES[index];
+            if (constant.length() == length && matchesIgnoreCase(bytes, start, constant)) {
+                return index;
+            }
         }
+        return -1;
     }
 
-    private void countNewLines(final char c) {
+    private static boolean matchesIgnoreCase(byte[] bytes, int start, String constant) {
+        for (int index = 0; index < constant.length(); index++) {
+            final int b = bytes[start + index];
+            final char c = constant.charAt(index);
+            if (b != c) {
+                final int lower = b | 0x20;
+                if (lower < 'a' || lower > 'z' || lower != (c | 0x20)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
 
-        if (c == '\n') {
-            newLineCount++;
-        } else if (c != '\r') {
-            newLineCount = 0;
+    private static boolean matches(byte[] bytes, int start, String constant) {
+        for (int index = 0; index < constant.length(); index++) {
+            if (bytes[start + index] != constant.charAt(index)) {
+                return false;
+            }
         }
+        return true;
+    }
+
+    /**
+     * Returns the length of the body given by the "Content-Length" header.
+     *
+     * @return The length of the body or 0 if the request has no body.
+     */
+    public long getContentLength() {
+        return contentLength;
     }
 
     /**
@@ -186,9 +462,40 @@ class HttpRequestBuilder {
      * @return La requête HTTP construite.
      */
     public HttpRequest getRequest() {
+        if (request == null) {
+            request = new HttpRequest();
+        }
         return request;
     }
 
+    /**
+     * Prépare ce builder pour la requête suivante de la même connexion. La
+     * requête précédente reste utilisable.
+     */
+    public void reset() {
+        if (state != State.HEAD) {
+            // The header values of the previous request refer to these bytes.
+            head = null;
+        }
+        state = State.HEAD;
+        request = null;
+        headLength = 0;
+        scanIndex = 0;
+        contentLength = 0;
+        length = 0;
+        contentLengthGiven = false;
+        transferEncodingGiven = false;
+    }
+
+    /**
+     * Indicates if the request line and the headers have been parsed.
+     *
+     * @return <code>true</code> once the headers are read.
+     */
+    public boolean isHeadComplete() {
+        return state != State.HEAD;
+    }
+
     /**
      * Indique si la requête est prête.
      *
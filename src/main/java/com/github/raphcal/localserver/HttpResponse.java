@@ -1,14 +1,17 @@
 package com.github.raphcal.localserver;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,9 +53,11 @@ public class HttpResponse extends AbstractHttpMessage {
     private int statusCode = HttpConstants.STATUS_CODE_200_OK;
     private String statusMessage = HttpConstants.STATUS_MESSAGE_200_OK;
 
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US);
-
-    // TODO: Add a way to use an Inputstream or a Reader for the body.
+    /**
+     * Contenu lu depuis une source pendant l'envoi ou <code>null</code> si le
+     * contenu est en mémoire.
+     */
+    private ResponseBody body;
 
     /**
      * La réponse est initialisée avec les propriétés suivantes :
@@ -68,8 +73,8 @@ public class HttpResponse extends AbstractHttpMessage {
 
         clearHeaders();
         setContentType("text/html");
-        setHeader(HttpConstants.HEADER_CONNECTION, "close");
-        setHeader(HttpConstants.HEADER_DATE, dateFormat.format(new Date()));
+        setHeader(HttpConstants.HEADER_CONNECTION, HttpConstants.CONNECTION_CLOSE);
+        setHeader(HttpConstants.HEADER_DATE, HttpDate.now());
     }
 
     /**
@@ -216,6 +221,11 @@ public class HttpResponse extends AbstractHttpMessage {
         return getVersion() + ' ' + Integer.toString(statusCode) + ' ' + statusMessage;
     }
 
+    @Override
+    protected byte[] getEncodedFirstLine() {
+        return HeaderBytes.statusLine(getVersion(), statusCode, statusMessage);
+    }
+
     @Override
     public String toString() {
         final StringBuilder request = new StringBuilder();
@@ -230,23 +240,195 @@ public class HttpResponse extends AbstractHttpMessage {
         return request.toString();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Remplace aussi un contenu défini par un flux.
+     */
+    @Override
+    public void setContent(String content, boolean refresh) {
+        setBody(null);
+        super.setContent(content, refresh);
+    }
+
+    /**
+     * Défini le contenu à lire depuis le flux donné. Sa taille n'étant pas
+     * connue, il sera envoyé en morceaux ("Transfer-Encoding: chunked").
+     *
+     * @param inputStream Flux contenant le contenu. Il sera fermé après
+     * l'envoi.
+     * @see #setContentStream(java.io.InputStream, long)
+     */
+    public void setContentStream(InputStream inputStream) {
+        setContentStream(inputStream, -1);
+    }
+
+    /**
+     * Défini le contenu à lire depuis le flux donné.
+     * <p>
+     * Le flux est lu pendant l'envoi de la réponse : le contenu n'est jamais
+     * gardé en mémoire en entier. Si sa taille est inconnue, le contenu est
+     * envoyé en morceaux aux clients HTTP/1.1 et la connexion est fermée après
+     * l'envoi pour les clients HTTP/1.0.
+     *
+     * @param inputStream Flux contenant le contenu. Il sera fermé après
+     * l'envoi.
+     * @param length Taille du contenu en octets ou -1 si elle est inconnue.
+     */
+    public void setContentStream(InputStream inputStream, long length) {
+        setBody(ResponseBody.of(inputStream, length));
+    }
+
+    /**
+     * Défini le contenu à partir du buffer donné.
+     * <p>
+     * Les octets compris entre la position et la limite du buffer sont
+     * envoyés sans être copiés et le buffer lui-même n'est pas modifié : un
+     * même buffer peut donc être donné à plusieurs réponses à la fois. Les
+     * octets ne doivent pas changer avant l'envoi de toutes les réponses.
+     *
+     * @param buffer Contenu à envoyer.
+     */
+    public void setContentBuffer(ByteBuffer buffer) {
+        setBody(ResponseBody.of(buffer));
+    }
+
+    /**
+     * Défini le contenu à lire depuis le canal donné.
+     *
+     * @param channel Canal bloquant contenant le contenu. Il sera fermé après
+     * l'envoi.
+     * @param length Taille du contenu en octets ou -1 si elle est inconnue.
+     * @see #setContentStream(java.io.InputStream, long)
+     */
+    public void setContentChannel(ReadableByteChannel channel, long length) {
+        setBody(ResponseBody.of(channel, length));
+    }
+
+    /**
+     * Défini le fichier à envoyer comme contenu.
+     * <p>
+     * Le fichier n'est pas lu en mémoire : l'implémentation
+     * <code>LOCALSERVER</code> l'envoie avec
+     * <code>FileChannel.transferTo</code> et les autres implémentations le
+     * copient via un buffer direct.
+     *
+     * @param file Fichier à envoyer.
+     * @throws IOException Si le fichier ne peut pas être ouvert.
+     */
+    public void setContentFile(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            setContentFile(channel, 0, channel.size());
+        } catch (IOException | RuntimeException ex) {
+            try {
+                channel.close();
+            } catch (IOException closeException) {
+                ex.addSuppressed(closeException);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Défini la partie du fichier donné à envoyer comme contenu.
+     *
+     * @param channel Fichier ouvert en lecture. Il sera fermé après l'envoi.
+     * @param position Index du premier octet à envoyer.
+     * @param length Nombre d'octets à envoyer.
+     * @see #setContentFile(java.io.File)
+     */
+    public void setContentFile(FileChannel channel, long position, long length) {
+        setBody(ResponseBody.of(channel, position, length));
+    }
+
+    /**
+     * Défini l'objet produisant le contenu. Le contenu est envoyé en morceaux
+     * au fur et à mesure de son écriture.
+     * <p>
+     * Avec l'implémentation <code>LOCALSERVER</code>, l'objet est appelé sur
+     * le thread de traitement une fois la servlet terminée et bloque tant que
+     * le client ne lit pas assez vite. Sans threads de traitement, le contenu
+     * écrit est gardé en mémoire avant d'être envoyé.
+     *
+     * @param writer Objet écrivant le contenu.
+     */
+    public void setContentWriter(ContentWriter writer) {
+        setBody(ResponseBody.of(writer));
+    }
+
+    /**
+     * Récupère le contenu lu pendant l'envoi.
+     *
+     * @return Le contenu ou <code>null</code> si le contenu est en mémoire.
+     */
+    ResponseBody getBody() {
+        return body;
+    }
+
+    /**
+     * Défini le contenu lu pendant l'envoi. Le contenu en mémoire est vidé.
+     *
+     * @param body Contenu ou <code>null</code>.
+     */
+    void setBody(ResponseBody body) {
+        if (this.body != null && this.body != body) {
+            closeBody();
+        }
+        this.body = body;
+        if (body != null) {
+            getContentBuilder().reset();
+            if (body.getLength() >= 0) {
+                setHeader(HttpConstants.HEADER_CONTENT_LENGTH, Long.toString(body.getLength()));
+            } else {
+                removeHeader(HttpConstants.HEADER_CONTENT_LENGTH);
+            }
+        }
+    }
+
+    /**
+     * Remplace le contenu lu pendant l'envoi sans fermer le précédent, lorsque
+     * le nouveau contenu lit le précédent.
+     *
+     * @param body Nouveau contenu.
+     */
+    void replaceBody(ResponseBody body) {
+        this.body = null;
+        setBody(body);
+    }
+
+    /**
+     * Ferme le contenu lu pendant l'envoi, s'il y en a un.
+     */
+    void closeBody() {
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Unable to close the response body", ex);
+            }
+            body = null;
+        }
+    }
+
     /**
      * Récupère le flux de sortie de la réponse. Un appel à flush() ou à close()
      * valide les données écrites.
      *
      * @return un flux permettant d'écrire la réponse.
+     * @see #setContentWriter(ContentWriter)
      */
     public OutputStream getOutputStream() {
         return new ByteArrayOutputStream() {
 
             @Override
             public void close() throws IOException {
-                appendContent(toByteArray(), true);
+                flush();
             }
 
             @Override
             public void flush() throws IOException {
-                appendContent(toByteArray(), true);
+                appendContent(buf, 0, count, true);
                 reset();
             }
 
@@ -25,34 +25,38 @@ public abstract class HttpServlet implements HttpRequestHandler {
      */
     @Override
     public void handleRequest(final HttpRequest request, final HttpResponse response) {
-        final Method method = Method.valueOf(request.getMethod());
+        final String method = request.getMethod() != null ? request.getMethod() : "";
 
         try {
             switch (method) {
-                case GET:
+                case HttpConstants.METHOD_GET:
                     doGet(request, response);
                     break;
-                case POST:
+                case HttpConstants.METHOD_POST:
                     doPost(request, response);
                     break;
-                case HEAD:
+                case HttpConstants.METHOD_HEAD:
                     doHead(request, response);
                     break;
-                case OPTIONS:
+                case HttpConstants.METHOD_OPTIONS:
                     doOptions(request, response);
                     break;
-                case PUT:
+                case HttpConstants.METHOD_PUT:
                     doPut(request, response);
                     break;
-                case TRACE:
+                case HttpConstants.METHOD_TRACE:
                     doTrace(request, response);
                     break;
-                case DELETE:
+                case HttpConstants.METHOD_DELETE:
                     doDelete(request, response);
                     break;
+                case HttpConstants.METHOD_PATCH:
+                    doPatch(request, response);
+                    break;
                 default:
-                    response.setStatusCode(400);
-                    response.setStatusMessage("BAD REQUEST");
+                    // Méthode inconnue (CONNECT, extensions WebDAV, etc.).
+                    response.setStatusCode(HttpConstants.STATUS_CODE_501_NOT_IMPLEMENTED);
+                    response.setStatusMessage(HttpConstants.STATUS_MESSAGE_501_NOT_IMPLEMENTED);
                     break;
             }
         } catch (final Exception e) {
@@ -145,7 +149,14 @@ public abstract class HttpServlet implements HttpRequestHandler {
         // Pas d'action.
     }
 
-    private static enum Method {
-        GET, POST, HEAD, OPTIONS, PUT, TRACE, DELETE;
+    /**
+     * Gère les appels à la méthode PATCH.
+     *
+     * @param request Requête PATCH HTTP.
+     * @param response Réponse HTTP.
+     * @throws java.lang.Exception En cas d'erreur pendant le traitement de la requête.
+     */
+    public void doPatch(HttpRequest request, HttpResponse response) throws Exception {
+        // Pas d'action.
     }
 }
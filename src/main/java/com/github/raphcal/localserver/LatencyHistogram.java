@@ -0,0 +1,157 @@
+package com.github.raphcal.localserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds, recorded without locking.
+ * <p>
+ * Like HdrHistogram, values are counted in buckets whose width grows with
+ * the magnitude of the value: values below 64 ns have their own bucket and
+ * each power of two above is divided in 32 buckets. Percentiles are thus
+ * given with a relative error below 3%, from a few hundred nanoseconds to
+ * several minutes, in a fixed amount of memory. Values above 2<sup>40</sup>
+ * ns (about 18 minutes) are counted in the last bucket.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ServerMetrics
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Number of bits giving the position of a value in its power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below this one are counted exactly.
+     */
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+
+    /**
+     * Largest value counted in its own bucket.
+     */
+    private static final long MAX_TRACKABLE_VALUE = (1L << 40) - 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(indexOf(MAX_TRACKABLE_VALUE) + 1);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records the given duration.
+     *
+     * @param nanos Duration in nanoseconds. Negative values are counted as 0.
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets.incrementAndGet(indexOf(Math.min(value, MAX_TRACKABLE_VALUE)));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return The number of values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded durations.
+     *
+     * @return The sum in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the mean of the recorded durations.
+     *
+     * @return The mean in nanoseconds or 0 if nothing was recorded.
+     */
+    public double getMean() {
+        final long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     *
+     * @return The maximum in nanoseconds or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the duration below which the given percentage of the recorded
+     * durations fall.
+     * <p>
+     * The histogram may be updated while it is read: the result is then an
+     * approximation of the state of the histogram during the call.
+     *
+     * @param percentile Percentage, between 0 and 100.
+     * @return The highest value of the bucket containing the percentile, in
+     * nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        final int length = buckets.length();
+        final long[] counts = new long[length];
+        long total = 0;
+        for (int index = 0; index < length; index++) {
+            counts[index] = buckets.get(index);
+            total += counts[index];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final double ratio = Math.min(100, Math.max(0, percentile)) / 100;
+        final long rank = Math.max(1, (long) Math.ceil(ratio * total));
+        long seen = 0;
+        for (int index = 0; index < length; index++) {
+            seen += counts[index];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(index), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Returns the index of the bucket counting the given value.
+     *
+     * @param value Value between 0 and {@link #MAX_TRACKABLE_VALUE}.
+     * @return Index of the bucket.
+     */
+    static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * Returns the highest value counted by the given bucket.
+     *
+     * @param index Index of a bucket.
+     * @return The highest value of the bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        final int shift = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+        final long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
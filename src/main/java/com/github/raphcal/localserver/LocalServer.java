@@ -30,6 +30,11 @@ public class LocalServer {
      */
     private final ServerThread serverThread;
 
+    /**
+     * Counters of the server.
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
     /**
      * Creates a new server.
      * <p>
@@ -56,8 +61,28 @@ public class LocalServer {
      * @see HttpServlet
      */
     public LocalServer(int port, HttpRequestHandler servlet, ServerImplementationType type) {
+        this(port, servlet, type, new ServerConfiguration());
+    }
+
+    /**
+     * Creates a new server.
+     * <p>
+     * The server will try to bind to given port. If the port is occupied, the
+     * server will try on the next port and so on until the connection succeed.
+     *
+     * @param port Port to bind to.
+     * @param servlet Servlet to use for handling http requests.
+     * @param type Implementation type to use.
+     * @param configuration Options of the server.
+     * @see HttpServlet
+     * @see ServerConfiguration
+     */
+    public LocalServer(int port, HttpRequestHandler servlet, ServerImplementationType type, ServerConfiguration configuration) {
         this.servlet = servlet;
-        this.serverThread = type.create(port, servlet);
+        final HttpRequestHandler handler = configuration.getMetricsPath() != null
+                ? new MetricsHttpHandler(servlet, metrics, configuration.getMetricsPath())
+                : servlet;
+        this.serverThread = type.create(port, handler, configuration, metrics);
     }
 
     /**
@@ -171,6 +196,17 @@ public class LocalServer {
     public HttpRequestHandler getServlet() {
         return servlet;
     }
+
+    /**
+     * Returns the counters of this server: connections, requests by status
+     * code, bytes read and written and latencies.
+     *
+     * @return Metrics of this server.
+     * @see ServerConfiguration#setMetricsPath(String)
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
     
     /**
      * Address bound to the server.
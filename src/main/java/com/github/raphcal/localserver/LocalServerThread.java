@@ -27,8 +27,8 @@ class LocalServerThread implements ServerThread {
     private final AtomicBoolean stopping = new AtomicBoolean(false);
     private final Semaphore startSemaphore = new Semaphore(1);
 
-    public LocalServerThread(int port, HttpRequestHandler servlet) {
-        this.server = new Server(servlet, port, runningLock, startSemaphore);
+    public LocalServerThread(int port, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics) {
+        this.server = new Server(servlet, port, configuration, metrics, runningLock, startSemaphore);
         this.serverThread = new Thread(server);
     }
 
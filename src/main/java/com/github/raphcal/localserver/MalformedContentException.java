@@ -0,0 +1,26 @@
+package com.github.raphcal.localserver;
+
+/**
+ * Error thrown by the methods of {@link HttpRequest} that can't declare an
+ * {@link java.io.IOException} when the content of the request is malformed or
+ * truncated. The server answers it with "400 BAD REQUEST" instead of
+ * "500 INTERNAL SERVER ERROR".
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see HttpRequest#getParameter(java.lang.String)
+ */
+class MalformedContentException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message Description of the error.
+     * @param cause Error of the parser or of the stream of the content.
+     */
+    MalformedContentException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.github.raphcal.localserver;
+
+import java.io.IOException;
+
+/**
+ * Error thrown by {@link HttpRequestBuilder} when a request can't be read.
+ * The client is answered with the status of this exception and the connection
+ * is closed, since the following bytes can't be framed.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class MalformedRequestException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final String statusMessage;
+
+    /**
+     * Creates an exception answered with "400 BAD REQUEST".
+     *
+     * @param message Description of the error.
+     */
+    MalformedRequestException(String message) {
+        this(message, HttpConstants.STATUS_CODE_400_BAD_REQUEST, HttpConstants.STATUS_MESSAGE_400_BAD_REQUEST);
+    }
+
+    /**
+     * Creates an exception answered with the given status.
+     *
+     * @param message Description of the error.
+     * @param statusCode Status code of the response.
+     * @param statusMessage Status message of the response.
+     */
+    MalformedRequestException(String message, int statusCode, String statusMessage) {
+        super(message);
+        this.statusCode = statusCode;
+        this.statusMessage = statusMessage;
+    }
+
+    /**
+     * Returns the status code of the response to send.
+     *
+     * @return A status code.
+     */
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the status message of the response to send.
+     *
+     * @return A status message.
+     */
+    String getStatusMessage() {
+        return statusMessage;
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.github.raphcal.localserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Answers the requests to the metrics path with the metrics of the server in
+ * the Prometheus text format. Other requests are given to the servlet.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ServerConfiguration#setMetricsPath(String)
+ */
+final class MetricsHttpHandler implements HttpRequestHandler {
+
+    private final HttpRequestHandler servlet;
+    private final ServerMetrics metrics;
+    private final String path;
+
+    MetricsHttpHandler(HttpRequestHandler servlet, ServerMetrics metrics, String path) {
+        this.servlet = servlet;
+        this.metrics = metrics;
+        this.path = path;
+    }
+
+    @Override
+    public void handleRequest(HttpRequest request, HttpResponse response) {
+        if (!isMetricsRequest(request)) {
+            servlet.handleRequest(request, response);
+            return;
+        }
+        response.setContentType(ServerMetrics.PROMETHEUS_CONTENT_TYPE);
+        response.setCharset(StandardCharsets.UTF_8);
+        response.setHeader(HttpConstants.HEADER_CACHE_CONTROL, "no-cache");
+        response.setContent(metrics.toPrometheus());
+    }
+
+    private boolean isMetricsRequest(HttpRequest request) {
+        final String method = request.getMethod();
+        if (!HttpConstants.METHOD_GET.equals(method) && !HttpConstants.METHOD_HEAD.equals(method)) {
+            return false;
+        }
+        final String target = request.getTarget();
+        if (target == null || !target.startsWith(path)) {
+            return false;
+        }
+        return target.length() == path.length() || target.charAt(path.length()) == '?';
+    }
+
+}
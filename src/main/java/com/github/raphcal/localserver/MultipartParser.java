@@ -0,0 +1,297 @@
+package com.github.raphcal.localserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the parts of a <code>multipart/form-data</code> body from a stream,
+ * without keeping the whole body in memory.
+ * <p>
+ * The body is read through a fixed buffer in which the delimiters are
+ * searched with the Boyer-Moore-Horspool algorithm. The content of a part is
+ * given to the {@link Part} as soon as it is known not to contain the next
+ * delimiter.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class MultipartParser {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Maximum length of a boundary, as given by RFC 2046. The delimiter must
+     * fit in the buffer for the search to move forward.
+     */
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+
+    private final InputStream inputStream;
+    private final int memoryThreshold;
+    private final File directory;
+
+    /**
+     * "\r\n--" followed by the boundary.
+     */
+    private final byte[] delimiter;
+
+    /**
+     * Shift of the search for each value of the last byte compared.
+     */
+    private final int[] shifts = new int[256];
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private boolean endOfStream;
+
+    /**
+     * Creates a parser.
+     *
+     * @param inputStream Stream reading the body.
+     * @param boundary Boundary given by the "Content-Type" header.
+     * @param memoryThreshold Size above which the content of a part is
+     * written to a temporary file.
+     * @param directory Directory of the temporary files or <code>null</code>
+     * for the default temporary directory.
+     * @throws IOException If the boundary is empty or longer than 70
+     * characters.
+     */
+    MultipartParser(InputStream inputStream, String boundary, int memoryThreshold, File directory) throws IOException {
+        if (boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new MalformedRequestException("Invalid multipart boundary length: " + boundary.length());
+        }
+        this.inputStream = inputStream;
+        this.memoryThreshold = memoryThreshold;
+        this.directory = directory;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+
+        final int last = delimiter.length - 1;
+        for (int index = 0; index < shifts.length; index++) {
+            shifts[index] = delimiter.length;
+        }
+        for (int index = 0; index < last; index++) {
+            shifts[delimiter[index] & 0xFF] = last - index;
+        }
+
+        // The first delimiter may start the body, without a preceding CRLF.
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        limit = 2;
+    }
+
+    /**
+     * Reads every part of the body.
+     *
+     * @return The parts, in the order of the body.
+     * @throws IOException If the body cannot be read or is malformed. The
+     * temporary files of the parts read so far are deleted.
+     */
+    List<Part> parse() throws IOException {
+        final List<Part> parts = new ArrayList<Part>();
+        try {
+            // Preamble.
+            if (!skipToDelimiter(null)) {
+                throw new MalformedRequestException("Multipart body without delimiter");
+            }
+            while (!readDelimiterEnd()) {
+                final Part part = new Part(readHeaders());
+                parts.add(part);
+                if (!skipToDelimiter(part)) {
+                    throw new MalformedRequestException("Multipart body ended inside a part");
+                }
+                part.complete();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (final Part part : parts) {
+                part.abort();
+            }
+            throw e;
+        }
+        return parts;
+    }
+
+    /**
+     * Reads bytes until the next delimiter, giving them to the given part.
+     *
+     * @param part Part receiving the bytes or <code>null</code> to drop them.
+     * @return <code>true</code> if the delimiter has been found and skipped,
+     * <code>false</code> at the end of the stream.
+     */
+    private boolean skipToDelimiter(Part part) throws IOException {
+        while (true) {
+            final int found = search(position, limit);
+            if (found >= 0) {
+                if (part != null) {
+                    part.append(buffer, position, found - position, memoryThreshold, directory);
+                }
+                position = found + delimiter.length;
+                return true;
+            }
+            // The last bytes may be the beginning of the delimiter.
+            final int safe = Math.max(position, limit - delimiter.length + 1);
+            if (part != null) {
+                part.append(buffer, position, safe - position, memoryThreshold, directory);
+            }
+            position = safe;
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reads what follows a delimiter: "--" for the last one, or optional
+     * spaces and CRLF before the headers of a part.
+     *
+     * @return <code>true</code> if it was the last delimiter.
+     */
+    private boolean readDelimiterEnd() throws IOException {
+        require(2);
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+            // The epilogue is ignored.
+            return true;
+        }
+        while (true) {
+            require(1);
+            final byte b = buffer[position];
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            position++;
+        }
+        require(2);
+        if (buffer[position] != '\r' || buffer[position + 1] != '\n') {
+            throw new MalformedRequestException("Malformed multipart delimiter");
+        }
+        position += 2;
+        return false;
+    }
+
+    /**
+     * Reads the headers of a part, up to the empty line.
+     *
+     * @return The headers.
+     */
+    private HeaderTable readHeaders() throws IOException {
+        final HeaderTable headers = new HeaderTable();
+        while (true) {
+            final int lineEnd = findLineEnd();
+            if (lineEnd == position) {
+                position += 2;
+                return headers;
+            }
+            final int colon = indexOf((byte) ':', position, lineEnd);
+            if (colon > position) {
+                int valueStart = colon + 1;
+                while (valueStart < lineEnd && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+                    valueStart++;
+                }
+                int valueEnd = lineEnd;
+                while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+                    valueEnd--;
+                }
+                // Browsers send file names in UTF-8.
+                headers.add(new String(buffer, position, colon - position, StandardCharsets.ISO_8859_1).trim(),
+                        new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8));
+            }
+            position = lineEnd + 2;
+        }
+    }
+
+    /**
+     * Finds the CRLF ending the current line, reading more bytes if needed.
+     *
+     * @return The index of the CR.
+     */
+    private int findLineEnd() throws IOException {
+        int from = position;
+        while (true) {
+            for (int index = from; index + 1 < limit; index++) {
+                if (buffer[index] == '\r' && buffer[index + 1] == '\n') {
+                    return index;
+                }
+            }
+            from = Math.max(position, limit - 1);
+            final int start = position;
+            final int previousLimit = limit;
+            if (!fill()) {
+                throw new MalformedRequestException("Multipart body ended inside the headers of a part");
+            }
+            if (start == 0 && limit == previousLimit) {
+                throw new MalformedRequestException("Headers of a part larger than " + buffer.length + " bytes");
+            }
+            from -= start - position;
+        }
+    }
+
+    /**
+     * Searches the delimiter between the given indexes.
+     *
+     * @return The index of the delimiter or -1.
+     */
+    private int search(int from, int to) {
+        final int last = delimiter.length - 1;
+        int index = from;
+        while (index + last < to) {
+            int compared = last;
+            while (buffer[index + compared] == delimiter[compared]) {
+                if (compared == 0) {
+                    return index;
+                }
+                compared--;
+            }
+            index += shifts[buffer[index + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    private int indexOf(byte value, int from, int to) {
+        for (int index = from; index < to; index++) {
+            if (buffer[index] == value) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ensures that the given number of bytes can be read from the position.
+     */
+    private void require(int count) throws IOException {
+        while (limit - position < count) {
+            if (!fill()) {
+                throw new MalformedRequestException("Unexpected end of multipart body");
+            }
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the beginning of the buffer and reads more.
+     *
+     * @return <code>false</code> at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        if (endOfStream) {
+            return false;
+        }
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            return true;
+        }
+        final int read = inputStream.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            endOfStream = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+}
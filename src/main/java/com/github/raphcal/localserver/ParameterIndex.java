@@ -0,0 +1,248 @@
+package com.github.raphcal.localserver;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Parameters of a request, from its query string and from its form body.
+ * <p>
+ * The encoded pairs are located in a single pass and kept as indexes in their
+ * source. A name is decoded only when it contains an escape sequence and is
+ * compared, and a value only when it is read. Sources are strings holding one
+ * character per byte received.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ParameterIndex {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Slots of each pair in {@link #bounds}: start and end of the name, start
+     * and end of the value.
+     */
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int BOUNDS_PER_PAIR = 4;
+
+    private String[] sources = new String[INITIAL_CAPACITY];
+    private Charset[] charsets = new Charset[INITIAL_CAPACITY];
+    private int[] bounds = new int[INITIAL_CAPACITY * BOUNDS_PER_PAIR];
+
+    /**
+     * <code>true</code> if the name must be decoded before being compared.
+     */
+    private boolean[] encodedNames = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * Decoded names and values, <code>null</code> until needed.
+     */
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] values = new String[INITIAL_CAPACITY];
+
+    private int size;
+
+    private final EntrySet entrySet = new EntrySet();
+
+    /**
+     * Locates the pairs of the given url-encoded string.
+     *
+     * @param source String containing the pairs, one character per byte.
+     * @param start Index of the first character of the pairs.
+     * @param end Index following the last character of the pairs.
+     * @param charset Charset of the decoded bytes.
+     */
+    void addEncoded(String source, int start, int end, Charset charset) {
+        int pairStart = start;
+        while (pairStart < end) {
+            // Values are skipped with indexOf, only names are scanned.
+            int pairEnd = source.indexOf('&', pairStart);
+            if (pairEnd < 0 || pairEnd > end) {
+                pairEnd = end;
+            }
+            int equals = -1;
+            boolean encodedName = false;
+            for (int index = pairStart; index < pairEnd; index++) {
+                final char c = source.charAt(index);
+                if (c == '=') {
+                    equals = index;
+                    break;
+                } else if (c == '%' || c == '+') {
+                    encodedName = true;
+                }
+            }
+            if (pairEnd > pairStart) {
+                final int index = append();
+                sources[index] = source;
+                charsets[index] = charset;
+                encodedNames[index] = encodedName;
+                final int offset = index * BOUNDS_PER_PAIR;
+                bounds[offset + NAME_START] = pairStart;
+                bounds[offset + NAME_END] = equals >= 0 ? equals : pairEnd;
+                bounds[offset + VALUE_START] = equals >= 0 ? equals + 1 : pairEnd;
+                bounds[offset + VALUE_END] = pairEnd;
+            }
+            pairStart = pairEnd + 1;
+        }
+    }
+
+    /**
+     * Adds an already decoded pair.
+     *
+     * @param name Name of the parameter.
+     * @param value Value of the parameter.
+     */
+    void add(String name, String value) {
+        final int index = append();
+        names[index] = name;
+        values[index] = value;
+    }
+
+    /**
+     * Returns the first value of the given parameter.
+     *
+     * @param name Name of the parameter.
+     * @return The value or <code>null</code> if the parameter is not given.
+     */
+    String get(String name) {
+        final int index = indexOf(name, 0);
+        return index >= 0 ? getValue(index) : null;
+    }
+
+    /**
+     * Returns every value of the given parameter, in order.
+     *
+     * @param name Name of the parameter.
+     * @return The values, an empty list if the parameter is not given.
+     */
+    List<String> getAll(String name) {
+        int index = indexOf(name, 0);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        final List<String> all = new ArrayList<String>(2);
+        do {
+            all.add(getValue(index));
+            index = indexOf(name, index + 1);
+        } while (index >= 0);
+        return all;
+    }
+
+    /**
+     * Returns the names of the parameters, in order and without duplicates.
+     *
+     * @return The names.
+     */
+    Set<String> getNames() {
+        final Set<String> all = new LinkedHashSet<String>();
+        for (int index = 0; index < size; index++) {
+            all.add(getName(index));
+        }
+        return all;
+    }
+
+    /**
+     * Returns a view of the pairs as map entries. A name given several times
+     * appears in several entries.
+     *
+     * @return A view of the pairs.
+     */
+    Set<Map.Entry<String, String>> entrySet() {
+        return entrySet;
+    }
+
+    private int indexOf(String name, int from) {
+        for (int index = from; index < size; index++) {
+            if (names[index] != null || encodedNames[index]) {
+                if (name.equals(getName(index))) {
+                    return index;
+                }
+            } else {
+                // Compared in its source, without decoding.
+                final int offset = index * BOUNDS_PER_PAIR;
+                final int start = bounds[offset + NAME_START];
+                final int length = bounds[offset + NAME_END] - start;
+                if (length == name.length() && sources[index].regionMatches(start, name, 0, length)) {
+                    return index;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private String getName(int index) {
+        if (names[index] == null) {
+            final int offset = index * BOUNDS_PER_PAIR;
+            names[index] = PercentDecoder.decode(sources[index], bounds[offset + NAME_START], bounds[offset + NAME_END], true, charsets[index]);
+        }
+        return names[index];
+    }
+
+    private String getValue(int index) {
+        if (values[index] == null) {
+            final int offset = index * BOUNDS_PER_PAIR;
+            values[index] = PercentDecoder.decode(sources[index], bounds[offset + VALUE_START], bounds[offset + VALUE_END], true, charsets[index]);
+        }
+        return values[index];
+    }
+
+    private int append() {
+        if (size == names.length) {
+            final int capacity = size * 2;
+            sources = Arrays.copyOf(sources, capacity);
+            charsets = Arrays.copyOf(charsets, capacity);
+            bounds = Arrays.copyOf(bounds, capacity * BOUNDS_PER_PAIR);
+            encodedNames = Arrays.copyOf(encodedNames, capacity);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        return size++;
+    }
+
+    /**
+     * View of the pairs as a set of map entries.
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<String, String>> {
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator() {
+            return new Iterator<Map.Entry<String, String>>() {
+
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public Map.Entry<String, String> next() {
+                    if (index >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    final Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<String, String>(getName(index), getValue(index));
+                    index++;
+                    return entry;
+                }
+
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.github.raphcal.localserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Part of a <code>multipart/form-data</code> request body: a form field or
+ * an uploaded file.
+ * <p>
+ * The content of a small part is kept in memory. A part larger than
+ * {@link ServerConfiguration#getMultipartMemoryThreshold()} is written to a
+ * temporary file, which is deleted once the servlet has returned. Use
+ * {@link #write(java.io.File)} to keep it.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see HttpRequest#getParts()
+ */
+public class Part {
+
+    private final HeaderTable headers;
+    private final String name;
+    private final String fileName;
+
+    /**
+     * Content when it is kept in memory, <code>null</code> once written to
+     * {@link #file}.
+     */
+    private byte[] bytes;
+    private int length;
+
+    private File file;
+    private FileChannel channel;
+
+    /**
+     * <code>true</code> while {@link #file} is a temporary file to delete.
+     */
+    private boolean temporary;
+
+    private long size;
+
+    Part(HeaderTable headers) {
+        this.headers = headers;
+        final String disposition = headers.get(HttpConstants.HEADER_CONTENT_DISPOSITION);
+        this.name = disposition != null ? parameter(disposition, "name") : null;
+        this.fileName = disposition != null ? parameter(disposition, "filename") : null;
+        this.bytes = new byte[0];
+    }
+
+    /**
+     * Returns the name of the form field.
+     *
+     * @return The name given by the "Content-Disposition" header or
+     * <code>null</code>.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the name of the uploaded file, as sent by the client.
+     *
+     * @return The file name or <code>null</code> if this part is not a file.
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the MIME type of the content.
+     *
+     * @return The value of the "Content-Type" header or <code>null</code>.
+     */
+    public String getContentType() {
+        return headers.get(HttpConstants.HEADER_CONTENT_TYPE);
+    }
+
+    /**
+     * Returns the first value of the given header of this part.
+     *
+     * @param header Name of the header, without case.
+     * @return The value or <code>null</code> if the header is not defined.
+     */
+    public String getHeader(String header) {
+        return headers.get(header);
+    }
+
+    /**
+     * Returns every value of the given header of this part.
+     *
+     * @param header Name of the header, without case.
+     * @return The values, an empty list if the header is not defined.
+     */
+    public List<String> getHeaderValues(String header) {
+        return headers.getAll(header);
+    }
+
+    /**
+     * Returns the headers of this part.
+     *
+     * @return The headers, in the order they were received.
+     */
+    public Set<Map.Entry<String, String>> getHeaders() {
+        return headers.entrySet();
+    }
+
+    /**
+     * Returns the size of the content.
+     *
+     * @return Size in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Indicates if the content is kept in memory.
+     *
+     * @return <code>true</code> if the content is in memory,
+     * <code>false</code> if it is in a file.
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Returns the file containing the content.
+     *
+     * @return The file or <code>null</code> if the content is in memory.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a new stream reading the content.
+     *
+     * @return A stream reading the content from its start.
+     * @throws IOException If the file of the content cannot be opened.
+     */
+    public InputStream getInputStream() throws IOException {
+        if (file == null) {
+            return new ByteArrayInputStream(bytes, 0, length);
+        }
+        return Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    /**
+     * Returns the content as a string. The charset is given by the
+     * "Content-Type" header of the part, UTF-8 by default or when it is not
+     * supported.
+     *
+     * @return The content.
+     * @throws IOException If the file of the content cannot be read.
+     */
+    public String getString() throws IOException {
+        Charset charset = StandardCharsets.UTF_8;
+        final String contentType = getContentType();
+        if (contentType != null) {
+            final String charsetName = parameter(contentType, "charset");
+            if (charsetName != null) {
+                try {
+                    charset = Charset.forName(charsetName);
+                } catch (IllegalArgumentException e) {
+                    // Unknown or illegal charset name: kept as UTF-8.
+                }
+            }
+        }
+        return getString(charset);
+    }
+
+    /**
+     * Returns the content as a string.
+     *
+     * @param charset Charset of the content.
+     * @return The content.
+     * @throws IOException If the file of the content cannot be read.
+     */
+    public String getString(Charset charset) throws IOException {
+        if (file == null) {
+            return new String(bytes, 0, length, charset);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Part too large to be read as a string: " + size + " bytes");
+        }
+        return new String(Files.readAllBytes(file.toPath()), charset);
+    }
+
+    /**
+     * Writes the content to the given file. A content already in a file is
+     * moved, so that it is not deleted with the request.
+     *
+     * @param target File where to write the content. It is replaced if it
+     * exists.
+     * @throws IOException If the content cannot be written.
+     */
+    public void write(File target) throws IOException {
+        if (file == null) {
+            try (final FileChannel output = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+            }
+        } else {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            file = target;
+            temporary = false;
+        }
+    }
+
+    /**
+     * Deletes the temporary file of the content, if any.
+     */
+    void delete() {
+        if (temporary) {
+            file.delete();
+            temporary = false;
+        }
+    }
+
+    /**
+     * Appends bytes to the content, spilling it to a temporary file once it
+     * exceeds the given threshold.
+     */
+    void append(byte[] source, int offset, int count, int memoryThreshold, File directory) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        if (channel == null && length + count > memoryThreshold) {
+            file = File.createTempFile("multipart-", ".part", directory);
+            temporary = true;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            writeFully(ByteBuffer.wrap(bytes, 0, length));
+            bytes = null;
+            length = 0;
+        }
+        if (channel != null) {
+            writeFully(ByteBuffer.wrap(source, offset, count));
+        } else {
+            if (length + count > bytes.length) {
+                final byte[] grown = new byte[Math.min(memoryThreshold, Math.max(length + count, bytes.length * 2))];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+        size += count;
+    }
+
+    /**
+     * Closes the temporary file once the whole content is received.
+     */
+    void complete() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the temporary file of a part whose content could not
+     * be received.
+     */
+    void abort() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignored, the file is deleted anyway.
+            }
+            channel = null;
+        }
+        delete();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Finds a parameter of a header value such as
+     * <code>form-data; name="field"; filename="a.txt"</code>.
+     *
+     * @param value Value of the header.
+     * @param parameter Name of the parameter, without case.
+     * @return The unquoted value of the parameter or <code>null</code>.
+     */
+    static String parameter(String value, String parameter) {
+        int index = value.indexOf(';');
+        while (index >= 0 && index < value.length()) {
+            index++;
+            while (index < value.length() && value.charAt(index) == ' ') {
+                index++;
+            }
+            final int equals = value.indexOf('=', index);
+            if (equals < 0) {
+                return null;
+            }
+            final boolean matches = parameter.equalsIgnoreCase(value.substring(index, equals).trim());
+            index = equals + 1;
+            while (index < value.length() && value.charAt(index) == ' ') {
+                index++;
+            }
+            final String parameterValue;
+            if (index < value.length() && value.charAt(index) == '"') {
+                // Quoted string: may contain ';' and escaped characters.
+                final StringBuilder builder = new StringBuilder();
+                index++;
+                while (index < value.length() && value.charAt(index) != '"') {
+                    char c = value.charAt(index);
+                    if (c == '\\' && index + 1 < value.length()) {
+                        c = value.charAt(++index);
+                    }
+                    builder.append(c);
+                    index++;
+                }
+                parameterValue = builder.toString();
+                index = value.indexOf(';', index);
+            } else {
+                final int end = value.indexOf(';', index);
+                parameterValue = value.substring(index, end >= 0 ? end : value.length()).trim();
+                index = end;
+            }
+            if (matches) {
+                return parameterValue;
+            }
+        }
+        return null;
+    }
+
+}
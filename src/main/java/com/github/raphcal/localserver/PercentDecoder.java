@@ -0,0 +1,95 @@
+package com.github.raphcal.localserver;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Decodes the percent-encoded parts of a request target.
+ * <p>
+ * Escaped bytes are decoded as UTF-8 unless another charset is given. An
+ * invalid escape sequence is kept as is instead of failing the request.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class PercentDecoder {
+
+    private PercentDecoder() {
+    }
+
+    /**
+     * Decodes a part of the given string.
+     *
+     * @param value String containing the encoded part.
+     * @param start Index of the first character of the part.
+     * @param end Index following the last character of the part.
+     * @param plusAsSpace <code>true</code> to decode '+' as a space, as in
+     * forms and query strings, <code>false</code> for path segments.
+     * @return The decoded part, or a substring of the given string if there
+     * is nothing to decode.
+     */
+    static String decode(String value, int start, int end, boolean plusAsSpace) {
+        return decode(value, start, end, plusAsSpace, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a part of the given string with the given charset.
+     *
+     * @param value String containing the encoded part.
+     * @param start Index of the first character of the part.
+     * @param end Index following the last character of the part.
+     * @param plusAsSpace <code>true</code> to decode '+' as a space.
+     * @param charset Charset of the escaped bytes.
+     * @return The decoded part, or a substring of the given string if there
+     * is nothing to decode.
+     */
+    static String decode(String value, int start, int end, boolean plusAsSpace, Charset charset) {
+        int index = start;
+        while (index < end) {
+            final char c = value.charAt(index);
+            if (c == '%' || (plusAsSpace && c == '+')) {
+                break;
+            }
+            index++;
+        }
+        if (index == end) {
+            return value.substring(start, end);
+        }
+
+        // Each character gives at most 3 bytes in UTF-8 and each escape
+        // sequence 1.
+        byte[] bytes = new byte[(end - start) * 3];
+        int length = 0;
+        for (index = start; index < end; index++) {
+            final char c = value.charAt(index);
+            if (c == '%' && index + 2 < end) {
+                final int high = Character.digit(value.charAt(index + 1), 16);
+                final int low = Character.digit(value.charAt(index + 2), 16);
+                if (high >= 0 && low >= 0) {
+                    bytes[length++] = (byte) ((high << 4) | low);
+                    index += 2;
+                    continue;
+                }
+            }
+            if (plusAsSpace && c == '+') {
+                bytes[length++] = ' ';
+            } else if (c < 0x100) {
+                // Request targets are decoded as ISO-8859-1: one character
+                // per byte received.
+                bytes[length++] = (byte) c;
+            } else {
+                // Target given by the application: kept as UTF-8.
+                final int next = Character.isHighSurrogate(c) && index + 1 < end ? index + 2 : index + 1;
+                final byte[] encoded = value.substring(index, next).getBytes(charset);
+                if (length + encoded.length > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, (length + encoded.length) * 2);
+                }
+                System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                length += encoded.length;
+                index = next - 1;
+            }
+        }
+        return new String(bytes, 0, length, charset);
+    }
+
+}
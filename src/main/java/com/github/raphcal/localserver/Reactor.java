@@ -0,0 +1,885 @@
+package com.github.raphcal.localserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the requests and writes the responses of a set of clients with a
+ * single selector.
+ * <p>
+ * A server has one or more reactors. Each reactor is run by its own thread
+ * and clients accepted by the server are spread among them.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+class Reactor implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Reactor.class);
+
+    /**
+     * Interval in milliseconds between two checks of idle connections.
+     */
+    private static final long IDLE_CHECK_INTERVAL = 1000L;
+
+    /**
+     * Maximum size of the chunks read from a streamed response content.
+     */
+    private static final int RESPONSE_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Maximum number of attachments of closed clients kept for the next
+     * clients.
+     */
+    private static final int MAX_IDLE_ATTACHMENTS = 1024;
+
+    private final Server server;
+    private final Selector selector;
+    private final HttpRequestHandler servlet;
+    private final ServerConfiguration configuration;
+    private final ServerMetrics metrics;
+
+    /**
+     * Listener receiving the timings of each request or <code>null</code> if
+     * requests are not timed.
+     */
+    private final ExchangeListener listener;
+
+    /**
+     * Worker threads running the servlet or <code>null</code> if requests are
+     * handled by the I/O thread.
+     */
+    private final Executor workers;
+
+    /**
+     * Read buffers lent to the clients having bytes to parse.
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * Attachments of closed clients, reused for the next clients.
+     */
+    private final ArrayDeque<Attachment> idleAttachments = new ArrayDeque<Attachment>();
+
+    /**
+     * Clients accepted by another thread and waiting to be registered with
+     * the selector of this reactor.
+     */
+    private final Queue<AcceptedClient> acceptedClients = new ConcurrentLinkedQueue<AcceptedClient>();
+
+    /**
+     * Clients whose request has been handled by a worker thread and whose
+     * response is ready to be sent.
+     */
+    private final Queue<SelectionKey> handledClients = new ConcurrentLinkedQueue<SelectionKey>();
+
+    /**
+     * Clients whose streamed request body can be read again because the
+     * servlet has consumed a part of it, or whose streamed response body has
+     * new bytes to send.
+     */
+    private final Queue<SelectionKey> resumedClients = new ConcurrentLinkedQueue<SelectionKey>();
+
+    /**
+     * Number of clients connected to this reactor.
+     */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private long lastIdleCheck = System.nanoTime();
+
+    /**
+     * Creates a new reactor.
+     *
+     * @param server Server owning this reactor.
+     * @param servlet Servlet handling the requests.
+     * @param configuration Options of the server.
+     * @param metrics Counters of the server.
+     * @param workers Worker threads or <code>null</code> to handle requests
+     * on the thread of this reactor.
+     * @throws IOException If the selector can't be opened.
+     */
+    public Reactor(Server server, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics, Executor workers) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.servlet = servlet;
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.listener = configuration.getExchangeListener();
+        this.workers = workers;
+        this.bufferPool = new BufferPool(configuration.getReadBufferSize());
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Returns the number of clients connected to this reactor.
+     *
+     * @return Number of connected clients.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Adds the given client to this reactor. This method can be called from
+     * any thread.
+     *
+     * @param channel Client to add.
+     */
+    public void addClient(final SocketChannel channel) {
+        final long acceptTime = listener != null ? System.nanoTime() : ExchangeTimings.NOT_RECORDED;
+        connectionCount.incrementAndGet();
+        acceptedClients.add(new AcceptedClient(channel, acceptTime));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        boolean stopped = false;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                runOnce();
+            }
+            stopped = true;
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("An unexpected error happened for server " + server.getEndpoint(), ex);
+        } finally {
+            close();
+            if (!stopped) {
+                server.reactorFailed(this);
+            }
+        }
+    }
+
+    /**
+     * Waits for I/O events and handles them.
+     *
+     * @throws IOException If the selector fails.
+     */
+    public void runOnce() throws IOException {
+        handleIO();
+        registerAcceptedClients();
+        sendHandledResponses();
+        resumeClients();
+        closeIdleClients();
+    }
+
+    /**
+     * Closes every client and the selector of this reactor.
+     */
+    public void close() {
+        closeAllClients();
+        AcceptedClient client = acceptedClients.poll();
+        while (client != null) {
+            metrics.connectionClosed();
+            closeChannel(client.channel);
+            client = acceptedClients.poll();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close selector", e);
+        }
+    }
+
+    private void handleIO() throws IOException {
+        if (configuration.isKeepAliveEnabled()) {
+            selector.select(IDLE_CHECK_INTERVAL);
+        } else {
+            selector.select();
+        }
+        metrics.selectorIteration();
+
+        final Set<SelectionKey> keys = selector.selectedKeys();
+        final Iterator<SelectionKey> keyIterator = keys.iterator();
+        while (keyIterator.hasNext()) {
+            final SelectionKey key = keyIterator.next();
+            keyIterator.remove();
+
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                server.acceptClients(key);
+                continue;
+            }
+            try {
+                if (key.isReadable()) {
+                    readData(key);
+                } else if (key.isWritable()) {
+                    writeData(key);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Closing connection after an I/O error", e);
+                closeClient(key);
+            } catch (RuntimeException e) {
+                // Only this client is lost, the reactor goes on.
+                LOGGER.error("Closing connection after an unexpected error", e);
+                closeClient(key);
+            }
+        }
+    }
+
+    private void registerAcceptedClients() {
+        AcceptedClient client = acceptedClients.poll();
+        while (client != null) {
+            final Attachment attachment = openAttachment(client.acceptTime);
+            try {
+                client.channel.register(selector, SelectionKey.OP_READ, attachment);
+            } catch (ClosedChannelException e) {
+                LOGGER.debug("Client closed before its registration", e);
+                connectionCount.decrementAndGet();
+                metrics.connectionClosed();
+                recycleAttachment(attachment);
+            }
+            client = acceptedClients.poll();
+        }
+    }
+
+    /**
+     * Returns the attachment of a new client, reusing the one of a closed
+     * client when possible.
+     *
+     * @param acceptTime Instant the client was accepted or
+     * {@link ExchangeTimings#NOT_RECORDED}.
+     * @return An attachment ready for the first request.
+     */
+    private Attachment openAttachment(final long acceptTime) {
+        Attachment attachment = idleAttachments.poll();
+        if (attachment == null) {
+            attachment = new Attachment(configuration.isStreamRequestBodies() && workers != null, listener != null);
+        }
+        attachment.open(acceptTime);
+        return attachment;
+    }
+
+    /**
+     * Keeps the attachment of a closed client for the next clients.
+     *
+     * @param attachment Attachment no longer used.
+     */
+    private void recycleAttachment(final Attachment attachment) {
+        attachment.clear(bufferPool);
+        if (idleAttachments.size() < MAX_IDLE_ATTACHMENTS) {
+            idleAttachments.add(attachment);
+        }
+    }
+
+    private void readData(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+
+        final Attachment attachment = (Attachment) key.attachment();
+        final ByteBuffer buffer = attachment.acquireBuffer(bufferPool);
+        int bytes = channel.read(buffer);
+
+        if (bytes == -1) {
+            // Fermeture du flux
+            closeClient(key);
+            return;
+        }
+
+        attachment.touch();
+        if (bytes > 0) {
+            metrics.bytesRead(bytes);
+            attachment.requestStarted(attachment.getLastActivity());
+        }
+        handleBufferedData(key, attachment);
+    }
+
+    /**
+     * Parse the bytes waiting in the buffer of the given client. Complete
+     * requests are given to the servlet and their responses are queued, as
+     * long as the bytes waiting to be sent stay below the limit given by
+     * {@link ServerConfiguration#getMaxPendingWriteBytes()}.
+     * <p>
+     * The read buffer is given back to the pool once every received byte has
+     * been parsed.
+     *
+     * @param key Key of the client.
+     * @param attachment Attachment of the client.
+     * @throws IOException If the request can't be decoded.
+     */
+    private void handleBufferedData(final SelectionKey key, final Attachment attachment) throws IOException {
+        final ByteBuffer buffer = attachment.getBuffer();
+        final long maxPendingWriteBytes = configuration.getMaxPendingWriteBytes();
+        while (true) {
+            while (buffer != null && feedRequestBody(attachment) && !attachment.isProcessing() && !attachment.isClosing()
+                    && attachment.getResponseBody() == null
+                    && attachment.getPendingBytes() < maxPendingWriteBytes) {
+                ((Buffer) buffer).flip();
+                try {
+                    attachment.getRequestBuilder().feedBytes(buffer);
+                } catch (MalformedRequestException e) {
+                    // The responses of the previous requests are sent first.
+                    LOGGER.debug("Rejecting a malformed request", e);
+                    ((Buffer) buffer).clear();
+                    rejectMalformedRequest(attachment, e);
+                    break;
+                }
+                buffer.compact();
+
+                if (attachment.getTimings() != null) {
+                    recordParsingTimings(attachment);
+                }
+                if (!attachment.getRequestBuilder().isReady()) {
+                    break;
+                }
+
+                final HttpRequest request = attachment.getRequestBuilder().getRequest();
+                final HttpResponse response = attachment.getResponse();
+                attachment.setKeepAlive(ExchangeSupport.configureResponse(request, response, configuration));
+
+                if (workers == null) {
+                    ExchangeSupport.handleRequest(servlet, request, response, configuration, metrics, attachment.getTimings());
+                    queueResponse(attachment);
+                } else {
+                    dispatchRequest(key, attachment);
+                }
+            }
+
+            final boolean blocked = attachment.getPendingBytes() >= maxPendingWriteBytes
+                    || attachment.getResponseBody() != null;
+            if (writePendingBytes(key, attachment)) {
+                return;
+            }
+            if (!blocked || attachment.hasPendingOutput() || attachment.getResponseBody() != null) {
+                break;
+            }
+            // Every pending byte has been sent, the next requests can be handled.
+        }
+        attachment.releaseBuffer(bufferPool);
+        updateInterest(key, attachment);
+    }
+
+    /**
+     * Notes the instants where the headers and the body of the current
+     * request of the given client have been received.
+     *
+     * @param attachment Attachment of a timed client.
+     */
+    private static void recordParsingTimings(final Attachment attachment) {
+        final ExchangeTimings timings = attachment.getTimings();
+        final HttpRequestBuilder requestBuilder = attachment.getRequestBuilder();
+        if (timings.getHeadersComplete() == ExchangeTimings.NOT_RECORDED && requestBuilder.isHeadComplete()) {
+            timings.setHeadersComplete(System.nanoTime());
+        }
+        if (!requestBuilder.isReady() || timings.getBodyComplete() != ExchangeTimings.NOT_RECORDED) {
+            return;
+        }
+        if (!attachment.isStreamBody()) {
+            timings.setBodyComplete(System.nanoTime());
+        } else if (requestBuilder.getContentLength() == 0) {
+            timings.setBodyComplete(timings.getHeadersComplete());
+        }
+        // Otherwise, the streamed body is complete once given to the servlet.
+    }
+
+    /**
+     * Gives the request of the given client to a worker thread. The next
+     * request of the client is not read until the servlet has returned.
+     * <p>
+     * When request bodies are streamed, the body is given to the worker
+     * through a {@link RequestBodyPipe} while the servlet runs.
+     *
+     * @param key Key of the client.
+     * @param attachment Attachment of the client.
+     */
+    private void dispatchRequest(final SelectionKey key, final Attachment attachment) {
+        final HttpRequest request = attachment.getRequestBuilder().getRequest();
+        final HttpResponse response = attachment.getResponse();
+        final ExchangeTimings timings = attachment.getTimings();
+        final RequestBodyPipe bodyPipe = createBodyPipe(key, attachment);
+        try {
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    ExchangeSupport.handleRequest(servlet, request, response, configuration, metrics, timings);
+                    if (bodyPipe != null) {
+                        bodyPipe.discard();
+                    }
+                    final ResponseBody body = response.getBody();
+                    ResponseBodyPipe responsePipe = null;
+                    if (body instanceof ResponseBody.WriterBody) {
+                        // The content is written by this thread while the
+                        // reactor sends it.
+                        responsePipe = createResponsePipe(key);
+                        response.setBody(responsePipe);
+                    }
+                    handledClients.add(key);
+                    selector.wakeup();
+                    if (responsePipe != null) {
+                        writeContent(((ResponseBody.WriterBody) body).getWriter(), responsePipe, request);
+                    }
+                }
+
+            });
+            attachment.setProcessing(true);
+
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Too many waiting requests, rejecting " + request.getMethod() + " " + request.getTarget());
+            if (bodyPipe != null) {
+                bodyPipe.discard();
+            }
+            ExchangeSupport.rejectRequest(response);
+            queueResponse(attachment);
+        }
+    }
+
+    /**
+     * Creates the pipe giving the body of the current request to the servlet
+     * if it has to be streamed.
+     *
+     * @param key Key of the client.
+     * @param attachment Attachment of the client.
+     * @return The pipe or <code>null</code> if the body is not streamed.
+     */
+    private RequestBodyPipe createBodyPipe(final SelectionKey key, final Attachment attachment) {
+        final long contentLength = attachment.getRequestBuilder().getContentLength();
+        if (!configuration.isStreamRequestBodies() || contentLength == 0) {
+            return null;
+        }
+        final RequestBodyPipe bodyPipe = new RequestBodyPipe(contentLength, new Runnable() {
+
+            @Override
+            public void run() {
+                resumedClients.add(key);
+                selector.wakeup();
+            }
+
+        });
+        attachment.getRequestBuilder().getRequest().setBodyStream(bodyPipe);
+        attachment.setBodyPipe(bodyPipe);
+        return bodyPipe;
+    }
+
+    private ResponseBodyPipe createResponsePipe(final SelectionKey key) {
+        return new ResponseBodyPipe(new Runnable() {
+
+            @Override
+            public void run() {
+                resumedClients.add(key);
+                selector.wakeup();
+            }
+
+        });
+    }
+
+    /**
+     * Runs the given writer on the current worker thread.
+     *
+     * @param writer Writer producing the content of a response.
+     * @param pipe Pipe read by the reactor.
+     * @param request Request being answered.
+     */
+    private static void writeContent(final ContentWriter writer, final ResponseBodyPipe pipe, final HttpRequest request) {
+        try {
+            writer.writeContent(pipe.getOutputStream());
+            pipe.finish();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to write the content of " + request.getMethod() + " " + request.getTarget(), e);
+            pipe.fail(e);
+        } catch (RuntimeException e) {
+            LOGGER.error("An uncaught error happened while writing the content of " + request.getMethod() + " " + request.getTarget(), e);
+            pipe.fail(new IOException(e));
+        }
+    }
+
+    /**
+     * Gives the bytes of the streamed body waiting in the buffer of the given
+     * client to the servlet.
+     *
+     * @param attachment Attachment of the client.
+     * @return <code>true</code> if the body has been received entirely or if
+     * there is no streamed body.
+     */
+    private boolean feedRequestBody(final Attachment attachment) {
+        final RequestBodyPipe bodyPipe = attachment.getBodyPipe();
+        if (bodyPipe == null) {
+            return true;
+        }
+        final ByteBuffer buffer = attachment.getBuffer();
+        if (buffer != null) {
+            ((Buffer) buffer).flip();
+            bodyPipe.offer(buffer);
+            buffer.compact();
+        }
+
+        if (bodyPipe.isComplete()) {
+            attachment.setBodyPipe(null);
+            final ExchangeTimings timings = attachment.getTimings();
+            if (timings != null && timings.getBodyComplete() == ExchangeTimings.NOT_RECORDED) {
+                timings.setBodyComplete(System.nanoTime());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handles again the clients whose streamed request body had filled its
+     * pipe or whose streamed response body has new bytes to send.
+     */
+    private void resumeClients() {
+        SelectionKey key = resumedClients.poll();
+        while (key != null) {
+            if (key.isValid()) {
+                try {
+                    handleBufferedData(key, (Attachment) key.attachment());
+                } catch (IOException e) {
+                    LOGGER.debug("Closing connection after an I/O error", e);
+                    closeClient(key);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Closing connection after an unexpected error", e);
+                    closeClient(key);
+                }
+            }
+            key = resumedClients.poll();
+        }
+    }
+
+    /**
+     * Queues the responses of the clients whose request has been handled by
+     * a worker thread.
+     */
+    private void sendHandledResponses() {
+        SelectionKey key = handledClients.poll();
+        while (key != null) {
+            if (key.isValid()) {
+                final Attachment attachment = (Attachment) key.attachment();
+                attachment.setProcessing(false);
+                attachment.touch();
+                queueResponse(attachment);
+                try {
+                    handleBufferedData(key, attachment);
+                } catch (IOException e) {
+                    LOGGER.debug("Closing connection after an I/O error", e);
+                    closeClient(key);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Closing connection after an unexpected error", e);
+                    closeClient(key);
+                }
+            }
+            key = handledClients.poll();
+        }
+    }
+
+    /**
+     * Completes the headers of the current response of the given client and
+     * adds it to the bytes to send. The attachment is then ready for the next
+     * request.
+     *
+     * @param attachment Attachment of the client.
+     */
+    private void queueResponse(final Attachment attachment) {
+        final HttpRequest request = attachment.getRequestBuilder().getRequest();
+        final HttpResponse response = attachment.getResponse();
+        final boolean keepAlive = ExchangeSupport.completeResponse(request, response, attachment.isKeepAlive());
+        metrics.requestCompleted(response.getStatusCode());
+        attachment.requestAnswered();
+        attachment.addOutput(response.toByteBuffers());
+        if (response.getBody() != null) {
+            attachment.setResponseBody(response.getBody(), ExchangeSupport.isChunked(response));
+        }
+        if (!keepAlive) {
+            attachment.setClosing(true);
+        }
+        // Lecture de la requête suivante. Elle a peut-être déjà été reçue
+        // (pipelining).
+        attachment.reset();
+    }
+
+    /**
+     * Queues the error response to a request that can't be read. The bytes
+     * following it can't be framed, so the connection is closed once every
+     * pending response is sent.
+     *
+     * @param attachment Attachment of the client.
+     * @param error Error thrown while reading the request.
+     */
+    private void rejectMalformedRequest(final Attachment attachment, final MalformedRequestException error) {
+        final HttpResponse response = attachment.getResponse();
+        ExchangeSupport.rejectMalformedRequest(response, error);
+        attachment.setKeepAlive(false);
+        queueResponse(attachment);
+    }
+
+    private void writeData(final SelectionKey key) throws IOException {
+        // Sends the pending bytes then handles the requests left in the
+        // buffer because of the limit of pending bytes.
+        handleBufferedData(key, (Attachment) key.attachment());
+    }
+
+    /**
+     * Writes as many pending bytes as the channel accepts without blocking.
+     * The streamed content of the current response is read as the pending
+     * bytes are sent.
+     *
+     * @param key Key of the client.
+     * @param attachment Attachment of the client.
+     * @return <code>true</code> if the client has been closed.
+     * @throws IOException If an I/O error occurs.
+     */
+    private boolean writePendingBytes(final SelectionKey key, final Attachment attachment) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        boolean written = false;
+        while (true) {
+            readResponseBody(attachment);
+            final long count;
+            if (attachment.hasPendingOutput()) {
+                count = channel.write(attachment.getOutput(), 0, attachment.getOutputCount());
+                attachment.outputWritten(count);
+                metrics.bytesWritten(count);
+            } else if (isSendingFile(attachment)) {
+                count = transferFile(attachment, channel);
+                if (count > 0) {
+                    metrics.bytesWritten(count);
+                }
+            } else {
+                break;
+            }
+            if (count == 0) {
+                break;
+            }
+            written = true;
+        }
+
+        if (written) {
+            attachment.touch();
+            if (listener != null) {
+                attachment.responseWritten(attachment.getLastActivity());
+            }
+        }
+        if (!attachment.hasPendingOutput() && attachment.getResponseBody() == null && attachment.hasSentRequests()) {
+            attachment.recordSentRequests(metrics, listener, System.nanoTime());
+        }
+        if (!attachment.hasPendingOutput() && attachment.getResponseBody() == null && attachment.isClosing()) {
+            closeClient(key);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the streamed content of the current response until the limit of
+     * pending bytes is reached.
+     *
+     * @param attachment Attachment of the client.
+     * @throws IOException If the content can't be read.
+     */
+    private void readResponseBody(final Attachment attachment) throws IOException {
+        final ResponseBody body = attachment.getResponseBody();
+        if (body == null || isSendingFile(attachment)) {
+            return;
+        }
+        if (body instanceof ResponseBody.BufferBody && !attachment.isChunked()) {
+            // Content already in memory: sent as is, without copy.
+            attachment.addOutput(new ByteBuffer[]{((ResponseBody.BufferBody) body).take()});
+            attachment.setResponseBody(null, false);
+            body.close();
+            return;
+        }
+        final long maxPendingWriteBytes = configuration.getMaxPendingWriteBytes();
+        while (attachment.getPendingBytes() < maxPendingWriteBytes) {
+            final ByteBuffer chunk = ByteBuffer.allocate(RESPONSE_CHUNK_SIZE);
+            final int count = body.read(chunk);
+            if (count == -1) {
+                if (attachment.isChunked()) {
+                    attachment.addOutput(new ByteBuffer[]{ChunkedOutputStream.lastChunk()});
+                }
+                attachment.setResponseBody(null, false);
+                body.close();
+                return;
+            } else if (count == 0) {
+                // The content is not written yet.
+                return;
+            }
+            ((Buffer) chunk).flip();
+            if (attachment.isChunked()) {
+                attachment.addOutput(ChunkedOutputStream.toChunk(chunk));
+            } else {
+                attachment.addOutput(new ByteBuffer[]{chunk});
+            }
+        }
+    }
+
+    /**
+     * Indicates if the current response body is a file sent with
+     * {@link ResponseBody.FileBody#transferTo(java.nio.channels.WritableByteChannel)}.
+     *
+     * @param attachment Attachment of the client.
+     * @return <code>true</code> if a file is being sent.
+     */
+    private static boolean isSendingFile(final Attachment attachment) {
+        return attachment.getResponseBody() instanceof ResponseBody.FileBody && !attachment.isChunked();
+    }
+
+    /**
+     * Sends the next bytes of the current file directly from the file system
+     * cache to the socket. Called only once every pending output has been
+     * written, so that the file follows the header.
+     *
+     * @param attachment Attachment of the client.
+     * @param channel Channel of the client.
+     * @return The number of bytes sent or -1 if the file was completely sent.
+     * @throws IOException If an I/O error occurs.
+     */
+    private static long transferFile(final Attachment attachment, final SocketChannel channel) throws IOException {
+        final ResponseBody.FileBody body = (ResponseBody.FileBody) attachment.getResponseBody();
+        if (body.getRemaining() > 0) {
+            final long count = body.transferTo(channel);
+            if (count == 0 || body.getRemaining() > 0) {
+                return count;
+            }
+        }
+        attachment.setResponseBody(null, false);
+        body.close();
+        return -1;
+    }
+
+    /**
+     * Waits for the channel to be writable while bytes are pending and for
+     * the next bytes of the client when they can be handled.
+     *
+     * @param key Key of the client.
+     * @param attachment Attachment of the client.
+     */
+    private void updateInterest(final SelectionKey key, final Attachment attachment) {
+        int interestOps = 0;
+        if (attachment.hasPendingOutput() || isSendingFile(attachment)) {
+            interestOps |= SelectionKey.OP_WRITE;
+        }
+        if (isReadable(attachment)) {
+            interestOps |= SelectionKey.OP_READ;
+        }
+        key.interestOps(interestOps);
+    }
+
+    private boolean isReadable(final Attachment attachment) {
+        if (attachment.isClosing()) {
+            return false;
+        }
+        final RequestBodyPipe bodyPipe = attachment.getBodyPipe();
+        if (bodyPipe != null) {
+            // Back-pressure: the servlet must read the body first.
+            return bodyPipe.hasSpace();
+        }
+        return !attachment.isProcessing() && !attachment.hasPendingOutput()
+                && attachment.getResponseBody() == null;
+    }
+
+    /**
+     * Closes the connections without activity since more than the keep alive
+     * timeout.
+     */
+    private void closeIdleClients() {
+        if (!configuration.isKeepAliveEnabled()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (now - lastIdleCheck < TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_INTERVAL)) {
+            return;
+        }
+        lastIdleCheck = now;
+
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(configuration.getKeepAliveTimeout());
+        for (final SelectionKey key : selector.keys()) {
+            final Object attachment = key.attachment();
+            if (attachment instanceof Attachment && !((Attachment) attachment).isProcessing()
+                    && now - ((Attachment) attachment).getLastActivity() > timeout) {
+                closeClient(key);
+            }
+        }
+    }
+
+    private void closeAllClients() {
+        for (final SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Attachment) {
+                closeClient(key);
+            }
+        }
+    }
+
+    private void closeClient(final SelectionKey key) {
+        if (key.attachment() instanceof Attachment) {
+            final boolean open = key.isValid();
+            if (open) {
+                connectionCount.decrementAndGet();
+                metrics.connectionClosed();
+            }
+            final Attachment attachment = (Attachment) key.attachment();
+            final RequestBodyPipe bodyPipe = attachment.getBodyPipe();
+            if (bodyPipe != null) {
+                bodyPipe.fail(new EOFException("Connection closed before the end of the request body"));
+            }
+            final ResponseBody responseBody = attachment.getResponseBody();
+            if (responseBody != null) {
+                attachment.setResponseBody(null, false);
+                closeQuietly(responseBody);
+            }
+            if (open) {
+                // The cancelled key stays in the key set until the next
+                // selection and may be closed again meanwhile.
+                key.attach(null);
+                recycleAttachment(attachment);
+            }
+        }
+        key.cancel();
+        closeChannel(key.channel());
+    }
+
+    private static void closeQuietly(final ResponseBody body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close the response content", e);
+        }
+    }
+
+    private static void closeChannel(final Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close connection", e);
+        }
+    }
+
+    /**
+     * Client accepted by the server and not registered yet.
+     */
+    private static final class AcceptedClient {
+
+        final SocketChannel channel;
+
+        /**
+         * Instant the client was accepted or
+         * {@link ExchangeTimings#NOT_RECORDED}.
+         */
+        final long acceptTime;
+
+        AcceptedClient(SocketChannel channel, long acceptTime) {
+            this.channel = channel;
+            this.acceptTime = acceptTime;
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.github.raphcal.localserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Body of a request read directly from a blocking connection.
+ * <p>
+ * Bytes already received with the headers are read first from the buffer of
+ * the connection. Reading stops at the end of the body so that the next
+ * request of the connection is left untouched.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class RequestBodyInputStream extends InputStream {
+
+    private static final int SKIP_BUFFER_SIZE = 8192;
+
+    /**
+     * Bytes received and not parsed yet, in write mode.
+     */
+    private final ByteBuffer buffer;
+    private final InputStream inputStream;
+
+    /**
+     * Number of bytes of the body not read yet.
+     */
+    private long remaining;
+
+    /**
+     * Creates a new stream reading the given number of bytes.
+     *
+     * @param buffer Buffer of the connection, in write mode.
+     * @param inputStream Stream of the connection.
+     * @param length Length of the body.
+     */
+    RequestBodyInputStream(ByteBuffer buffer, InputStream inputStream, long length) {
+        this.buffer = buffer;
+        this.inputStream = inputStream;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int count = read(single, 0, 1);
+        return count == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        final int length = (int) Math.min(len, remaining);
+        int count;
+        if (buffer.position() > 0) {
+            ((Buffer) buffer).flip();
+            count = Math.min(length, buffer.remaining());
+            buffer.get(b, off, count);
+            buffer.compact();
+        } else {
+            count = inputStream.read(b, off, length);
+            if (count == -1) {
+                throw new EOFException("Unexpected end of the request body");
+            }
+        }
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remaining, buffer.position() + inputStream.available());
+    }
+
+    /**
+     * Reads and drops the rest of the body. The connection is left open.
+     *
+     * @throws IOException If the connection fails.
+     */
+    @Override
+    public void close() throws IOException {
+        if (remaining > 0) {
+            final byte[] bytes = new byte[SKIP_BUFFER_SIZE];
+            while (read(bytes, 0, bytes.length) != -1) {
+                // Octets ignorés.
+            }
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.github.raphcal.localserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Body of a request read by a reactor and consumed by a worker thread.
+ * <p>
+ * The reactor gives the bytes it receives with {@link #offer(ByteBuffer)}
+ * without ever blocking. When the pipe is full, the reactor stops reading
+ * the connection until the worker has read enough bytes: the listener given
+ * to the constructor is then called to resume the reading.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class RequestBodyPipe extends InputStream {
+
+    private static final int CAPACITY = 64 * 1024;
+
+    /**
+     * Bytes received and not read yet, in write mode.
+     */
+    private final ByteBuffer bytes = ByteBuffer.allocate(CAPACITY);
+
+    /**
+     * Called when bytes have been read from a full pipe.
+     */
+    private final Runnable spaceListener;
+
+    /**
+     * Number of bytes of the body not received yet.
+     */
+    private long remaining;
+
+    private boolean waitingForSpace;
+    private boolean discarding;
+    private IOException failure;
+
+    /**
+     * Creates a new pipe.
+     *
+     * @param length Length of the body.
+     * @param spaceListener Called by the reading thread when the pipe was full
+     * and some space is available again.
+     */
+    RequestBodyPipe(long length, Runnable spaceListener) {
+        this.remaining = length;
+        this.spaceListener = spaceListener;
+    }
+
+    /**
+     * Moves the bytes of the body waiting in the given buffer to this pipe.
+     * The bytes following the body are left in the buffer.
+     *
+     * @param buffer Bytes received, in read mode.
+     */
+    synchronized void offer(ByteBuffer buffer) {
+        final int length = (int) Math.min(buffer.remaining(), remaining);
+        if (discarding) {
+            ((Buffer) buffer).position(buffer.position() + length);
+            remaining -= length;
+            return;
+        }
+        final int count = Math.min(length, bytes.remaining());
+        if (count > 0) {
+            final int limit = buffer.limit();
+            ((Buffer) buffer).limit(buffer.position() + count);
+            bytes.put(buffer);
+            ((Buffer) buffer).limit(limit);
+            remaining -= count;
+            notifyAll();
+        }
+        if (count < length || !bytes.hasRemaining()) {
+            waitingForSpace = true;
+        }
+    }
+
+    /**
+     * Indicates if the whole body has been received.
+     *
+     * @return <code>true</code> if every byte of the body has been received.
+     */
+    synchronized boolean isComplete() {
+        return remaining == 0;
+    }
+
+    /**
+     * Indicates if more bytes can be given to this pipe.
+     *
+     * @return <code>true</code> if the pipe is not full.
+     */
+    synchronized boolean hasSpace() {
+        return discarding || bytes.hasRemaining();
+    }
+
+    /**
+     * Drops the bytes not read yet and the bytes still to be received. Called
+     * once the servlet has returned.
+     */
+    void discard() {
+        final boolean wasWaiting;
+        synchronized (this) {
+            discarding = true;
+            ((Buffer) bytes).clear();
+            wasWaiting = waitingForSpace;
+            waitingForSpace = false;
+            notifyAll();
+        }
+        if (wasWaiting) {
+            spaceListener.run();
+        }
+    }
+
+    /**
+     * Wakes up the reading thread with the given error. Called when the
+     * connection is closed before the end of the body.
+     *
+     * @param failure Error to give to the reading thread.
+     */
+    synchronized void fail(IOException failure) {
+        this.failure = failure;
+        notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int count = read(single, 0, 1);
+        return count == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        final boolean wasWaiting;
+        final int count;
+        synchronized (this) {
+            while (bytes.position() == 0 && remaining > 0 && failure == null && !discarding) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading the request body");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (bytes.position() == 0) {
+                if (remaining > 0 && !discarding) {
+                    throw new EOFException("Unexpected end of the request body");
+                }
+                return -1;
+            }
+            ((Buffer) bytes).flip();
+            count = Math.min(len, bytes.remaining());
+            bytes.get(b, off, count);
+            bytes.compact();
+
+            wasWaiting = waitingForSpace;
+            waitingForSpace = false;
+        }
+        if (wasWaiting) {
+            spaceListener.run();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized int available() {
+        return bytes.position();
+    }
+
+    /**
+     * Drops the rest of the body.
+     */
+    @Override
+    public void close() {
+        discard();
+    }
+
+}
@@ -0,0 +1,401 @@
+package com.github.raphcal.localserver;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Content of a response read from a source while it is sent, instead of
+ * being kept in memory.
+ * <p>
+ * When the length is known, reading stops after that many bytes and a source
+ * ending earlier is an error. Otherwise, the content is read until the end of
+ * the source.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see HttpResponse#setContentStream(InputStream, long)
+ */
+abstract class ResponseBody implements Closeable {
+
+    /**
+     * Size of the buffer used to copy a body to a stream.
+     */
+    static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private final long length;
+    private long remaining;
+
+    /**
+     * Creates a new body.
+     *
+     * @param length Length of the body or -1 if unknown.
+     */
+    ResponseBody(long length) {
+        this.length = length;
+        this.remaining = length;
+    }
+
+    /**
+     * Returns the length of this body.
+     *
+     * @return The length in bytes or -1 if unknown.
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes not read yet.
+     *
+     * @return The number of remaining bytes or a negative value if the length
+     * is unknown.
+     */
+    final long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Counts the given number of bytes as read. Used by bodies sent without
+     * {@link #read(ByteBuffer)}.
+     *
+     * @param count Number of bytes sent.
+     */
+    final void advance(long count) {
+        if (remaining > 0) {
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Reads the next bytes of this body into the given buffer.
+     *
+     * @param buffer Buffer to fill, in write mode.
+     * @return The number of bytes read, 0 if no byte is available yet or -1
+     * at the end of the body.
+     * @throws IOException If the source can't be read.
+     */
+    final int read(ByteBuffer buffer) throws IOException {
+        if (remaining == 0) {
+            return -1;
+        }
+        final int limit = buffer.limit();
+        if (remaining > 0 && remaining < buffer.remaining()) {
+            ((Buffer) buffer).limit(buffer.position() + (int) remaining);
+        }
+        final int count;
+        try {
+            count = readBytes(buffer);
+        } finally {
+            ((Buffer) buffer).limit(limit);
+        }
+        if (count == -1 && remaining > 0) {
+            throw new EOFException("Content ended " + remaining + " bytes before its length");
+        }
+        if (count > 0 && remaining > 0) {
+            remaining -= count;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the next bytes of the source.
+     *
+     * @param buffer Buffer to fill, in write mode.
+     * @return The number of bytes read, 0 if no byte is available yet or -1
+     * at the end of the source.
+     * @throws IOException If the source can't be read.
+     */
+    abstract int readBytes(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Copies this body to the given stream with blocking reads. The stream is
+     * flushed after each read so that the bytes are sent as they are read.
+     *
+     * @param outputStream Stream where to write the body.
+     * @throws IOException If an I/O error occurs.
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        int count = read(buffer);
+        while (count != -1) {
+            outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+            outputStream.flush();
+            ((Buffer) buffer).clear();
+            count = read(buffer);
+        }
+    }
+
+    /**
+     * Returns a body reading the given stream.
+     *
+     * @param inputStream Source of the body.
+     * @param length Length of the body or -1 if unknown.
+     * @return A new body.
+     */
+    static ResponseBody of(final InputStream inputStream, long length) {
+        return new ResponseBody(length) {
+
+            @Override
+            int readBytes(ByteBuffer buffer) throws IOException {
+                final int count = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (count > 0) {
+                    ((Buffer) buffer).position(buffer.position() + count);
+                }
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                inputStream.close();
+            }
+
+        };
+    }
+
+    /**
+     * Returns a body reading the given channel. The channel must be in
+     * blocking mode.
+     *
+     * @param channel Source of the body.
+     * @param length Length of the body or -1 if unknown.
+     * @return A new body.
+     */
+    static ResponseBody of(final ReadableByteChannel channel, long length) {
+        return new ResponseBody(length) {
+
+            @Override
+            int readBytes(ByteBuffer buffer) throws IOException {
+                return channel.read(buffer);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+
+        };
+    }
+
+    /**
+     * Returns a body sending the remaining bytes of the given buffer.
+     *
+     * @param buffer Content of the body, in read mode. It is not modified.
+     * @return A new body.
+     */
+    static BufferBody of(final ByteBuffer buffer) {
+        return new BufferBody(buffer.duplicate());
+    }
+
+    /**
+     * Returns a body reading a region of the given file.
+     *
+     * @param channel File to send.
+     * @param position Index of the first byte to send.
+     * @param length Number of bytes to send.
+     * @return A new body.
+     */
+    static FileBody of(final FileChannel channel, long position, long length) {
+        return new FileBody(channel, position, length);
+    }
+
+    /**
+     * Returns a body produced by the given writer.
+     * <p>
+     * Blocking servers give the stream of the connection to the writer. The
+     * reactor runs the writer on a worker thread through a
+     * {@link ResponseBodyPipe} when it has worker threads. Otherwise, the
+     * content written is kept in memory the first time this body is read.
+     *
+     * @param writer Producer of the body.
+     * @return A new body.
+     */
+    static ResponseBody of(final ContentWriter writer) {
+        return new WriterBody(writer);
+    }
+
+    /**
+     * Body produced by a {@link ContentWriter}.
+     */
+    static final class WriterBody extends ResponseBody {
+
+        private final ContentWriter writer;
+        private ByteBuffer content;
+
+        WriterBody(ContentWriter writer) {
+            super(-1);
+            this.writer = writer;
+        }
+
+        ContentWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        int readBytes(ByteBuffer buffer) throws IOException {
+            if (content == null) {
+                final AbstractHttpMessage.ContentBuilder builder = new AbstractHttpMessage.ContentBuilder();
+                writer.writeContent(builder);
+                content = builder.toByteBuffer();
+            }
+            if (!content.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(buffer.remaining(), content.remaining());
+            final int limit = content.limit();
+            ((Buffer) content).limit(content.position() + count);
+            buffer.put(content);
+            ((Buffer) content).limit(limit);
+            return count;
+        }
+
+        @Override
+        void writeTo(OutputStream outputStream) throws IOException {
+            writer.writeContent(outputStream);
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() {
+            content = null;
+        }
+    }
+
+    /**
+     * Content already in memory, shared by several responses. The reactor
+     * sends it directly with the header instead of reading it in chunks.
+     */
+    static final class BufferBody extends ResponseBody {
+
+        private final ByteBuffer content;
+
+        BufferBody(ByteBuffer content) {
+            super(content.remaining());
+            this.content = content;
+        }
+
+        /**
+         * Returns the bytes not read yet, and counts them as read.
+         *
+         * @return A view of the remaining bytes.
+         */
+        ByteBuffer take() {
+            final ByteBuffer remaining = content.duplicate();
+            advance(content.remaining());
+            ((Buffer) content).position(content.limit());
+            return remaining;
+        }
+
+        @Override
+        int readBytes(ByteBuffer buffer) {
+            if (!content.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(buffer.remaining(), content.remaining());
+            final int limit = content.limit();
+            ((Buffer) content).limit(content.position() + count);
+            buffer.put(content);
+            ((Buffer) content).limit(limit);
+            return count;
+        }
+
+        @Override
+        void writeTo(OutputStream outputStream) throws IOException {
+            final ByteBuffer remaining = take();
+            if (remaining.hasArray()) {
+                outputStream.write(remaining.array(), remaining.arrayOffset() + remaining.position(), remaining.remaining());
+            } else {
+                Channels.newChannel(outputStream).write(remaining);
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() {
+            // Shared content, nothing to release.
+        }
+    }
+
+    /**
+     * Region of a file. The reactor sends it with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so that
+     * its bytes never go through the heap.
+     */
+    static final class FileBody extends ResponseBody {
+
+        /**
+         * Size of the buffer used to copy a file to a stream.
+         */
+        private static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+
+        private final FileChannel channel;
+        private long position;
+
+        FileBody(FileChannel channel, long position, long length) {
+            super(length);
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /**
+         * Sends the next bytes of the file to the given channel.
+         *
+         * @param target Channel of the connection.
+         * @return The number of bytes sent.
+         * @throws IOException If an I/O error occurs or if the file is shorter
+         * than expected.
+         */
+        long transferTo(WritableByteChannel target) throws IOException {
+            final long count = channel.transferTo(position, getRemaining(), target);
+            if (count == 0 && position >= channel.size()) {
+                throw new EOFException("File ended " + getRemaining() + " bytes before its length");
+            }
+            position += count;
+            advance(count);
+            return count;
+        }
+
+        @Override
+        int readBytes(ByteBuffer buffer) throws IOException {
+            final int count = channel.read(buffer, position);
+            if (count > 0) {
+                position += count;
+            }
+            return count;
+        }
+
+        /**
+         * Copies the file to the given stream through a direct buffer, which
+         * is read without copy by the file channel.
+         *
+         * @param outputStream Stream where to write the file.
+         * @throws IOException If an I/O error occurs.
+         */
+        @Override
+        void writeTo(OutputStream outputStream) throws IOException {
+            final WritableByteChannel target = Channels.newChannel(outputStream);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(DIRECT_BUFFER_SIZE, Math.max(1, getRemaining())));
+            while (read(buffer) != -1) {
+                ((Buffer) buffer).flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                ((Buffer) buffer).clear();
+            }
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.github.raphcal.localserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Body of a response written by a worker thread and sent by a reactor.
+ * <p>
+ * The worker writes to {@link #getOutputStream()} and blocks while the pipe
+ * is full. The reactor reads the pipe without blocking: when it finds the
+ * pipe empty, the listener given to the constructor is called as soon as new
+ * bytes are written.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ResponseBodyPipe extends ResponseBody {
+
+    private static final int CAPACITY = 64 * 1024;
+
+    /**
+     * Bytes written and not read yet, in write mode.
+     */
+    private final ByteBuffer bytes = ByteBuffer.allocate(CAPACITY);
+
+    /**
+     * Called when bytes are available after the reactor found the pipe empty.
+     */
+    private final Runnable dataListener;
+
+    private boolean waitingForData;
+    private boolean finished;
+    private boolean closed;
+    private IOException failure;
+
+    private final OutputStream outputStream = new OutputStream() {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ResponseBodyPipe.this.write(b, off, len);
+        }
+
+    };
+
+    /**
+     * Creates a new pipe.
+     *
+     * @param dataListener Called by the writing thread when bytes are written
+     * after the reactor found the pipe empty.
+     */
+    ResponseBodyPipe(Runnable dataListener) {
+        super(-1);
+        this.dataListener = dataListener;
+    }
+
+    /**
+     * Returns the stream to give to the writer.
+     *
+     * @return The stream filling this pipe.
+     */
+    OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final boolean wasWaiting;
+            final int count;
+            synchronized (this) {
+                while (!bytes.hasRemaining() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while writing the response body");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed before the end of the response body");
+                }
+                count = Math.min(len, bytes.remaining());
+                bytes.put(b, off, count);
+                wasWaiting = waitingForData;
+                waitingForData = false;
+            }
+            if (wasWaiting) {
+                dataListener.run();
+            }
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Marks the end of the body. Called by the writing thread once the writer
+     * has returned.
+     */
+    void finish() {
+        signalEnd(null);
+    }
+
+    /**
+     * Ends the body with an error. The connection will be closed.
+     *
+     * @param failure Error raised by the writer.
+     */
+    void fail(IOException failure) {
+        signalEnd(failure);
+    }
+
+    private void signalEnd(IOException failure) {
+        final boolean wasWaiting;
+        synchronized (this) {
+            this.finished = true;
+            this.failure = failure;
+            wasWaiting = waitingForData;
+            waitingForData = false;
+        }
+        if (wasWaiting) {
+            dataListener.run();
+        }
+    }
+
+    @Override
+    synchronized int readBytes(ByteBuffer buffer) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (bytes.position() == 0) {
+            if (finished) {
+                return -1;
+            }
+            waitingForData = true;
+            return 0;
+        }
+        ((Buffer) bytes).flip();
+        final int count = Math.min(buffer.remaining(), bytes.remaining());
+        final int limit = bytes.limit();
+        ((Buffer) bytes).limit(bytes.position() + count);
+        buffer.put(bytes);
+        ((Buffer) bytes).limit(limit);
+        bytes.compact();
+        notifyAll();
+        return count;
+    }
+
+    /**
+     * Wakes up the writing thread with an error. Called when the connection
+     * is closed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,453 @@
+package com.github.raphcal.localserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Gives each request to the handler of the route matching its method and
+ * path.
+ * <p>
+ * Route patterns are made of segments separated by slashes:
+ * <ul>
+ * <li>static segments, matched exactly: <code>/users/list</code>,</li>
+ * <li>parameters, matching one non-empty segment:
+ * <code>/users/{id}/orders/{order}</code>,</li>
+ * <li>a trailing wildcard, matching the rest of the path, possibly empty:
+ * <code>/static/*</code>.</li>
+ * </ul>
+ * Captured values are read with {@link HttpRequest#getPathParameter(String)}.
+ * <p>
+ * Routes are compiled into a tree of segments as they are added, so that a
+ * request is matched in a single walk of its path, whatever the number of
+ * routes. Static segments are tried before parameters and parameters before
+ * wildcards, and the next branch is tried when one fails. The walk does not
+ * allocate. The query string is ignored.
+ * <p>
+ * When routes match the path but none accepts the method, the response is
+ * <code>405 Method Not Allowed</code> with an "Allow" header. HEAD requests
+ * are given to the GET route when there is no HEAD route. Requests matching
+ * no route are given to the not found handler.
+ * <p>
+ * Routes must be added before the router handles requests. Example:
+ * <pre>
+ * final Router router = new Router();
+ * router.get("/users/{id}", new HttpRequestHandler() { ... });
+ * router.add("PATCH", "/users/{id}", ...);
+ * router.any("/static/*", ...);
+ * final LocalServer server = new LocalServer(8080, router);
+ * </pre>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class Router implements HttpRequestHandler {
+
+    /**
+     * Segment matching the rest of the path, and name of the parameter
+     * capturing it.
+     */
+    private static final String WILDCARD = "*";
+
+    private final Node root = new Node();
+
+    /**
+     * Highest number of parameters of a route.
+     */
+    private int maxParameterCount;
+
+    /**
+     * Handler of the requests matching no route or <code>null</code> to
+     * answer "404 Not Found".
+     */
+    private HttpRequestHandler notFoundHandler;
+
+    /**
+     * Adds a route for GET requests, also used for HEAD requests.
+     *
+     * @param pattern Pattern of the path.
+     * @param handler Handler of the matching requests.
+     * @see #add(String, String, HttpRequestHandler)
+     */
+    public void get(String pattern, HttpRequestHandler handler) {
+        add(HttpConstants.METHOD_GET, pattern, handler);
+    }
+
+    public void post(String pattern, HttpRequestHandler handler) {
+        add(HttpConstants.METHOD_POST, pattern, handler);
+    }
+
+    public void put(String pattern, HttpRequestHandler handler) {
+        add(HttpConstants.METHOD_PUT, pattern, handler);
+    }
+
+    public void delete(String pattern, HttpRequestHandler handler) {
+        add(HttpConstants.METHOD_DELETE, pattern, handler);
+    }
+
+    public void patch(String pattern, HttpRequestHandler handler) {
+        add(HttpConstants.METHOD_PATCH, pattern, handler);
+    }
+
+    /**
+     * Adds a route for every method. A route of the same path for a given
+     * method is preferred.
+     *
+     * @param pattern Pattern of the path.
+     * @param handler Handler of the matching requests.
+     * @see #add(String, String, HttpRequestHandler)
+     */
+    public void any(String pattern, HttpRequestHandler handler) {
+        add(null, pattern, handler);
+    }
+
+    /**
+     * Adds a route.
+     *
+     * @param method Method of the requests, in upper case, or
+     * <code>null</code> for every method.
+     * @param pattern Pattern of the path, starting with a slash. Segments
+     * must be percent-encoded as in the request targets.
+     * @param handler Handler of the matching requests.
+     * @throws IllegalArgumentException If the pattern is invalid or if a
+     * route is already defined for this method and pattern.
+     */
+    public void add(String method, String pattern, HttpRequestHandler handler) {
+        if (handler == null) {
+            throw new IllegalArgumentException("No handler given for " + pattern);
+        }
+        if (pattern == null || !pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Route pattern must start with a slash: " + pattern);
+        }
+        final String[] segments = pattern.substring(1).split("/", -1);
+        final List<String> names = new ArrayList<String>();
+        Node node = root;
+        for (int index = 0; index < segments.length; index++) {
+            final String segment = segments[index];
+            if (WILDCARD.equals(segment)) {
+                if (index != segments.length - 1) {
+                    throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+                }
+                if (node.wildcard == null) {
+                    node.wildcard = new Node();
+                }
+                node = node.wildcard;
+                names.add(WILDCARD);
+            } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                final String name = segment.substring(1, segment.length() - 1);
+                if (name.isEmpty() || names.contains(name)) {
+                    throw new IllegalArgumentException("Invalid parameter name '" + name + "' in " + pattern);
+                }
+                if (node.parameter == null) {
+                    node.parameter = new Node();
+                }
+                node = node.parameter;
+                names.add(name);
+            } else {
+                node = node.staticChild(segment);
+            }
+        }
+        node.addRoute(method, new Route(handler, names.toArray(new String[names.size()])), pattern);
+        maxParameterCount = Math.max(maxParameterCount, names.size());
+    }
+
+    public HttpRequestHandler getNotFoundHandler() {
+        return notFoundHandler;
+    }
+
+    /**
+     * Sets the handler of the requests matching no route.
+     *
+     * @param notFoundHandler Handler or <code>null</code> to answer
+     * "404 Not Found".
+     */
+    public void setNotFoundHandler(HttpRequestHandler notFoundHandler) {
+        this.notFoundHandler = notFoundHandler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleRequest(HttpRequest request, HttpResponse response) {
+        final String target = request.getTarget();
+        if (target == null || !target.startsWith("/")) {
+            notFound(request, response);
+            return;
+        }
+        final int end = pathEnd(target);
+        final int[] bounds = maxParameterCount > 0 ? new int[maxParameterCount * 2] : null;
+        final Route route = find(root, target, 0, end, bounds, 0, request.getMethod());
+        if (route != null) {
+            request.setPathParameters(route.names, route.names.length > 0 ? bounds : null);
+            route.handler.handleRequest(request, response);
+            return;
+        }
+
+        final Set<String> allowedMethods = new LinkedHashSet<String>();
+        collectMethods(root, target, 0, end, allowedMethods);
+        if (allowedMethods.isEmpty()) {
+            notFound(request, response);
+            return;
+        }
+        final StringBuilder allow = new StringBuilder();
+        for (final String allowedMethod : allowedMethods) {
+            if (allow.length() > 0) {
+                allow.append(", ");
+            }
+            allow.append(allowedMethod);
+        }
+        response.setStatusCode(HttpConstants.STATUS_CODE_405_METHOD_NOT_ALLOWED);
+        response.setStatusMessage(HttpConstants.STATUS_MESSAGE_405_METHOD_NOT_ALLOWED);
+        response.setHeader(HttpConstants.HEADER_ALLOW, allow.toString());
+    }
+
+    private void notFound(HttpRequest request, HttpResponse response) {
+        if (notFoundHandler != null) {
+            notFoundHandler.handleRequest(request, response);
+            return;
+        }
+        response.setStatusCode(HttpConstants.STATUS_CODE_404_NOT_FOUND);
+        response.setStatusMessage(HttpConstants.STATUS_MESSAGE_404_NOT_FOUND);
+    }
+
+    /**
+     * Returns the end of the path of the given target.
+     *
+     * @param target Target starting with a slash.
+     * @return Index of the query string or of the fragment, or the length of
+     * the target.
+     */
+    private static int pathEnd(String target) {
+        for (int index = 0; index < target.length(); index++) {
+            final char c = target.charAt(index);
+            if (c == '?' || c == '#') {
+                return index;
+            }
+        }
+        return target.length();
+    }
+
+    /**
+     * Searches the route matching the rest of the path from the given node.
+     *
+     * @param node Node matching the path before <code>position</code>.
+     * @param path Target of the request.
+     * @param position Index of the slash starting the next segment or
+     * <code>end</code>.
+     * @param end End of the path.
+     * @param bounds Start and end indexes of the captured parameters.
+     * @param count Number of parameters captured before this node.
+     * @param method Method of the request.
+     * @return The route or <code>null</code> if no route matches.
+     */
+    private static Route find(Node node, String path, int position, int end, int[] bounds, int count, String method) {
+        if (position == end) {
+            return node.lookup(method);
+        }
+        final int segmentStart = position + 1;
+        final int segmentEnd = segmentEnd(path, segmentStart, end);
+
+        final Node child = node.findStaticChild(path, segmentStart, segmentEnd);
+        if (child != null) {
+            final Route route = find(child, path, segmentEnd, end, bounds, count, method);
+            if (route != null) {
+                return route;
+            }
+        }
+        if (node.parameter != null && segmentEnd > segmentStart) {
+            final Route route = find(node.parameter, path, segmentEnd, end, bounds, count + 1, method);
+            if (route != null) {
+                bounds[count * 2] = segmentStart;
+                bounds[count * 2 + 1] = segmentEnd;
+                return route;
+            }
+        }
+        if (node.wildcard != null) {
+            final Route route = node.wildcard.lookup(method);
+            if (route != null) {
+                bounds[count * 2] = segmentStart;
+                bounds[count * 2 + 1] = end;
+                return route;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the methods of every route matching the rest of the path to the
+     * given set.
+     */
+    private static void collectMethods(Node node, String path, int position, int end, Set<String> methods) {
+        if (position == end) {
+            node.addMethods(methods);
+            return;
+        }
+        final int segmentStart = position + 1;
+        final int segmentEnd = segmentEnd(path, segmentStart, end);
+
+        final Node child = node.findStaticChild(path, segmentStart, segmentEnd);
+        if (child != null) {
+            collectMethods(child, path, segmentEnd, end, methods);
+        }
+        if (node.parameter != null && segmentEnd > segmentStart) {
+            collectMethods(node.parameter, path, segmentEnd, end, methods);
+        }
+        if (node.wildcard != null) {
+            node.wildcard.addMethods(methods);
+        }
+    }
+
+    private static int segmentEnd(String path, int start, int end) {
+        for (int index = start; index < end; index++) {
+            if (path.charAt(index) == '/') {
+                return index;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Compares a static segment with a part of a path.
+     *
+     * @return A negative number, zero or a positive number if the label is
+     * before, equal to or after the part.
+     */
+    private static int compare(String label, String path, int start, int end) {
+        final int length = Math.min(label.length(), end - start);
+        for (int index = 0; index < length; index++) {
+            final int difference = label.charAt(index) - path.charAt(start + index);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return label.length() - (end - start);
+    }
+
+    /**
+     * Handler of a route and names of its parameters.
+     */
+    private static final class Route {
+
+        final HttpRequestHandler handler;
+
+        /**
+         * Names of the parameters, in the order of the segments.
+         */
+        final String[] names;
+
+        Route(HttpRequestHandler handler, String[] names) {
+            this.handler = handler;
+            this.names = names;
+        }
+    }
+
+    /**
+     * Segment of the routes.
+     */
+    private static final class Node {
+
+        /**
+         * Static children, sorted by label for a binary search.
+         */
+        String[] labels = new String[0];
+        Node[] children = new Node[0];
+
+        Node parameter;
+        Node wildcard;
+
+        /**
+         * Routes ending at this node, by method.
+         */
+        String[] methods = new String[0];
+        Route[] routes = new Route[0];
+
+        /**
+         * Route ending at this node for every method or <code>null</code>.
+         */
+        Route anyRoute;
+
+        Node findStaticChild(String path, int start, int end) {
+            int low = 0;
+            int high = labels.length - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int comparison = compare(labels[middle], path, start, end);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return children[middle];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the static child of the given label, created if needed.
+         */
+        Node staticChild(String label) {
+            final int index = Arrays.binarySearch(labels, label);
+            if (index >= 0) {
+                return children[index];
+            }
+            final int insertion = -index - 1;
+            final Node child = new Node();
+            labels = insert(labels, new String[labels.length + 1], insertion, label);
+            children = insert(children, new Node[children.length + 1], insertion, child);
+            return child;
+        }
+
+        void addRoute(String method, Route route, String pattern) {
+            if (method == null) {
+                if (anyRoute != null) {
+                    throw new IllegalArgumentException("Route already defined for every method: " + pattern);
+                }
+                anyRoute = route;
+                return;
+            }
+            for (final String existing : methods) {
+                if (existing.equals(method)) {
+                    throw new IllegalArgumentException("Route already defined: " + method + " " + pattern);
+                }
+            }
+            methods = insert(methods, new String[methods.length + 1], methods.length, method);
+            routes = insert(routes, new Route[routes.length + 1], routes.length, route);
+        }
+
+        Route lookup(String method) {
+            for (int index = 0; index < methods.length; index++) {
+                final String candidate = methods[index];
+                if (candidate == method || candidate.equals(method)) {
+                    return routes[index];
+                }
+            }
+            if (HttpConstants.METHOD_HEAD.equals(method)) {
+                final Route route = lookup(HttpConstants.METHOD_GET);
+                if (route != null) {
+                    return route;
+                }
+            }
+            return anyRoute;
+        }
+
+        void addMethods(Set<String> allowedMethods) {
+            for (final String method : methods) {
+                allowedMethods.add(method);
+                if (HttpConstants.METHOD_GET.equals(method)) {
+                    allowedMethods.add(HttpConstants.METHOD_HEAD);
+                }
+            }
+        }
+
+        private static <T> T[] insert(T[] source, T[] destination, int index, T element) {
+            System.arraycopy(source, 0, destination, 0, index);
+            destination[index] = element;
+            System.arraycopy(source, index, destination, index + 1, source.length - index);
+            return destination;
+        }
+    }
+
+}
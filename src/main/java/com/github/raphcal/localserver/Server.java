@@ -2,23 +2,30 @@ package com.github.raphcal.localserver;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.Buffer;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Thread gérant l'envoi et la réception de requêtes HTTP.
+ * <p>
+ * This thread accepts the clients and spreads them among the reactors doing
+ * the I/O. When there is only one reactor, it is run by this thread.
  *
  * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see Reactor
  */
 class Server implements Runnable {
 
@@ -28,21 +35,35 @@ class Server implements Runnable {
     private int port;
 
     private final HttpRequestHandler servlet;
+    private final ServerConfiguration configuration;
+    private final ServerMetrics metrics;
     private final Object runningLock;
     private final Semaphore startSemaphore;
 
+    private Reactor[] reactors;
+    private int nextReactor;
+
+    /**
+     * Thread running {@link #run()}, accepting the clients.
+     */
+    private volatile Thread acceptorThread;
+
     /**
      * Créé une nouveau serveur HTTP.
      *
      * @param servlet Objet s'occupant de configurer les réponses aux requêtes
      * reçues.
      * @param port Port où écouter les requêtes.
+     * @param configuration Options du serveur.
+     * @param metrics Compteurs du serveur.
      * @param runningLock Objet servant de verrou d'exécution.
      * @param startLock Lock de démarrage.
      */
-    public Server(HttpRequestHandler servlet, int port, Object runningLock, Semaphore startSemaphore) {
+    public Server(HttpRequestHandler servlet, int port, ServerConfiguration configuration, ServerMetrics metrics, Object runningLock, Semaphore startSemaphore) {
         this.port = port;
         this.servlet = servlet;
+        this.configuration = configuration;
+        this.metrics = metrics;
         this.runningLock = runningLock;
         this.startSemaphore = startSemaphore;
 
@@ -56,14 +77,43 @@ class Server implements Runnable {
     @Override
     public void run() {
         synchronized (runningLock) {
-            try (final ServerSocketChannel serverChannel = ServerSocketChannel.open(); final Selector selector = Selector.open()) {
-                startServer(serverChannel, selector);
+            acceptorThread = Thread.currentThread();
+            ThreadPoolExecutor workers = null;
+            Thread[] reactorThreads = new Thread[0];
+            try (final ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                bind(serverChannel);
+                workers = createWorkers();
+                reactors = createReactors(workers);
 
-                while (!Thread.currentThread().isInterrupted()) {
-                    handleIO(selector);
+                if (reactors.length == 1) {
+                    // Accepting and I/O are done by this thread.
+                    final Reactor reactor = reactors[0];
+                    serverChannel.register(reactor.getSelector(), SelectionKey.OP_ACCEPT);
+                    startSemaphore.release();
+                    reactor.run();
+                } else {
+                    reactorThreads = startReactors();
+                    try (final Selector selector = Selector.open()) {
+                        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                        startSemaphore.release();
+                        while (!Thread.currentThread().isInterrupted()) {
+                            selector.select();
+                            final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                            while (keyIterator.hasNext()) {
+                                final SelectionKey key = keyIterator.next();
+                                keyIterator.remove();
+                                acceptClients(key);
+                            }
+                        }
+                    }
                 }
             } catch (IOException | RuntimeException ex) {
                 LOGGER.error("An unexpected error happened for server " + endpoint, ex);
+            } finally {
+                stopReactors(reactorThreads);
+                if (workers != null) {
+                    workers.shutdownNow();
+                }
             }
         }
     }
@@ -72,7 +122,7 @@ class Server implements Runnable {
         return endpoint;
     }
 
-    private void startServer(ServerSocketChannel serverChannel, Selector selector) throws ClosedChannelException, IOException {
+    private void bind(ServerSocketChannel serverChannel) throws ClosedChannelException, IOException {
         serverChannel.configureBlocking(false);
         while (endpoint == null) {
             final InetSocketAddress address = new InetSocketAddress(port);
@@ -84,79 +134,123 @@ class Server implements Runnable {
                 port++;
             }
         }
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-        startSemaphore.release();
     }
 
-    private void handleIO(final Selector selector) throws IOException {
-        selector.select();
-
-        final Set<SelectionKey> keys = selector.selectedKeys();
-        final Iterator<SelectionKey> keyIterator = keys.iterator();
-        while (keyIterator.hasNext()) {
-            final SelectionKey key = keyIterator.next();
-            keyIterator.remove();
-
-            if (key.isAcceptable()) {
-                acceptClient(key, selector);
-            } else if (key.isReadable()) {
-                readData(key);
-            } else if (key.isWritable()) {
-                writeData(key);
-            }
+    private ThreadPoolExecutor createWorkers() {
+        final int threads = configuration.getWorkerThreads();
+        if (threads <= 0) {
+            return null;
         }
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, configuration.getWorkerQueueSize())),
+                createThreadFactory("worker"));
     }
 
-    private void acceptClient(final SelectionKey key, final Selector selector) throws IOException, ClosedChannelException {
-        final ServerSocketChannel server = (ServerSocketChannel) key.channel();
-
-        final SocketChannel channel = server.accept();
-        channel.configureBlocking(false);
+    private Reactor[] createReactors(ThreadPoolExecutor workers) throws IOException {
+        final Reactor[] reactors = new Reactor[Math.max(1, configuration.getSelectorThreads())];
+        for (int index = 0; index < reactors.length; index++) {
+            reactors[index] = new Reactor(this, servlet, configuration, metrics, workers);
+        }
+        return reactors;
+    }
 
-        channel.register(selector, SelectionKey.OP_READ, new Attachment());
+    private Thread[] startReactors() {
+        final ThreadFactory threadFactory = createThreadFactory("reactor");
+        final Thread[] threads = new Thread[reactors.length];
+        for (int index = 0; index < reactors.length; index++) {
+            threads[index] = threadFactory.newThread(reactors[index]);
+            threads[index].start();
+        }
+        return threads;
     }
 
-    private void readData(final SelectionKey key) throws IOException {
-        final SocketChannel channel = (SocketChannel) key.channel();
-
-        // TODO: Mettre en cache la requête jusqu'à lecture
-        // complète. Quand OK, délégation au servlet puis
-        // modification de l'intérêt en écriture.
-        final Attachment attachment = (Attachment) key.attachment();
-        final ByteBuffer buffer = attachment.getBuffer();
-        int bytes = channel.read(buffer);
-
-        if (bytes == -1) {
-            // Fermeture du flux
-            channel.close();
-            key.cancel();
-
-        } else if (bytes > 0) {
-            ((Buffer) buffer).flip();
-            attachment.getRequestBuilder().feedBytes(buffer);
-            buffer.compact();
+    private void stopReactors(Thread[] threads) {
+        for (final Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (final Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                LOGGER.debug("Interrupted while waiting for reactor " + thread.getName(), e);
+            }
         }
+    }
+
+    private ThreadFactory createThreadFactory(final String kind) {
+        final String name = "localserver-" + endpoint.getPort() + '-' + kind + '-';
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
 
-        if (attachment.getRequestBuilder().isReady()) {
-            final HttpRequest request = attachment.getRequestBuilder().getRequest();
-            final HttpResponse response = attachment.getResponse();
-            response.configureDefaults();
+        };
+    }
 
-            servlet.handleRequest(request, response);
+    /**
+     * Accepts the pending clients of the given server key and gives them to
+     * the least loaded reactor.
+     *
+     * @param key Key of the server channel.
+     */
+    void acceptClients(final SelectionKey key) {
+        final ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        try {
+            SocketChannel channel = server.accept();
+            while (channel != null) {
+                metrics.connectionAccepted();
+                channel.configureBlocking(false);
+                // The header block and a file are written separately: with
+                // Nagle's algorithm, the file would wait for the client to
+                // acknowledge the header.
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                selectReactor().addClient(channel);
+                channel = server.accept();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to accept a client on " + endpoint, e);
+        }
+    }
 
-            key.interestOps(SelectionKey.OP_WRITE);
+    /**
+     * Stops the server after the given reactor has stopped because of an
+     * unexpected error. Its clients are closed and new clients would never
+     * be answered.
+     *
+     * @param reactor Reactor that has stopped.
+     */
+    void reactorFailed(final Reactor reactor) {
+        final Thread thread = acceptorThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            LOGGER.error("A reactor of server " + endpoint + " has stopped, stopping the server");
+            thread.interrupt();
         }
     }
 
-    private void writeData(final SelectionKey key) throws IOException {
-        try (final SocketChannel channel = (SocketChannel) key.channel()) {
-            final Attachment attachment = (Attachment) key.attachment();
-            final ByteBuffer buffer = ByteBuffer.wrap(attachment.getResponse().toByteArray());
-            while (buffer.hasRemaining()) {
-                channel.write(buffer);
+    /**
+     * Returns the reactor with the fewest connections. Reactors are visited
+     * in a round-robin order so that ties are spread evenly.
+     *
+     * @return The reactor to give the next client to.
+     */
+    private Reactor selectReactor() {
+        final int count = reactors.length;
+        final int start = nextReactor;
+        nextReactor = (start + 1) % count;
+
+        Reactor selected = reactors[start];
+        for (int offset = 1; offset < count; offset++) {
+            final Reactor reactor = reactors[(start + offset) % count];
+            if (reactor.getConnectionCount() < selected.getConnectionCount()) {
+                selected = reactor;
             }
         }
-        key.cancel();
+        return selected;
     }
 
 }
@@ -0,0 +1,462 @@
+package com.github.raphcal.localserver;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Options of a server.
+ * <p>
+ * Default values are suitable for unit testing and can be changed with the
+ * setters of this class before giving it to the constructor of
+ * <code>LocalServer</code>.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see LocalServer#LocalServer(int, HttpRequestHandler, ServerImplementationType, ServerConfiguration)
+ */
+public class ServerConfiguration {
+
+    /**
+     * Default delay in milliseconds before closing an idle connection.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 15000L;
+
+    /**
+     * Default maximum number of requests waiting for a worker thread.
+     */
+    public static final int DEFAULT_WORKER_QUEUE_SIZE = 1024;
+
+    /**
+     * Default maximum number of bytes waiting to be sent to a client.
+     */
+    public static final long DEFAULT_MAX_PENDING_WRITE_BYTES = 1024L * 1024L;
+
+    /**
+     * Default size in bytes of the buffers in which requests are read.
+     */
+    public static final int DEFAULT_READ_BUFFER_SIZE = 4096;
+
+    /**
+     * Default size in bytes above which a part of a multipart body is written
+     * to a temporary file.
+     */
+    public static final int DEFAULT_MULTIPART_MEMORY_THRESHOLD = 64 * 1024;
+
+    /**
+     * Default minimum size in bytes of a compressed response.
+     */
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+    /**
+     * Delay in milliseconds before closing an idle connection.
+     */
+    private long keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+
+    /**
+     * Number of threads doing the I/O.
+     */
+    private int selectorThreads = 1;
+
+    /**
+     * Number of threads running the servlet.
+     */
+    private int workerThreads;
+
+    /**
+     * Maximum number of requests waiting for a worker thread.
+     */
+    private int workerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+
+    /**
+     * Maximum number of bytes waiting to be sent to a client.
+     */
+    private long maxPendingWriteBytes = DEFAULT_MAX_PENDING_WRITE_BYTES;
+
+    /**
+     * Size in bytes of the buffers in which requests are read.
+     */
+    private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+
+    /**
+     * <code>true</code> to give requests to the servlet before their body is
+     * received.
+     */
+    private boolean streamRequestBodies;
+
+    /**
+     * Size in bytes above which a part of a multipart body is written to a
+     * temporary file.
+     */
+    private int multipartMemoryThreshold = DEFAULT_MULTIPART_MEMORY_THRESHOLD;
+
+    /**
+     * Directory of the temporary files of multipart bodies or
+     * <code>null</code> for the default temporary directory.
+     */
+    private File multipartDirectory;
+
+    /**
+     * <code>true</code> to compress responses when the client accepts it.
+     */
+    private boolean compressResponses;
+
+    /**
+     * Minimum size in bytes of a compressed response.
+     */
+    private int compressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+
+    /**
+     * MIME types of the responses that may be compressed.
+     */
+    private Set<String> compressibleContentTypes = Compression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES;
+
+    /**
+     * Path answered with the metrics of the server or <code>null</code>.
+     */
+    private String metricsPath;
+
+    /**
+     * Listener receiving the timings of each request or <code>null</code>.
+     */
+    private ExchangeListener exchangeListener;
+
+    /**
+     * Returns the delay in milliseconds before closing an idle connection.
+     *
+     * @return Delay in milliseconds before closing an idle connection.
+     */
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * Sets the delay in milliseconds before closing an idle connection.
+     * <p>
+     * A value of 0 or less disables persistent connections: every connection
+     * will be closed after its first response.
+     *
+     * @param keepAliveTimeout Delay in milliseconds.
+     */
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    /**
+     * Returns <code>true</code> if connections may be kept open between two
+     * requests.
+     *
+     * @return <code>true</code> if persistent connections are enabled.
+     */
+    public boolean isKeepAliveEnabled() {
+        return keepAliveTimeout > 0;
+    }
+
+    /**
+     * Returns the number of threads reading requests and writing responses.
+     *
+     * @return Number of I/O threads.
+     */
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    /**
+     * Sets the number of threads reading requests and writing responses.
+     * <p>
+     * By default (1), a single thread accepts the clients and does all the
+     * I/O. With more than 1 thread, one thread accepts the clients and gives
+     * each new connection to the I/O thread having the fewest connections.
+     * Each I/O thread has its own selector.
+     *
+     * @param selectorThreads Number of I/O threads.
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * Returns the number of threads running the servlet.
+     *
+     * @return Number of worker threads or 0 if requests are handled by the
+     * thread doing the I/O.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the number of threads running the servlet.
+     * <p>
+     * By default (0), requests are handled directly by the thread doing the
+     * I/O: a slow servlet delays every other client. With 1 or more worker
+     * threads, complete requests are handed to a thread pool and the I/O
+     * thread keeps serving other connections meanwhile.
+     *
+     * @param workerThreads Number of worker threads.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Returns the maximum number of requests waiting for a worker thread.
+     *
+     * @return Maximum number of requests waiting for a worker thread.
+     */
+    public int getWorkerQueueSize() {
+        return workerQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of requests waiting for a worker thread.
+     * <p>
+     * When the queue is full, the server answers new requests with a
+     * "503 SERVICE UNAVAILABLE" status. Ignored if there is no worker thread.
+     *
+     * @param workerQueueSize Maximum number of waiting requests.
+     */
+    public void setWorkerQueueSize(int workerQueueSize) {
+        this.workerQueueSize = workerQueueSize;
+    }
+
+    /**
+     * Returns the maximum number of bytes waiting to be sent to a client.
+     *
+     * @return Maximum number of pending bytes per connection.
+     */
+    public long getMaxPendingWriteBytes() {
+        return maxPendingWriteBytes;
+    }
+
+    /**
+     * Sets the maximum number of bytes waiting to be sent to a client.
+     * <p>
+     * Responses are written without blocking: bytes the client does not read
+     * fast enough are kept until the connection becomes writable again. When
+     * this limit is reached, the server stops handling the pipelined requests
+     * of the client until its pending bytes are sent. A single response larger
+     * than this limit is still sent in full.
+     *
+     * @param maxPendingWriteBytes Maximum number of pending bytes.
+     */
+    public void setMaxPendingWriteBytes(long maxPendingWriteBytes) {
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+    /**
+     * Returns the size in bytes of the buffers in which requests are read.
+     *
+     * @return Size of a read buffer in bytes.
+     */
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Sets the size in bytes of the buffers in which requests are read.
+     * <p>
+     * With <code>LOCALSERVER</code>, buffers are direct and shared by the
+     * connections of an I/O thread: a connection holds one only while it has
+     * received bytes not parsed yet, so idle connections cost no buffer. The
+     * other implementations keep a buffer of this size per connection. A
+     * request larger than a buffer is read in several passes.
+     *
+     * @param readBufferSize Size of a read buffer in bytes.
+     */
+    public void setReadBufferSize(int readBufferSize) {
+        this.readBufferSize = readBufferSize;
+    }
+
+    /**
+     * Returns <code>true</code> if request bodies are read by the servlet
+     * from the connection.
+     *
+     * @return <code>true</code> if request bodies are streamed.
+     */
+    public boolean isStreamRequestBodies() {
+        return streamRequestBodies;
+    }
+
+    /**
+     * Sets whether request bodies are read by the servlet from the
+     * connection.
+     * <p>
+     * By default, the servlet is called once the whole request has been
+     * received and kept in memory. When enabled, the servlet is called as soon
+     * as the headers are read and <code>HttpRequest.getInputStream()</code>
+     * reads the body from the connection: memory use does not depend on the
+     * size of the body. Bytes not read by the servlet are dropped.
+     * <p>
+     * With the <code>LOCALSERVER</code> implementation, streaming requires
+     * worker threads (see {@link #setWorkerThreads(int)}): the connection is
+     * read only while the servlet consumes the body. Without worker threads,
+     * bodies are received in full as usual.
+     *
+     * @param streamRequestBodies <code>true</code> to stream request bodies.
+     */
+    public void setStreamRequestBodies(boolean streamRequestBodies) {
+        this.streamRequestBodies = streamRequestBodies;
+    }
+
+    /**
+     * Returns the size in bytes above which a part of a multipart body is
+     * written to a temporary file.
+     *
+     * @return Size in bytes.
+     */
+    public int getMultipartMemoryThreshold() {
+        return multipartMemoryThreshold;
+    }
+
+    /**
+     * Sets the size in bytes above which a part of a multipart body is written
+     * to a temporary file instead of being kept in memory.
+     * <p>
+     * Combined with {@link #setStreamRequestBodies(boolean)}, the memory used
+     * by an upload does not depend on the size of its files.
+     *
+     * @param multipartMemoryThreshold Size in bytes.
+     * @see HttpRequest#getParts()
+     */
+    public void setMultipartMemoryThreshold(int multipartMemoryThreshold) {
+        this.multipartMemoryThreshold = multipartMemoryThreshold;
+    }
+
+    /**
+     * Returns the directory of the temporary files of multipart bodies.
+     *
+     * @return The directory or <code>null</code> for the default temporary
+     * directory.
+     */
+    public File getMultipartDirectory() {
+        return multipartDirectory;
+    }
+
+    /**
+     * Sets the directory of the temporary files of multipart bodies.
+     *
+     * @param multipartDirectory Directory or <code>null</code> for the
+     * default temporary directory.
+     */
+    public void setMultipartDirectory(File multipartDirectory) {
+        this.multipartDirectory = multipartDirectory;
+    }
+
+    /**
+     * Returns <code>true</code> if responses are compressed when the client
+     * accepts it.
+     *
+     * @return <code>true</code> if responses may be compressed.
+     */
+    public boolean isCompressResponses() {
+        return compressResponses;
+    }
+
+    /**
+     * Sets whether responses are compressed when the client accepts it.
+     * <p>
+     * When enabled, a response is compressed with gzip or deflate, as
+     * selected from the <code>Accept-Encoding</code> header of the request,
+     * if its type is one of the compressible content types and if its length
+     * is unknown or at least the minimum size. Responses already having a
+     * <code>Content-Encoding</code>, partial responses and files given to
+     * <code>HttpResponse.setContentFile</code> are sent as is.
+     *
+     * @param compressResponses <code>true</code> to compress responses.
+     * @see #setCompressionMinSize(int)
+     * @see #setCompressibleContentTypes(java.util.Collection)
+     */
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    /**
+     * Returns the minimum size in bytes of a compressed response.
+     *
+     * @return Minimum size in bytes.
+     */
+    public int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /**
+     * Sets the minimum size in bytes of a compressed response. Smaller
+     * responses are sent as is since compressing them saves too few bytes.
+     *
+     * @param compressionMinSize Minimum size in bytes.
+     */
+    public void setCompressionMinSize(int compressionMinSize) {
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    /**
+     * Returns the MIME types of the responses that may be compressed.
+     *
+     * @return An unmodifiable set of MIME types.
+     */
+    public Set<String> getCompressibleContentTypes() {
+        return compressibleContentTypes;
+    }
+
+    /**
+     * Sets the MIME types of the responses that may be compressed. A type
+     * ending with <code>/*</code> matches every subtype.
+     *
+     * @param compressibleContentTypes MIME types, in lower case.
+     */
+    public void setCompressibleContentTypes(Collection<String> compressibleContentTypes) {
+        this.compressibleContentTypes = Collections.unmodifiableSet(new LinkedHashSet<>(compressibleContentTypes));
+    }
+
+    /**
+     * Returns the path answered with the metrics of the server.
+     *
+     * @return The path or <code>null</code> if the metrics are not served.
+     */
+    public String getMetricsPath() {
+        return metricsPath;
+    }
+
+    /**
+     * Sets the path answered with the metrics of the server, in the
+     * Prometheus text format, like <code>/metrics</code>. GET and HEAD
+     * requests to this path are answered by the server instead of being given
+     * to the servlet.
+     * <p>
+     * The metrics are collected even when they are not served, and can be
+     * read with <code>LocalServer.getMetrics()</code>.
+     *
+     * @param metricsPath Path starting with a slash or <code>null</code> to
+     * give every request to the servlet.
+     * @see ServerMetrics
+     */
+    public void setMetricsPath(String metricsPath) {
+        this.metricsPath = metricsPath;
+    }
+
+    /**
+     * Returns the listener receiving the timings of each request.
+     *
+     * @return The listener or <code>null</code>.
+     */
+    public ExchangeListener getExchangeListener() {
+        return exchangeListener;
+    }
+
+    /**
+     * Sets the listener receiving the instants of the phases of each request
+     * once its response is sent: acceptation of the connection, first byte,
+     * end of the headers and of the body, call and return of the servlet,
+     * first and last byte written.
+     * <p>
+     * When no listener is set, the phases are not timed.
+     *
+     * @param exchangeListener Listener or <code>null</code>.
+     * @see SlowRequestLogger
+     */
+    public void setExchangeListener(ExchangeListener exchangeListener) {
+        this.exchangeListener = exchangeListener;
+    }
+}
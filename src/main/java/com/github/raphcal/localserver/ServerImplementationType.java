@@ -16,8 +16,8 @@ public enum ServerImplementationType {
          * {@inheritDoc}
          */
         @Override
-        ServerThread create(int port, HttpRequestHandler servlet) {
-            return new LocalServerThread(port, servlet);
+        ServerThread create(int port, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics) {
+            return new LocalServerThread(port, servlet, configuration, metrics);
         }
 
     },
@@ -31,8 +31,27 @@ public enum ServerImplementationType {
          * {@inheritDoc}
          */
         @Override
-        ServerThread create(int port, HttpRequestHandler servlet) {
-            return new LocalServerThread(port, servlet);
+        ServerThread create(int port, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics) {
+            return new SunHttpServerThread(port, servlet, configuration, metrics);
+        }
+
+    },
+
+    /**
+     * Blocking server running each connection on its own virtual thread.
+     * <p>
+     * Suited for servlets doing blocking work (JDBC, file system, etc.).
+     * When the JVM has no virtual thread (before Java 21), a bounded pool of
+     * platform threads is used instead.
+     */
+    VIRTUAL_THREADS {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        ServerThread create(int port, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics) {
+            return new BlockingServerThread(port, servlet, configuration, metrics);
         }
 
     };
@@ -43,8 +62,10 @@ public enum ServerImplementationType {
      *
      * @param port Port to listen.
      * @param servlet Servet that will handle requests.
+     * @param configuration Options of the server.
+     * @param metrics Counters updated by the server.
      * @return A new server.
      */
-    abstract ServerThread create(int port, HttpRequestHandler servlet);
+    abstract ServerThread create(int port, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics);
 
 }
@@ -0,0 +1,301 @@
+package com.github.raphcal.localserver;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a running server: connections, requests by status code, bytes
+ * read and written, iterations of the selector loop and latency histograms.
+ * <p>
+ * Counters are striped ({@link LongAdder}) so that the I/O and worker
+ * threads update them without locking nor contending on the same cache
+ * line. They can be read at any time, while the server runs, and exported in
+ * the Prometheus text format with {@link #writePrometheus(StringBuilder)}.
+ * <p>
+ * The handler time runs from the call of the servlet to its return. The
+ * request latency runs from the first byte of the request to the last byte
+ * of the response given to the operating system.
+ * <p>
+ * With {@link ServerImplementationType#SUN_HTTP_SERVER}, connections and
+ * selector iterations are not known: {@link #isConnectionsCounted()} returns
+ * <code>false</code> and their series are left out of the Prometheus output.
+ * Bytes read and written only count the bodies, the heads being handled by
+ * <code>HttpServer</code>, and the latency runs from the call of the handler.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see LocalServer#getMetrics()
+ */
+public final class ServerMetrics {
+
+    /**
+     * Content type of the Prometheus text format, encoded in UTF-8.
+     */
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final int MIN_STATUS_CODE = 100;
+    private static final int MAX_STATUS_CODE = 599;
+
+    /**
+     * Percentiles exported for the latency histograms.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder selectorIterations = new LongAdder();
+
+    /**
+     * Requests by status code, from 100 to 599. Other codes are counted in
+     * the last element.
+     */
+    private final LongAdder[] requests = new LongAdder[MAX_STATUS_CODE - MIN_STATUS_CODE + 2];
+
+    private final LatencyHistogram handlerTime = new LatencyHistogram();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+    /**
+     * <code>false</code> if the implementation doesn't see the connections
+     * nor runs a selector loop.
+     */
+    private volatile boolean connectionsCounted = true;
+
+    public ServerMetrics() {
+        for (int index = 0; index < requests.length; index++) {
+            requests[index] = new LongAdder();
+        }
+    }
+
+    /**
+     * Indicates that the connections and the selector iterations are not
+     * known by the implementation of the server.
+     */
+    void connectionsNotCounted() {
+        connectionsCounted = false;
+    }
+
+    void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    void bytesRead(long count) {
+        bytesRead.add(count);
+    }
+
+    void bytesWritten(long count) {
+        bytesWritten.add(count);
+    }
+
+    void selectorIteration() {
+        selectorIterations.increment();
+    }
+
+    /**
+     * Counts a response with the given status code.
+     *
+     * @param statusCode Status of the response.
+     */
+    void requestCompleted(int statusCode) {
+        requests[indexOf(statusCode)].increment();
+    }
+
+    void handlerTime(long nanos) {
+        handlerTime.record(nanos);
+    }
+
+    void requestLatency(long nanos) {
+        requestLatency.record(nanos);
+    }
+
+    /**
+     * Indicates if the connections and the selector iterations are counted
+     * by the implementation of the server.
+     *
+     * @return <code>false</code> if their counters always stay at 0.
+     */
+    public boolean isConnectionsCounted() {
+        return connectionsCounted;
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return Connections accepted and not closed yet.
+     */
+    public long getActiveConnections() {
+        // Closed first: a connection can't be closed before being accepted.
+        final long closed = connectionsClosed.sum();
+        return Math.max(0, connectionsAccepted.sum() - closed);
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getSelectorIterations() {
+        return selectorIterations.sum();
+    }
+
+    /**
+     * Returns the number of requests answered.
+     *
+     * @return Total number of responses.
+     */
+    public long getRequestCount() {
+        long total = 0;
+        for (final LongAdder adder : requests) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of requests answered with the given status code.
+     *
+     * @param statusCode Status code.
+     * @return Number of responses.
+     */
+    public long getRequestCount(int statusCode) {
+        return requests[indexOf(statusCode)].sum();
+    }
+
+    /**
+     * Returns the number of requests answered by status code. Status codes
+     * outside of 100-599 are counted with the key 0.
+     *
+     * @return An unmodifiable map of the status codes sent at least once,
+     * sorted by status code.
+     */
+    public Map<Integer, Long> getRequestCounts() {
+        final TreeMap<Integer, Long> counts = new TreeMap<>();
+        for (int index = 0; index < requests.length; index++) {
+            final long count = requests[index].sum();
+            if (count > 0) {
+                counts.put(index == requests.length - 1 ? 0 : MIN_STATUS_CODE + index, count);
+            }
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * Returns the histogram of the time spent in the servlet.
+     *
+     * @return Histogram of durations in nanoseconds.
+     */
+    public LatencyHistogram getHandlerTime() {
+        return handlerTime;
+    }
+
+    /**
+     * Returns the histogram of the time between the first byte of a request
+     * and the last byte of its response.
+     *
+     * @return Histogram of durations in nanoseconds.
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format (version 0.0.4).
+     * Durations are given in seconds, as summaries. Connections and selector
+     * iterations are left out when they are not counted.
+     *
+     * @param builder Builder where to append the metrics.
+     */
+    public void writePrometheus(StringBuilder builder) {
+        if (connectionsCounted) {
+            appendMetric(builder, "localserver_connections_accepted_total", "counter",
+                    "Connections accepted.", getConnectionsAccepted());
+            appendMetric(builder, "localserver_connections_active", "gauge",
+                    "Connections currently open.", getActiveConnections());
+            appendMetric(builder, "localserver_connections_closed_total", "counter",
+                    "Connections closed.", getConnectionsClosed());
+        }
+
+        appendHeader(builder, "localserver_requests_total", "counter", "Requests answered, by status code.");
+        for (final Map.Entry<Integer, Long> entry : getRequestCounts().entrySet()) {
+            builder.append("localserver_requests_total{code=\"")
+                    .append(entry.getKey() == 0 ? "other" : entry.getKey().toString())
+                    .append("\"} ").append(entry.getValue()).append('\n');
+        }
+
+        appendMetric(builder, "localserver_bytes_read_total", "counter",
+                "Bytes read from the clients.", getBytesRead());
+        appendMetric(builder, "localserver_bytes_written_total", "counter",
+                "Bytes written to the clients.", getBytesWritten());
+        if (connectionsCounted) {
+            appendMetric(builder, "localserver_selector_iterations_total", "counter",
+                    "Iterations of the selector loops.", getSelectorIterations());
+        }
+
+        appendSummary(builder, "localserver_handler_seconds",
+                "Time spent in the servlet.", handlerTime);
+        appendSummary(builder, "localserver_request_seconds",
+                "Time from the first byte of a request to the last byte of its response.", requestLatency);
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text format.
+     *
+     * @return The metrics.
+     * @see #writePrometheus(StringBuilder)
+     */
+    public String toPrometheus() {
+        final StringBuilder builder = new StringBuilder(2048);
+        writePrometheus(builder);
+        return builder.toString();
+    }
+
+    private static void appendHeader(StringBuilder builder, String name, String type, String help) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendMetric(StringBuilder builder, String name, String type, String help, long value) {
+        appendHeader(builder, name, type, help);
+        builder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendSummary(StringBuilder builder, String name, String help, LatencyHistogram histogram) {
+        appendHeader(builder, name, "summary", help);
+        for (final double quantile : QUANTILES) {
+            builder.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(toSeconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+        }
+        builder.append(name).append("_sum ").append(toSeconds(histogram.getSum())).append('\n')
+                .append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String toSeconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", (double) nanos / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static int indexOf(int statusCode) {
+        return statusCode >= MIN_STATUS_CODE && statusCode <= MAX_STATUS_CODE
+                ? statusCode - MIN_STATUS_CODE
+                : MAX_STATUS_CODE - MIN_STATUS_CODE + 1;
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.github.raphcal.localserver;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the requests slower than a threshold with the instants of each of
+ * their phases, to tell whether the time went to reading, to the servlet or
+ * to writing.
+ * <p>
+ * Example:
+ * <pre>
+ * final ServerConfiguration configuration = new ServerConfiguration();
+ * configuration.setExchangeListener(new SlowRequestLogger(500, TimeUnit.MILLISECONDS));
+ * </pre>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see ServerConfiguration#setExchangeListener(ExchangeListener)
+ */
+public class SlowRequestLogger implements ExchangeListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlowRequestLogger.class);
+
+    /**
+     * Minimum duration in nanoseconds of a logged request.
+     */
+    private final long threshold;
+
+    /**
+     * Creates a logger of the requests slower than the given duration.
+     *
+     * @param threshold Minimum duration of a logged request, from its first
+     * byte to the last byte of its response.
+     * @param unit Unit of the threshold.
+     */
+    public SlowRequestLogger(long threshold, TimeUnit unit) {
+        this.threshold = unit.toNanos(threshold);
+    }
+
+    /**
+     * Returns the minimum duration of a logged request.
+     *
+     * @param unit Unit of the result.
+     * @return The threshold in the given unit.
+     */
+    public long getThreshold(TimeUnit unit) {
+        return unit.convert(threshold, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void exchangeCompleted(HttpRequest request, HttpResponse response, ExchangeTimings timings) {
+        final long totalTime = timings.getTotalTime();
+        if (totalTime == ExchangeTimings.NOT_RECORDED || totalTime < threshold || !LOGGER.isWarnEnabled()) {
+            return;
+        }
+        LOGGER.warn("Slow request " + request.getMethod() + " " + request.getTarget()
+                + ": " + ExchangeTimings.toMilliseconds(totalTime) + "ms, status " + response.getStatusCode()
+                + " (" + timings + ")");
+    }
+
+}
@@ -19,11 +19,15 @@ class SunHttpServerThread implements ServerThread {
     private final HttpServer server;
     private long startTime;
 
-    public SunHttpServerThread(int port, HttpRequestHandler servlet) {
+    public SunHttpServerThread(int port, HttpRequestHandler servlet, ServerConfiguration configuration, ServerMetrics metrics) {
         try {
             final HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), 0);
-            httpServer.createContext("/", new HttpHandlerAdapter(servlet));
+            httpServer.createContext("/", new HttpHandlerAdapter(servlet, configuration, metrics));
             this.server = httpServer;
+            if (metrics != null) {
+                // HttpServer doesn't tell when connections are opened or closed.
+                metrics.connectionsNotCounted();
+            }
         } catch (IOException e) {
             throw new IllegalStateException("Unable to start server thread", e);
         }
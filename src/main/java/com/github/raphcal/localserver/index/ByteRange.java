@@ -0,0 +1,115 @@
+package com.github.raphcal.localserver.index;
+
+import com.github.raphcal.localserver.HttpConstants;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Range of bytes asked by a <code>Range</code> header.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ByteRange {
+
+    /**
+     * Maximum number of ranges handled in a single request. Requests asking
+     * for more ranges get the whole file.
+     */
+    static final int MAX_RANGES = 16;
+
+    private static final String BYTES_UNIT = HttpConstants.ACCEPT_RANGES_BYTES + '=';
+
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Index of the first byte of this range.
+     *
+     * @return Index of the first byte.
+     */
+    long getFirst() {
+        return first;
+    }
+
+    /**
+     * Index of the last byte of this range, included.
+     *
+     * @return Index of the last byte.
+     */
+    long getLast() {
+        return last;
+    }
+
+    long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of the <code>Content-Range</code> header for this
+     * range.
+     *
+     * @param size Size of the file.
+     * @return The value of the header.
+     */
+    String toContentRange(long size) {
+        return HttpConstants.ACCEPT_RANGES_BYTES + ' ' + first + '-' + last + '/' + size;
+    }
+
+    /**
+     * Parses the value of a <code>Range</code> header.
+     *
+     * @param header Value of the header.
+     * @param size Size of the file.
+     * @return The satisfiable ranges, an empty list if none is satisfiable or
+     * <code>null</code> if the header is invalid or must be ignored.
+     */
+    static List<ByteRange> parse(String header, long size) {
+        if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        final String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        final List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (final String spec : specs) {
+            final String trimmed = spec.trim();
+            final int dash = trimmed.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // Suffix: the last bytes of the file.
+                    final long suffix = Long.parseLong(trimmed.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                } else {
+                    final long first = Long.parseLong(trimmed.substring(0, dash));
+                    final long last = dash == trimmed.length() - 1
+                            ? size - 1
+                            : Long.parseLong(trimmed.substring(dash + 1));
+                    if (first < 0 || (dash < trimmed.length() - 1 && last < first)) {
+                        return null;
+                    }
+                    if (first < size) {
+                        ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.github.raphcal.localserver.index;
+
+import com.github.raphcal.localserver.HttpConstants;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Content of a <code>multipart/byteranges</code> response: each range of a
+ * file, or of a content in memory, preceded by its own header.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ByteRangesInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final ByteBuffer content;
+    private final List<ByteRange> ranges;
+
+    /**
+     * Headers of each range, followed by the closing delimiter.
+     */
+    private final byte[][] delimiters;
+
+    private final long length;
+
+    /**
+     * Index of the part being read. Even parts are delimiters, odd parts are
+     * ranges of the file.
+     */
+    private int part;
+
+    /**
+     * Number of bytes already read in the current part.
+     */
+    private long offset;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param channel File to read. Closed with this stream.
+     * @param ranges Ranges to send.
+     * @param size Size of the file.
+     * @param contentType Type of the file.
+     * @param boundary Boundary separating the parts.
+     */
+    ByteRangesInputStream(FileChannel channel, List<ByteRange> ranges, long size, String contentType, String boundary) {
+        this(channel, null, ranges, size, contentType, boundary);
+    }
+
+    /**
+     * Creates a new stream reading a content in memory.
+     *
+     * @param content Content to read, in read mode. It is not modified.
+     * @param ranges Ranges to send.
+     * @param contentType Type of the content.
+     * @param boundary Boundary separating the parts.
+     */
+    ByteRangesInputStream(ByteBuffer content, List<ByteRange> ranges, String contentType, String boundary) {
+        this(null, content, ranges, content.remaining(), contentType, boundary);
+    }
+
+    private ByteRangesInputStream(FileChannel channel, ByteBuffer content, List<ByteRange> ranges, long size, String contentType, String boundary) {
+        this.channel = channel;
+        this.content = content;
+        this.ranges = ranges;
+        this.delimiters = new byte[ranges.size() + 1][];
+
+        long total = 0;
+        for (int index = 0; index < ranges.size(); index++) {
+            final ByteRange range = ranges.get(index);
+            delimiters[index] = ("\r\n--" + boundary + "\r\n"
+                    + HttpConstants.HEADER_CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpConstants.HEADER_CONTENT_RANGE + ": " + range.toContentRange(size) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            total += delimiters[index].length + range.getLength();
+        }
+        delimiters[ranges.size()] = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.length = total + delimiters[ranges.size()].length;
+    }
+
+    /**
+     * Returns the number of bytes of this stream.
+     *
+     * @return The length of the content.
+     */
+    long getLength() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int count = read(single, 0, 1);
+        return count == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (part <= ranges.size() * 2) {
+            if (part % 2 == 0) {
+                final byte[] delimiter = delimiters[part / 2];
+                if (offset < delimiter.length) {
+                    final int count = Math.min(len, delimiter.length - (int) offset);
+                    System.arraycopy(delimiter, (int) offset, b, off, count);
+                    offset += count;
+                    return count;
+                }
+            } else {
+                final ByteRange range = ranges.get(part / 2);
+                if (offset < range.getLength() && content != null) {
+                    final int count = (int) Math.min(len, range.getLength() - offset);
+                    final ByteBuffer source = content.duplicate();
+                    ((Buffer) source).position(source.position() + (int) (range.getFirst() + offset));
+                    source.get(b, off, count);
+                    offset += count;
+                    return count;
+                } else if (offset < range.getLength()) {
+                    final int count = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, range.getLength() - offset)),
+                            range.getFirst() + offset);
+                    if (count == -1) {
+                        throw new IOException("File ended before the end of range " + range.toContentRange(channel.size()));
+                    }
+                    offset += count;
+                    return count;
+                }
+            }
+            part++;
+            offset = 0;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.github.raphcal.localserver.index;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Entry of a directory listing.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class DirectoryEntry {
+
+    static final String TYPE_FILE = "file";
+    static final String TYPE_DIRECTORY = "directory";
+    static final String TYPE_OTHER = "other";
+
+    private final String path;
+    private final String type;
+    private final long size;
+    private final long lastModified;
+
+    /**
+     * Creates an entry from the attributes read while walking the directory.
+     *
+     * @param path Path relative to the listed directory, with
+     * <code>/</code> as separator.
+     * @param attributes Attributes of the entry.
+     */
+    DirectoryEntry(String path, BasicFileAttributes attributes) {
+        this.path = path;
+        if (attributes.isDirectory()) {
+            this.type = TYPE_DIRECTORY;
+        } else if (attributes.isRegularFile()) {
+            this.type = TYPE_FILE;
+        } else {
+            this.type = TYPE_OTHER;
+        }
+        this.size = attributes.size();
+        this.lastModified = attributes.lastModifiedTime().toMillis();
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    boolean isDirectory() {
+        return type == TYPE_DIRECTORY;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+}
@@ -1,17 +1,26 @@
 package com.github.raphcal.localserver.index;
 
+import com.github.raphcal.localserver.Compression;
+import com.github.raphcal.localserver.HttpConstants;
 import com.github.raphcal.localserver.HttpResponse;
 import com.github.raphcal.localserver.HttpRequest;
 import com.github.raphcal.localserver.HttpServlet;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * List the content of a given directory and its children.
@@ -20,6 +29,11 @@ import java.util.Map;
  */
 public class DirectoryIndexHttpServlet extends HttpServlet {
 
+    /**
+     * Extension of the files compressed with gzip.
+     */
+    private static final String GZIP_EXTENSION = ".gz";
+
     /**
      * Root directory.
      */
@@ -30,9 +44,115 @@ public class DirectoryIndexHttpServlet extends HttpServlet {
      */
     private final Map<String, String> mimeTypes;
 
+    /**
+     * Attributes of the last files served.
+     */
+    private final FileMetadataCache metadataCache = new FileMetadataCache();
+
+    /**
+     * Content of the most requested files or <code>null</code> if files are
+     * always read from the file system.
+     */
+    private final FileContentCache contentCache;
+
+    /**
+     * Rendered listings of directories or <code>null</code> if directories
+     * are scanned on each request.
+     */
+    private final DirectoryListingCache listingCache;
+
+    /**
+     * <code>true</code> to send the ".gz" sibling of a file to clients
+     * accepting gzip.
+     */
+    private boolean servePrecompressedFiles = true;
+
     public DirectoryIndexHttpServlet(File serverRoot) throws IOException {
+        this(serverRoot, null, null);
+    }
+
+    /**
+     * Creates a servlet keeping the content of small files in memory.
+     *
+     * @param serverRoot Root directory.
+     * @param contentCache Cache of the content of files or <code>null</code>
+     * to always read files from the file system. A cache can be used by only
+     * one servlet.
+     * @throws IOException If the root directory or the watch service of the
+     * cache can't be accessed.
+     */
+    public DirectoryIndexHttpServlet(File serverRoot, FileContentCache contentCache) throws IOException {
+        this(serverRoot, contentCache, null);
+    }
+
+    /**
+     * Creates a servlet keeping the content of small files and the listings
+     * of directories in memory.
+     *
+     * @param serverRoot Root directory.
+     * @param contentCache Cache of the content of files or <code>null</code>
+     * to always read files from the file system.
+     * @param listingCache Cache of the listings of directories or
+     * <code>null</code> to scan directories on each request. A cache can be
+     * used by only one servlet.
+     * @throws IOException If the root directory or the watch service of a
+     * cache can't be accessed.
+     */
+    public DirectoryIndexHttpServlet(File serverRoot, FileContentCache contentCache, DirectoryListingCache listingCache) throws IOException {
         this.mimeTypes = createMimeTypeMap();
         this.serverRoot = serverRoot.getCanonicalFile();
+        this.contentCache = contentCache;
+        this.listingCache = listingCache;
+        if (contentCache != null) {
+            contentCache.watch(this.serverRoot);
+        }
+        if (listingCache != null) {
+            listingCache.start();
+        }
+    }
+
+    /**
+     * Returns the cache of the content of files, to read its counters.
+     *
+     * @return The cache or <code>null</code> if files are not cached.
+     */
+    public FileContentCache getContentCache() {
+        return contentCache;
+    }
+
+    /**
+     * Returns the cache of the listings of directories, to read its counters.
+     *
+     * @return The cache or <code>null</code> if listings are not cached.
+     */
+    public DirectoryListingCache getListingCache() {
+        return listingCache;
+    }
+
+    /**
+     * Indicates if the ".gz" sibling of a file is sent instead of the file
+     * to clients accepting gzip.
+     *
+     * @return <code>true</code> if precompressed files are sent.
+     */
+    public boolean isServePrecompressedFiles() {
+        return servePrecompressedFiles;
+    }
+
+    /**
+     * Sets whether the ".gz" sibling of a file is sent instead of the file
+     * to clients accepting gzip. Enabled by default.
+     * <p>
+     * When "style.css.gz" exists next to "style.css" and is not older, a
+     * request for "style.css" accepting gzip receives the content of
+     * "style.css.gz" with the type of "style.css" and a
+     * <code>Content-Encoding: gzip</code> header.
+     *
+     * @param servePrecompressedFiles <code>true</code> to send precompressed
+     * files.
+     */
+    public void setServePrecompressedFiles(boolean servePrecompressedFiles) {
+        this.servePrecompressedFiles = servePrecompressedFiles;
     }
 
     private Map<String, String> createMimeTypeMap() {
@@ -243,63 +363,317 @@ public class DirectoryIndexHttpServlet extends HttpServlet {
                 return;
             }
         }
-        final File file = new File(serverRoot, target).getCanonicalFile();
-        if (!file.exists() || !file.getPath().startsWith(serverRoot.getPath())) {
+        final int queryStart = target.indexOf('?');
+        if (queryStart >= 0) {
+            target = target.substring(0, queryStart);
+        }
+
+        final FileContentCache.Entry cached = contentCache != null ? contentCache.get(target) : null;
+        FileMetadata metadata = cached != null ? cached.getMetadata() : metadataCache.get(target);
+        if (metadata != null && !metadata.exists()) {
             response.setStatusCode(404);
             response.setStatusMessage("NOT FOUND");
             return;
         }
+        if (metadata == null) {
+            final File file = new File(serverRoot, target).getCanonicalFile();
+            if (!file.exists() || !file.getPath().startsWith(serverRoot.getPath())) {
+                response.setStatusCode(404);
+                response.setStatusMessage("NOT FOUND");
+                return;
+            }
+            metadata = FileMetadata.read(file);
+            metadataCache.put(target, metadata);
+        }
 
         response.setStatusCode(200);
 
-        if (file.isDirectory()) {
-            final StringBuilder htmlBuilder = new StringBuilder("<html><head><title>")
-                    .append(file.getName())
-                    .append("</title></head><body><h1>Index of ")
-                    .append(target)
-                    .append("</h1><hr/><pre>");
+        if (metadata.isDirectory()) {
+            sendListing(request, response, target, metadata.getFile());
+        } else {
+            sendFile(request, response, target, metadata, cached);
+        }
+    }
+
+    /**
+     * Sends the listing of the given directory. The plain HTML listing is
+     * sent from the listing cache when possible. Otherwise, the directory is
+     * scanned while the listing is sent.
+     *
+     * @param request Request.
+     * @param response Response.
+     * @param target Path requested.
+     * @param directory Directory to list.
+     * @throws IOException If the directory can't be watched.
+     */
+    private void sendListing(final HttpRequest request, final HttpResponse response, final String target,
+            final File directory) throws IOException {
+        // Parameters of the query string, read by ListingQuery.
+        final Map<String, String> parameters = new HashMap<>();
+        for (final Map.Entry<String, String> parameter : request.getParameters()) {
+            parameters.putIfAbsent(parameter.getKey(), parameter.getValue());
+        }
+        final String accept = request.getHeader(HttpConstants.HEADER_ACCEPT);
+        final ListingQuery query;
+        try {
+            query = ListingQuery.parse(parameters, accept != null && accept.contains(HttpConstants.CONTENT_TYPE_JSON));
+        } catch (IllegalArgumentException e) {
+            response.setStatusCode(HttpConstants.STATUS_CODE_400_BAD_REQUEST);
+            response.setStatusMessage(HttpConstants.STATUS_MESSAGE_400_BAD_REQUEST);
+            response.setContentType("text/plain");
+            response.setContent(e.getMessage());
+            return;
+        }
 
-            final ArrayList<String> children = new ArrayList<>();
+        response.setContentType(query.isJson() ? HttpConstants.CONTENT_TYPE_JSON : "text/html");
+        response.setCharset(StandardCharsets.UTF_8);
 
-            if (target.length() > 1) {
-                children.add("../");
-            }
+        if (listingCache == null || !query.isDefault()) {
+            response.setHeader(HttpConstants.HEADER_VARY, HttpConstants.HEADER_ACCEPT);
+            response.setContentWriter(new DirectoryListingWriter(directory.toPath(), target, query, null, 0));
+            return;
+        }
 
-            for (final File child : file.listFiles()) {
-                if (child.isDirectory()) {
-                    children.add(child.getName() + '/');
-                } else {
-                    children.add(child.getName());
+        response.setHeader(HttpConstants.HEADER_VARY, listingCache.isPrecompress()
+                ? HttpConstants.HEADER_ACCEPT + ", " + HttpConstants.HEADER_ACCEPT_ENCODING
+                : HttpConstants.HEADER_ACCEPT);
+        final DirectoryListingCache.Listing listing = listingCache.get(target);
+        if (listing == null) {
+            final long generation = listingCache.prepare(directory.toPath());
+            response.setContentWriter(new DirectoryListingWriter(directory.toPath(), target, query, listingCache, generation));
+        } else if (listing.getCompressedContent() != null && acceptsGzip(request)) {
+            response.setHeader(HttpConstants.HEADER_CONTENT_ENCODING, HttpConstants.CONTENT_ENCODING_GZIP);
+            response.setContentBuffer(listing.getCompressedContent());
+        } else {
+            response.setContentBuffer(listing.getContent());
+        }
+    }
+
+    /**
+     * Handles HEAD requests like GET requests. The content is not sent.
+     *
+     * @param request HEAD request.
+     * @param response Response.
+     * @throws IOException If the requested file can't be read.
+     */
+    @Override
+    public void doHead(final HttpRequest request, final HttpResponse response) throws IOException {
+        doGet(request, response);
+    }
+
+    /**
+     * Sends the given file, or the parts asked by the <code>Range</code>
+     * header. Nothing is sent if the client already has the current version
+     * of the file.
+     * <p>
+     * Clients accepting gzip receive the compressed content kept by the
+     * content cache or the ".gz" sibling of the file, if any. Ranges then
+     * apply to the compressed content.
+     *
+     * @param request Request.
+     * @param response Response.
+     * @param target Path requested.
+     * @param fileMetadata Attributes of the file to send.
+     * @param cachedFile Content of the file if cached or <code>null</code>.
+     * @throws IOException If the file can't be opened.
+     */
+    private void sendFile(final HttpRequest request, final HttpResponse response, final String target,
+            final FileMetadata fileMetadata, final FileContentCache.Entry cachedFile) throws IOException {
+        FileContentCache.Entry cached = cachedFile;
+        if (cached == null && contentCache != null && contentCache.accepts(fileMetadata)) {
+            cached = contentCache.load(target, fileMetadata.getFile(), getContentType(fileMetadata.getFile()));
+        }
+        FileMetadata metadata = cached != null ? cached.getMetadata() : fileMetadata;
+        final String contentType = cached != null ? cached.getContentType() : getContentType(metadata.getFile());
+        ByteBuffer cachedContent = cached != null ? cached.getContent() : null;
+
+        // Compressed variant.
+        String encoding = null;
+        if (cached != null && Compression.isCompressible(contentType, Compression.DEFAULT_COMPRESSIBLE_CONTENT_TYPES)) {
+            Compression.addVary(response, HttpConstants.HEADER_ACCEPT_ENCODING);
+            final ByteBuffer compressedContent = acceptsGzip(request) ? contentCache.getCompressedContent(target, cached) : null;
+            if (compressedContent != null) {
+                cachedContent = compressedContent;
+                encoding = HttpConstants.CONTENT_ENCODING_GZIP;
+            }
+        }
+        if (encoding == null && servePrecompressedFiles) {
+            final FileMetadata precompressed = getPrecompressedFile(target, metadata);
+            if (precompressed != null) {
+                Compression.addVary(response, HttpConstants.HEADER_ACCEPT_ENCODING);
+                if (acceptsGzip(request)) {
+                    metadata = precompressed;
+                    cachedContent = null;
+                    encoding = HttpConstants.CONTENT_ENCODING_GZIP;
                 }
             }
+        }
+        final String eTag = encoding != null ? Compression.toEncodedEntityTag(metadata.getETag(), encoding) : metadata.getETag();
 
-            for (final String child : children) {
-                htmlBuilder.append("<a href=\"")
-                        .append(child)
-                        .append("\">")
-                        .append(child)
-                        .append("</a>\n");
-            }
+        response.setHeader(HttpConstants.HEADER_LAST_MODIFIED, metadata.getLastModifiedHeader());
+        response.setHeader(HttpConstants.HEADER_ETAG, eTag);
+        response.setHeader(HttpConstants.HEADER_ACCEPT_RANGES, HttpConstants.ACCEPT_RANGES_BYTES);
+        if (encoding != null) {
+            response.setHeader(HttpConstants.HEADER_CONTENT_ENCODING, encoding);
+        }
+
+        if (isNotModified(request, eTag, metadata.getLastModified())) {
+            response.setStatusCode(HttpConstants.STATUS_CODE_304_NOT_MODIFIED);
+            response.setStatusMessage(HttpConstants.STATUS_MESSAGE_304_NOT_MODIFIED);
+            response.removeHeader(HttpConstants.HEADER_CONTENT_TYPE);
+            return;
+        }
+
+        final long size = cachedContent != null ? cachedContent.remaining() : metadata.getSize();
 
-            htmlBuilder.append("</pre></body></html>");
-            response.setContent(htmlBuilder.toString());
+        List<ByteRange> ranges = null;
+        final String range = request.getHeader(HttpConstants.HEADER_RANGE);
+        if (range != null && isRangeApplicable(request.getHeader(HttpConstants.HEADER_IF_RANGE), eTag, metadata.getLastModified())) {
+            ranges = ByteRange.parse(range, size);
+        }
+
+        if (ranges != null && ranges.isEmpty()) {
+            response.setStatusCode(HttpConstants.STATUS_CODE_416_RANGE_NOT_SATISFIABLE);
+            response.setStatusMessage(HttpConstants.STATUS_MESSAGE_416_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpConstants.HEADER_CONTENT_RANGE, HttpConstants.ACCEPT_RANGES_BYTES + " */" + size);
+            return;
+        }
+
+        if (ranges == null) {
+            response.setContentType(contentType);
+            if (cachedContent != null) {
+                response.setContentBuffer(cachedContent);
+            } else {
+                response.setContentFile(FileChannel.open(metadata.getFile().toPath(), StandardOpenOption.READ), 0, size);
+            }
+        } else if (ranges.size() == 1) {
+            final ByteRange byteRange = ranges.get(0);
+            response.setStatusCode(HttpConstants.STATUS_CODE_206_PARTIAL_CONTENT);
+            response.setStatusMessage(HttpConstants.STATUS_MESSAGE_206_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader(HttpConstants.HEADER_CONTENT_RANGE, byteRange.toContentRange(size));
+            if (cachedContent != null) {
+                final ByteBuffer content = cachedContent.duplicate();
+                ((Buffer) content).limit(content.position() + (int) byteRange.getLast() + 1);
+                ((Buffer) content).position(content.position() + (int) byteRange.getFirst());
+                response.setContentBuffer(content);
+            } else {
+                response.setContentFile(FileChannel.open(metadata.getFile().toPath(), StandardOpenOption.READ),
+                        byteRange.getFirst(), byteRange.getLength());
+            }
         } else {
-            response.setContentType(getContentType(file));
+            final String boundary = UUID.randomUUID().toString();
+            final ByteRangesInputStream content = cachedContent != null
+                    ? new ByteRangesInputStream(cachedContent, ranges, contentType, boundary)
+                    : new ByteRangesInputStream(FileChannel.open(metadata.getFile().toPath(), StandardOpenOption.READ), ranges, size, contentType, boundary);
+            response.setStatusCode(HttpConstants.STATUS_CODE_206_PARTIAL_CONTENT);
+            response.setStatusMessage(HttpConstants.STATUS_MESSAGE_206_PARTIAL_CONTENT);
+            response.setContentType(HttpConstants.CONTENT_TYPE_MULTIPART_BYTERANGES + "; boundary=" + boundary);
+            response.setContentStream(content, content.getLength());
+        }
+    }
+
+    /**
+     * Indicates if the client already has the current version of the file,
+     * from the <code>If-None-Match</code> header or, when absent, from the
+     * <code>If-Modified-Since</code> header.
+     *
+     * @param request Request.
+     * @param eTag Entity tag of the file.
+     * @param lastModified Date of the last modification of the file.
+     * @return <code>true</code> if the file must not be sent.
+     */
+    private static boolean isNotModified(final HttpRequest request, final String eTag, final long lastModified) {
+        final String ifNoneMatch = request.getHeader(HttpConstants.HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (final String tag : ifNoneMatch.split(",")) {
+                final String trimmed = tag.trim();
+                if ("*".equals(trimmed) || eTag.equals(trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final long ifModifiedSince = parseDate(request.getHeader(HttpConstants.HEADER_IF_MODIFIED_SINCE));
+        return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * Indicates if the <code>Range</code> header applies to the current
+     * version of the file. A range asked with an outdated
+     * <code>If-Range</code> header gets the whole file.
+     *
+     * @param ifRange Value of the <code>If-Range</code> header or
+     * <code>null</code>.
+     * @param eTag Entity tag of the file.
+     * @param lastModified Date of the last modification of the file.
+     * @return <code>true</code> if the range can be sent.
+     */
+    private static boolean isRangeApplicable(final String ifRange, final String eTag, final long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        final String trimmed = ifRange.trim();
+        if (trimmed.startsWith("\"") || trimmed.startsWith("W/")) {
+            // Weak tags never match.
+            return eTag.equals(trimmed);
+        }
+        return parseDate(trimmed) == lastModified;
+    }
 
-            final FileInputStream inputStream = new FileInputStream(file);
-            final OutputStream outputStream = response.getOutputStream();
+    /**
+     * Indicates if the client accepts content compressed with gzip.
+     *
+     * @param request Request.
+     * @return <code>true</code> if the <code>Accept-Encoding</code> header
+     * accepts gzip.
+     */
+    private static boolean acceptsGzip(final HttpRequest request) {
+        return Compression.isAccepted(request.getHeader(HttpConstants.HEADER_ACCEPT_ENCODING), HttpConstants.CONTENT_ENCODING_GZIP);
+    }
 
+    /**
+     * Returns the attributes of the ".gz" sibling of the given file, if it
+     * exists and is not older than the file.
+     *
+     * @param target Path requested.
+     * @param metadata Attributes of the requested file.
+     * @return The attributes of the compressed file or <code>null</code>.
+     */
+    private FileMetadata getPrecompressedFile(final String target, final FileMetadata metadata) {
+        final String path = target + GZIP_EXTENSION;
+        FileMetadata precompressed = metadataCache.get(path);
+        if (precompressed == null) {
+            final File file = new File(metadata.getFile().getPath() + GZIP_EXTENSION);
             try {
-                final byte[] bytes = new byte[1024];
-                int count = inputStream.read(bytes);
-                while (count > 0) {
-                    outputStream.write(bytes, 0, count);
-                    count = inputStream.read(bytes);
-                }
-            } finally {
-                inputStream.close();
-                outputStream.close();
+                precompressed = FileMetadata.read(file);
+            } catch (IOException e) {
+                // Missing files are remembered too.
+                precompressed = FileMetadata.missing(file);
             }
+            metadataCache.put(path, precompressed);
+        }
+        if (!precompressed.exists() || precompressed.isDirectory()
+                || precompressed.getLastModified() < metadata.getLastModified()) {
+            return null;
+        }
+        return precompressed;
+    }
+
+    /**
+     * Parses a date given in a header.
+     *
+     * @param value Value of the header or <code>null</code>.
+     * @return The date in milliseconds or -1 if the value is not a valid date.
+     */
+    private static long parseDate(final String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
         }
     }
 
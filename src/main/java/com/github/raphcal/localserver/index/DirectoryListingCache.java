@@ -0,0 +1,315 @@
+package com.github.raphcal.localserver.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the rendered listings of directories for
+ * {@link DirectoryIndexHttpServlet}, so that directories are not scanned on
+ * each request.
+ * <p>
+ * Listings are kept encoded, and optionally compressed with gzip, within a
+ * byte budget. The least recently used listings are dropped first. Listed
+ * directories are watched with a {@link java.nio.file.WatchService}: their
+ * listing is dropped as soon as an entry is created or deleted.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class DirectoryListingCache implements Closeable {
+
+    /**
+     * Default maximum size of the cached listings, 16 MiB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+
+    private final long maxBytes;
+    private final boolean precompress;
+
+    /**
+     * Cached listings by request path, in access order.
+     */
+    private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total size of the cached listings, compressed variants included.
+     */
+    private long size;
+
+    /**
+     * Number of invalidations, to avoid caching a listing of a directory
+     * modified while it was scanned.
+     */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private DirectoryWatcher watcher;
+
+    /**
+     * Creates a cache with the default size, keeping compressed listings.
+     */
+    public DirectoryListingCache() {
+        this(DEFAULT_MAX_BYTES, true);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes Maximum size of the cached listings, in bytes.
+     * @param precompress <code>true</code> to also keep a gzip compressed
+     * variant of each listing, sent to clients accepting it.
+     */
+    public DirectoryListingCache(long maxBytes, boolean precompress) {
+        this.maxBytes = maxBytes;
+        this.precompress = precompress;
+    }
+
+    /**
+     * Starts the watcher of the listed directories. Called by the servlet
+     * using this cache.
+     *
+     * @throws IOException If the watch service can't be created.
+     */
+    synchronized void start() throws IOException {
+        if (watcher != null) {
+            throw new IllegalStateException("Cache already used by another servlet");
+        }
+        this.watcher = new DirectoryWatcher("DirectoryListingCache watcher", new DirectoryWatcher.Listener() {
+            @Override
+            public void changed(Path path) {
+                invalidate(path);
+            }
+
+            @Override
+            public void overflowed() {
+                invalidateAll();
+            }
+        }, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    /**
+     * Returns the listing of the directory requested with the given path.
+     *
+     * @param path Path requested.
+     * @return The listing or <code>null</code> if it is not cached.
+     */
+    Listing get(String path) {
+        final Listing listing;
+        synchronized (this) {
+            listing = listings.get(path);
+        }
+        if (listing != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return listing;
+    }
+
+    /**
+     * Watches the given directory before it is scanned.
+     *
+     * @param directory Directory to scan.
+     * @return A generation to give to
+     * {@link #put(String, Path, byte[], int, long)}.
+     * @throws IOException If the directory can't be watched.
+     */
+    synchronized long prepare(Path directory) throws IOException {
+        watcher.watch(directory);
+        return generation;
+    }
+
+    /**
+     * Indicates if a listing of the given size can be kept.
+     *
+     * @param length Size of the listing.
+     * @return <code>true</code> if the listing fits in the cache.
+     */
+    boolean accepts(long length) {
+        return length <= maxBytes;
+    }
+
+    /**
+     * Keeps the listing of the given directory, unless the directory was
+     * modified since {@link #prepare(Path)} was called.
+     *
+     * @param path Path requested.
+     * @param directory Directory listed.
+     * @param content Rendered listing.
+     * @param length Number of bytes of the listing.
+     * @param preparedGeneration Value returned by {@link #prepare(Path)}.
+     * @throws IOException If the listing can't be compressed.
+     */
+    void put(String path, Path directory, byte[] content, int length, long preparedGeneration) throws IOException {
+        if (!accepts(length)) {
+            return;
+        }
+        final ByteBuffer compressed;
+        if (precompress) {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(length / 4 + 64);
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+                gzipOutputStream.write(content, 0, length);
+            }
+            compressed = toDirectBuffer(outputStream.toByteArray(), outputStream.size());
+        } else {
+            compressed = null;
+        }
+        final Listing listing = new Listing(directory, toDirectBuffer(content, length), compressed);
+
+        synchronized (this) {
+            if (generation != preparedGeneration) {
+                return;
+            }
+            final Listing previous = listings.put(path, listing);
+            if (previous != null) {
+                size -= previous.getSize();
+            }
+            size += listing.getSize();
+            final Iterator<Listing> iterator = listings.values().iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                size -= iterator.next().getSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static ByteBuffer toDirectBuffer(byte[] bytes, int length) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(bytes, 0, length);
+        ((Buffer) buffer).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops the listing of the directory containing the given path, and the
+     * listings of every directory inside it.
+     *
+     * @param changed Path of the created or deleted entry.
+     */
+    private synchronized void invalidate(Path changed) {
+        generation++;
+        final Path parent = changed.getParent();
+        final Iterator<Listing> iterator = listings.values().iterator();
+        while (iterator.hasNext()) {
+            final Listing listing = iterator.next();
+            if (listing.getDirectory().equals(parent) || listing.getDirectory().startsWith(changed)) {
+                iterator.remove();
+                size -= listing.getSize();
+            }
+        }
+    }
+
+    private synchronized void invalidateAll() {
+        generation++;
+        listings.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of listings sent from the cache.
+     *
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of listings rendered by scanning a directory.
+     *
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the total size of the cached listings.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isPrecompress() {
+        return precompress;
+    }
+
+    /**
+     * Stops watching the directories and drops every listing.
+     *
+     * @throws IOException If the watch service can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        final DirectoryWatcher closedWatcher;
+        synchronized (this) {
+            closedWatcher = watcher;
+            listings.clear();
+            size = 0;
+        }
+        if (closedWatcher != null) {
+            closedWatcher.close();
+        }
+    }
+
+    /**
+     * Rendered listing of a directory.
+     */
+    static final class Listing {
+
+        private final Path directory;
+        private final ByteBuffer content;
+        private final ByteBuffer compressedContent;
+
+        Listing(Path directory, ByteBuffer content, ByteBuffer compressedContent) {
+            this.directory = directory;
+            this.content = content;
+            this.compressedContent = compressedContent;
+        }
+
+        Path getDirectory() {
+            return directory;
+        }
+
+        /**
+         * Returns the rendered listing. The buffer is shared and must not be
+         * modified.
+         *
+         * @return The listing, in read mode.
+         */
+        ByteBuffer getContent() {
+            return content;
+        }
+
+        /**
+         * Returns the listing compressed with gzip.
+         *
+         * @return The compressed listing or <code>null</code> if listings are
+         * not precompressed.
+         */
+        ByteBuffer getCompressedContent() {
+            return compressedContent;
+        }
+
+        long getSize() {
+            return content.capacity() + (compressedContent != null ? compressedContent.capacity() : 0);
+        }
+    }
+
+}
@@ -0,0 +1,425 @@
+package com.github.raphcal.localserver.index;
+
+import com.github.raphcal.localserver.ContentWriter;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Writes the listing of a directory, in HTML or in JSON. Unsorted listings
+ * are written while the directory is scanned, so that the first entries are
+ * sent before the end of the scan. Sorted listings keep the entries found in
+ * memory but not their rendering.
+ * <p>
+ * A whole listing is also given to a {@link DirectoryListingCache}, when it
+ * fits in it.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class DirectoryListingWriter implements ContentWriter {
+
+    private static final int WRITER_BUFFER_SIZE = 8 * 1024;
+
+    private final Path directory;
+    private final String path;
+    private final ListingQuery query;
+    private final DirectoryListingCache cache;
+    private final long generation;
+
+    /**
+     * Creates a writer.
+     *
+     * @param directory Directory to list.
+     * @param path Path requested.
+     * @param query Options of the listing.
+     * @param cache Cache where to keep the listing or <code>null</code>.
+     * @param generation Value returned by
+     * {@link DirectoryListingCache#prepare(Path)}.
+     */
+    DirectoryListingWriter(Path directory, String path, ListingQuery query, DirectoryListingCache cache, long generation) {
+        this.directory = directory;
+        this.path = path;
+        this.query = query;
+        this.cache = cache;
+        this.generation = generation;
+    }
+
+    @Override
+    public void writeContent(OutputStream outputStream) throws IOException {
+        final CapturingOutputStream capturingOutputStream = new CapturingOutputStream(outputStream, cache);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(capturingOutputStream, StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+        final Format format = query.isJson() ? new JsonFormat(writer) : new HtmlFormat(writer);
+
+        final Path name = directory.getFileName();
+        format.begin(name != null ? name.toString() : "/");
+
+        final int offset = query.getOffset();
+        final int limit = query.getLimit();
+        final boolean more;
+        int count = 0;
+        if (query.isSorted()) {
+            final List<DirectoryEntry> entries = new ArrayList<>();
+            walk(new EntryVisitor() {
+                @Override
+                public boolean visit(DirectoryEntry entry) {
+                    entries.add(entry);
+                    return true;
+                }
+            });
+            Collections.sort(entries, query.getComparator());
+            final int end = limit < 0 ? entries.size() : (int) Math.min(entries.size(), (long) offset + limit);
+            for (int index = offset; index < end; index++) {
+                format.entry(entries.get(index));
+                count++;
+            }
+            more = end < entries.size();
+        } else {
+            final EntryWriter entryWriter = new EntryWriter(format, offset, limit);
+            walk(entryWriter);
+            count = entryWriter.count;
+            more = entryWriter.more;
+        }
+        format.end(more ? query.toQueryString(offset + count) : null);
+        writer.flush();
+
+        final ByteArrayOutputStream capture = capturingOutputStream.getCapture();
+        if (capture != null) {
+            cache.put(path, directory, capture.toByteArray(), capture.size(), generation);
+        }
+    }
+
+    /**
+     * Walks the directory up to the depth of the query and gives the
+     * matching entries to the given visitor, with their attributes read
+     * during the walk.
+     *
+     * @param visitor Visitor of the entries.
+     * @throws IOException If the directory can't be read.
+     */
+    private void walk(final EntryVisitor visitor) throws IOException {
+        Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), query.getDepth(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (dir.equals(directory)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                return visitFile(dir, attributes);
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                final Path relativePath = directory.relativize(file);
+                if (!query.matches(relativePath)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                BasicFileAttributes entryAttributes = attributes;
+                if (attributes.isSymbolicLink()) {
+                    // Links are listed as their target, like before.
+                    try {
+                        entryAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // Broken link.
+                    }
+                }
+                final String entryPath = File.separatorChar == '/'
+                        ? relativePath.toString()
+                        : relativePath.toString().replace(File.separatorChar, '/');
+                return visitor.visit(new DirectoryEntry(entryPath, entryAttributes))
+                        ? FileVisitResult.CONTINUE
+                        : FileVisitResult.TERMINATE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (file.equals(directory)) {
+                    throw exc;
+                }
+                // Unreadable entries are skipped.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Receives the entries found while walking the directory.
+     */
+    private interface EntryVisitor {
+
+        /**
+         * Handles an entry.
+         *
+         * @param entry Entry found.
+         * @return <code>false</code> to stop the walk.
+         * @throws IOException If an I/O error occurs.
+         */
+        boolean visit(DirectoryEntry entry) throws IOException;
+    }
+
+    /**
+     * Writes the entries of the requested page as they are found.
+     */
+    private static final class EntryWriter implements EntryVisitor {
+
+        private final Format format;
+        private final int offset;
+        private final int limit;
+        private int skipped;
+        private int count;
+        private boolean more;
+
+        EntryWriter(Format format, int offset, int limit) {
+            this.format = format;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean visit(DirectoryEntry entry) throws IOException {
+            if (skipped < offset) {
+                skipped++;
+                return true;
+            }
+            if (limit >= 0 && count == limit) {
+                more = true;
+                return false;
+            }
+            format.entry(entry);
+            count++;
+            return true;
+        }
+    }
+
+    /**
+     * Renders a listing.
+     */
+    private abstract static class Format {
+
+        protected final Writer writer;
+
+        Format(Writer writer) {
+            this.writer = writer;
+        }
+
+        /**
+         * Writes the beginning of the listing.
+         *
+         * @param name Name of the directory.
+         * @throws IOException If an I/O error occurs.
+         */
+        abstract void begin(String name) throws IOException;
+
+        abstract void entry(DirectoryEntry entry) throws IOException;
+
+        /**
+         * Writes the end of the listing.
+         *
+         * @param next Query string of the next page or <code>null</code> if
+         * this is the last page.
+         * @throws IOException If an I/O error occurs.
+         */
+        abstract void end(String next) throws IOException;
+    }
+
+    private final class HtmlFormat extends Format {
+
+        HtmlFormat(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        void begin(String name) throws IOException {
+            writer.append("<html><head><meta charset=\"UTF-8\"><title>")
+                    .append(escape(name))
+                    .append("</title></head><body><h1>Index of ")
+                    .append(escape(path))
+                    .append("</h1><hr/><pre>");
+            if (path.length() > 1 && query.getOffset() == 0) {
+                link("../");
+            }
+        }
+
+        @Override
+        void entry(DirectoryEntry entry) throws IOException {
+            link(entry.isDirectory() ? entry.getPath() + '/' : entry.getPath());
+        }
+
+        private void link(final String child) throws IOException {
+            final String escaped = escape(child);
+            writer.append("<a href=\"")
+                    .append(escaped)
+                    .append("\">")
+                    .append(escaped)
+                    .append("</a>\n");
+        }
+
+        @Override
+        void end(String next) throws IOException {
+            if (next != null) {
+                writer.append("\n<a href=\"")
+                        .append(escape(next))
+                        .append("\">Next page</a>\n");
+            }
+            writer.append("</pre></body></html>");
+        }
+    }
+
+    private final class JsonFormat extends Format {
+
+        private boolean first = true;
+
+        JsonFormat(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        void begin(String name) throws IOException {
+            writer.append("{\"path\":");
+            string(path);
+            writer.append(",\"offset\":").append(Integer.toString(query.getOffset()))
+                    .append(",\"entries\":[");
+        }
+
+        @Override
+        void entry(DirectoryEntry entry) throws IOException {
+            if (!first) {
+                writer.append(',');
+            }
+            first = false;
+            writer.append("\n{\"name\":");
+            string(entry.getPath());
+            writer.append(",\"type\":\"").append(entry.getType())
+                    .append("\",\"size\":").append(Long.toString(entry.getSize()))
+                    .append(",\"mtime\":").append(Long.toString(entry.getLastModified()))
+                    .append('}');
+        }
+
+        @Override
+        void end(String next) throws IOException {
+            writer.append("],\"next\":");
+            if (next != null) {
+                string(next);
+            } else {
+                writer.append("null");
+            }
+            writer.append("}\n");
+        }
+
+        private void string(final String value) throws IOException {
+            writer.append('"');
+            for (int index = 0; index < value.length(); index++) {
+                final char c = value.charAt(index);
+                if (c == '"' || c == '\\') {
+                    writer.append('\\').append(c);
+                } else if (c < 0x20) {
+                    writer.append(String.format("\\u%04x", (int) c));
+                } else {
+                    writer.append(c);
+                }
+            }
+            writer.append('"');
+        }
+    }
+
+    /**
+     * Escapes the HTML special characters of the given text.
+     *
+     * @param text Text to escape.
+     * @return The escaped text.
+     */
+    static String escape(final String text) {
+        StringBuilder builder = null;
+        for (int index = 0; index < text.length(); index++) {
+            final char c = text.charAt(index);
+            final String replacement;
+            switch (c) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                default:
+                    replacement = null;
+                    break;
+            }
+            if (replacement != null) {
+                if (builder == null) {
+                    builder = new StringBuilder(text.length() + 16).append(text, 0, index);
+                }
+                builder.append(replacement);
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        return builder != null ? builder.toString() : text;
+    }
+
+    /**
+     * Copies the bytes written to the response, as long as they fit in the
+     * cache.
+     */
+    private static final class CapturingOutputStream extends FilterOutputStream {
+
+        private final DirectoryListingCache cache;
+        private ByteArrayOutputStream capture;
+
+        CapturingOutputStream(OutputStream outputStream, DirectoryListingCache cache) {
+            super(outputStream);
+            this.cache = cache;
+            if (cache != null) {
+                this.capture = new ByteArrayOutputStream(WRITER_BUFFER_SIZE);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (capture != null) {
+                if (cache.accepts((long) capture.size() + len)) {
+                    capture.write(b, off, len);
+                } else {
+                    capture = null;
+                }
+            }
+        }
+
+        /**
+         * Returns the bytes written.
+         *
+         * @return The bytes or <code>null</code> if they don't fit in the
+         * cache.
+         */
+        ByteArrayOutputStream getCapture() {
+            return capture;
+        }
+    }
+
+}
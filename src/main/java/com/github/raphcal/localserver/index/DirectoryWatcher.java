@@ -0,0 +1,178 @@
+package com.github.raphcal.localserver.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches directories with a {@link WatchService} and reports their changes
+ * from a daemon thread.
+ * <p>
+ * Each call to {@link #watch(Path)} must be balanced by a call to
+ * {@link #unwatch(Path)}: a directory stops being watched once no user is
+ * left, so that the watches of the system are not exhausted.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class DirectoryWatcher implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    /**
+     * Receives the changes of the watched directories.
+     */
+    interface Listener {
+
+        /**
+         * Called when a file or a directory is changed.
+         *
+         * @param path Path of the changed entry or of the watched directory
+         * itself when it is no longer accessible.
+         */
+        void changed(Path path);
+
+        /**
+         * Called when some changes were lost. Everything must be considered
+         * as changed.
+         */
+        void overflowed();
+    }
+
+    private final WatchService watchService;
+    private final WatchEvent.Kind<?>[] kinds;
+    private final Listener listener;
+
+    /**
+     * Watched directories, by watch key.
+     */
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /**
+     * Watch of each directory.
+     */
+    private final Map<Path, Watch> watches = new HashMap<>();
+
+    /**
+     * Creates a watcher and starts its thread.
+     *
+     * @param name Name of the thread.
+     * @param listener Listener of the changes.
+     * @param kinds Kinds of events to watch.
+     * @throws IOException If the watch service can't be created.
+     */
+    DirectoryWatcher(String name, Listener listener, WatchEvent.Kind<?>... kinds) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.kinds = kinds;
+        this.listener = listener;
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watchChanges();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts watching the given directory, if not already watched, and adds
+     * a user to its watch.
+     *
+     * @param directory Directory to watch.
+     * @throws IOException If the directory can't be watched.
+     */
+    synchronized void watch(Path directory) throws IOException {
+        Watch watch = watches.get(directory);
+        if (watch == null) {
+            watch = new Watch(directory.register(watchService, kinds));
+            directories.put(watch.key, directory);
+            watches.put(directory, watch);
+        }
+        watch.users++;
+    }
+
+    /**
+     * Removes a user from the watch of the given directory. The directory
+     * stops being watched once it has no user left.
+     *
+     * @param directory Directory given to {@link #watch(Path)}.
+     */
+    synchronized void unwatch(Path directory) {
+        final Watch watch = watches.get(directory);
+        if (watch != null && --watch.users == 0) {
+            watch.key.cancel();
+            directories.remove(watch.key);
+            watches.remove(directory);
+        }
+    }
+
+    private void watchChanges() {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                final Path directory;
+                synchronized (this) {
+                    directory = directories.get(key);
+                }
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        listener.overflowed();
+                    } else if (directory != null) {
+                        listener.changed(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset() && directory != null) {
+                    synchronized (this) {
+                        directories.remove(key);
+                        final Watch watch = watches.get(directory);
+                        if (watch != null && watch.key == key) {
+                            watches.remove(directory);
+                        }
+                    }
+                    listener.changed(directory);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.debug("Directory watcher stopped");
+        }
+    }
+
+    /**
+     * Stops watching every directory.
+     *
+     * @throws IOException If the watch service can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            directories.clear();
+            watches.clear();
+        }
+        watchService.close();
+    }
+
+    /**
+     * Key of a watched directory and number of its users.
+     */
+    private static final class Watch {
+
+        final WatchKey key;
+        int users;
+
+        Watch(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+}
@@ -0,0 +1,471 @@
+package com.github.raphcal.localserver.index;
+
+import com.github.raphcal.localserver.Compression;
+import com.github.raphcal.localserver.HttpConstants;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the content of small files in memory for
+ * {@link DirectoryIndexHttpServlet}, so that frequently requested files are
+ * sent without reading the file system.
+ * <p>
+ * The content of the files is kept in direct buffers, shared by every
+ * response sending them. When the total size exceeds the byte budget, the
+ * least recently used files are dropped. Each directory containing a cached
+ * file, up to the root of the server, is watched with a
+ * {@link java.nio.file.WatchService}: files created, modified or deleted are
+ * dropped from the cache. A directory stops being watched once no cached file
+ * is left below it.
+ * <p>
+ * The gzip compressed content of a file is computed the first time a client
+ * accepting gzip asks for it, and is kept with the file.
+ * <p>
+ * The cache is shared by every thread of the server.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class FileContentCache implements Closeable {
+
+    /**
+     * Default maximum size of the cached files, 64 MiB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * Default maximum size of a single cached file, 1 MiB.
+     */
+    public static final int DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+
+    private final long maxBytes;
+    private final int maxFileSize;
+
+    /**
+     * Cached files by request path, in access order.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total size of the cached files.
+     */
+    private long size;
+
+    /**
+     * Number of invalidations, to avoid caching a file modified while it was
+     * read.
+     */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private File root;
+    private DirectoryWatcher watcher;
+
+    /**
+     * Creates a cache with the default limits.
+     */
+    public FileContentCache() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxBytes Maximum size of the cached files, in bytes.
+     * @param maxFileSize Maximum size of a single cached file, in bytes.
+     * Larger files are always read from the file system.
+     */
+    public FileContentCache(long maxBytes, int maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = (int) Math.min(maxFileSize, maxBytes);
+    }
+
+    /**
+     * Starts watching the files of the given directory. Called by the servlet
+     * using this cache.
+     *
+     * @param root Root directory of the server.
+     * @throws IOException If the watch service can't be created.
+     */
+    synchronized void watch(File root) throws IOException {
+        if (watcher != null) {
+            throw new IllegalStateException("Cache already used for " + this.root);
+        }
+        this.root = root;
+        this.watcher = new DirectoryWatcher("FileContentCache watcher", new DirectoryWatcher.Listener() {
+            @Override
+            public void changed(Path path) {
+                invalidate(path);
+            }
+
+            @Override
+            public void overflowed() {
+                invalidateAll();
+            }
+        }, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Returns the cached file requested with the given path.
+     *
+     * @param path Path requested.
+     * @return The cached file or <code>null</code> if it is not cached.
+     */
+    Entry get(String path) {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Indicates if the given file is small enough to be cached.
+     *
+     * @param metadata Attributes of the file.
+     * @return <code>true</code> if the file can be cached.
+     */
+    boolean accepts(FileMetadata metadata) {
+        return !metadata.isDirectory() && metadata.getSize() <= maxFileSize;
+    }
+
+    /**
+     * Reads the given file and keeps its content. Counted as a miss.
+     *
+     * @param path Path requested.
+     * @param file File to read, inside the root directory.
+     * @param contentType Type of the file.
+     * @return The cached file or <code>null</code> if it can't be cached.
+     * @throws IOException If the file can't be read.
+     */
+    Entry load(String path, File file, String contentType) throws IOException {
+        misses.incrementAndGet();
+
+        // Watched before reading to see every modification after the read.
+        // The watches are kept by the entry, or released if it is not kept.
+        final long loadGeneration;
+        synchronized (this) {
+            watchDirectories(file);
+            loadGeneration = generation;
+        }
+        boolean kept = false;
+        try {
+            final FileMetadata metadata = FileMetadata.read(file);
+            if (!accepts(metadata)) {
+                return null;
+            }
+            final ByteBuffer content = ByteBuffer.allocateDirect((int) metadata.getSize());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (content.hasRemaining() && channel.read(content) != -1) {
+                    // Reads until the buffer is full.
+                }
+                if (content.hasRemaining() || channel.size() != metadata.getSize()) {
+                    // Modified while read.
+                    return null;
+                }
+            }
+            ((Buffer) content).flip();
+            final Entry entry = new Entry(metadata, contentType, content.asReadOnlyBuffer());
+
+            synchronized (this) {
+                if (generation != loadGeneration) {
+                    return entry;
+                }
+                final Entry previous = entries.put(path, entry);
+                kept = true;
+                if (previous != null) {
+                    size -= previous.getSize();
+                    unwatchDirectories(previous);
+                }
+                size += entry.getSize();
+                evict();
+            }
+            return entry;
+        } finally {
+            if (!kept) {
+                synchronized (this) {
+                    unwatchDirectories(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the content of the given cached file compressed with gzip. The
+     * compressed content is computed on the first call and kept with the
+     * file, within the byte budget.
+     *
+     * @param path Path requested.
+     * @param entry Cached file.
+     * @return The compressed content, in read mode, or <code>null</code> if
+     * compression does not make the file smaller.
+     */
+    ByteBuffer getCompressedContent(String path, Entry entry) {
+        ByteBuffer compressedContent = entry.compressedContent;
+        if (compressedContent == null) {
+            final ByteBuffer compressed = Compression.compress(entry.getContent(), HttpConstants.CONTENT_ENCODING_GZIP);
+            if (compressed.remaining() < entry.getContent().remaining()) {
+                compressedContent = ByteBuffer.allocateDirect(compressed.remaining());
+                compressedContent.put(compressed);
+                ((Buffer) compressedContent).flip();
+                compressedContent = compressedContent.asReadOnlyBuffer();
+            } else {
+                compressedContent = entry.getContent();
+            }
+            synchronized (this) {
+                if (entry.compressedContent == null) {
+                    entry.compressedContent = compressedContent;
+                    if (entries.get(path) == entry) {
+                        size += entry.getSize() - entry.getMetadata().getSize();
+                        evict();
+                    }
+                } else {
+                    compressedContent = entry.compressedContent;
+                }
+            }
+        }
+        return compressedContent != entry.getContent() ? compressedContent.duplicate() : null;
+    }
+
+    /**
+     * Drops the least recently used files until the byte budget is
+     * respected.
+     */
+    private void evict() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxBytes && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            iterator.remove();
+            size -= eldest.getSize();
+            unwatchDirectories(eldest);
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Watches every directory containing the given file, up to the root.
+     *
+     * @param file File inside the root directory.
+     * @throws IOException If a directory can't be watched. The directories
+     * already watched are released.
+     */
+    private void watchDirectories(File file) throws IOException {
+        final Path rootPath = root.toPath();
+        Path directory = file.toPath().getParent();
+        try {
+            while (directory != null && directory.startsWith(rootPath)) {
+                watcher.watch(directory);
+                directory = directory.getParent();
+            }
+        } catch (IOException e) {
+            // Releases the directories below the one that failed.
+            Path watched = file.toPath().getParent();
+            while (watched != null && !watched.equals(directory)) {
+                watcher.unwatch(watched);
+                watched = watched.getParent();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the directories watched by
+     * {@link #watchDirectories(java.io.File)} for the given file.
+     *
+     * @param file File inside the root directory.
+     */
+    private void unwatchDirectories(File file) {
+        final Path rootPath = root.toPath();
+        Path directory = file.toPath().getParent();
+        while (directory != null && directory.startsWith(rootPath)) {
+            watcher.unwatch(directory);
+            directory = directory.getParent();
+        }
+    }
+
+    private void unwatchDirectories(Entry entry) {
+        unwatchDirectories(entry.getMetadata().getFile());
+    }
+
+    /**
+     * Drops the given file, or every file of the given directory.
+     *
+     * @param changed Path of the modified file or directory.
+     */
+    private synchronized void invalidate(Path changed) {
+        generation++;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.getMetadata().getFile().toPath().startsWith(changed)) {
+                iterator.remove();
+                size -= entry.getSize();
+                unwatchDirectories(entry);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops every file.
+     */
+    private synchronized void invalidateAll() {
+        generation++;
+        invalidations.addAndGet(entries.size());
+        for (final Entry entry : entries.values()) {
+            unwatchDirectories(entry);
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of requests answered with a cached file.
+     *
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of requests for a file small enough to be cached
+     * but not in the cache.
+     *
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of files dropped to respect the byte budget.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of files dropped because they were modified.
+     *
+     * @return The number of invalidations.
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Returns the number of cached files.
+     *
+     * @return The number of files.
+     */
+    public synchronized int getFileCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the total size of the cached files.
+     *
+     * @return The size in bytes.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Stops watching the files and drops every cached file.
+     *
+     * @throws IOException If the watch service can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        final DirectoryWatcher closedWatcher;
+        synchronized (this) {
+            closedWatcher = watcher;
+            entries.clear();
+            size = 0;
+        }
+        if (closedWatcher != null) {
+            closedWatcher.close();
+        }
+    }
+
+    /**
+     * Cached file.
+     */
+    static final class Entry {
+
+        private final FileMetadata metadata;
+        private final String contentType;
+        private final ByteBuffer content;
+
+        /**
+         * Content compressed with gzip, the content itself if compression
+         * does not make it smaller, or <code>null</code> if not computed yet.
+         * Written while holding the lock of the cache.
+         */
+        private volatile ByteBuffer compressedContent;
+
+        Entry(FileMetadata metadata, String contentType, ByteBuffer content) {
+            this.metadata = metadata;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        FileMetadata getMetadata() {
+            return metadata;
+        }
+
+        String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Returns the content of the file. The buffer is shared and must not
+         * be modified.
+         *
+         * @return The content, in read mode.
+         */
+        ByteBuffer getContent() {
+            return content;
+        }
+
+        /**
+         * Returns the number of bytes kept for this file, including its
+         * compressed content.
+         *
+         * @return The size in bytes.
+         */
+        long getSize() {
+            final ByteBuffer compressed = compressedContent;
+            return metadata.getSize() + (compressed != null && compressed != content ? compressed.capacity() : 0);
+        }
+    }
+
+}
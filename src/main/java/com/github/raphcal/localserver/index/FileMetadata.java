@@ -0,0 +1,123 @@
+package com.github.raphcal.localserver.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Attributes of a file served by {@link DirectoryIndexHttpServlet}, read
+ * once and kept by a {@link FileMetadataCache}.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class FileMetadata {
+
+    /**
+     * Format of the <code>Last-Modified</code> header, with a two-digit day.
+     */
+    private static final DateTimeFormatter LAST_MODIFIED_FORMATTER = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private final File file;
+    private final boolean exists;
+    private final boolean directory;
+    private final long size;
+
+    /**
+     * Date of the last modification, truncated to the second as in the
+     * <code>Last-Modified</code> header.
+     */
+    private final long lastModified;
+    private final String lastModifiedHeader;
+    private final String eTag;
+
+    /**
+     * Time when the attributes were read, from {@link System#nanoTime()}.
+     */
+    private final long readTime;
+
+    private FileMetadata(File file, BasicFileAttributes attributes) {
+        this.file = file;
+        this.exists = true;
+        this.directory = attributes.isDirectory();
+        this.size = attributes.size();
+        final long modified = attributes.lastModifiedTime().toMillis();
+        this.lastModified = modified - Math.floorMod(modified, 1000L);
+        this.lastModifiedHeader = LAST_MODIFIED_FORMATTER.format(Instant.ofEpochMilli(lastModified));
+        this.eTag = '"' + Long.toHexString(size) + '-' + Long.toHexString(modified) + '"';
+        this.readTime = System.nanoTime();
+    }
+
+    /**
+     * Reads the attributes of the given file with a single call to the file
+     * system.
+     *
+     * @param file File to read.
+     * @return The attributes of the file.
+     * @throws IOException If the file does not exist or can't be read.
+     */
+    static FileMetadata read(File file) throws IOException {
+        return new FileMetadata(file, Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+    }
+
+    /**
+     * Returns the attributes of a file that does not exist, to remember that
+     * it is missing.
+     *
+     * @param file Missing file.
+     * @return Attributes of a missing file.
+     */
+    static FileMetadata missing(File file) {
+        return new FileMetadata(file);
+    }
+
+    private FileMetadata(File file) {
+        this.file = file;
+        this.exists = false;
+        this.directory = false;
+        this.size = 0;
+        this.lastModified = 0;
+        this.lastModifiedHeader = null;
+        this.eTag = null;
+        this.readTime = System.nanoTime();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        return exists;
+    }
+
+    boolean isDirectory() {
+        return directory;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    String getLastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+
+    String getETag() {
+        return eTag;
+    }
+
+    long getReadTime() {
+        return readTime;
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.github.raphcal.localserver.index;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the attributes of the last files served, by request path, so that
+ * the file system is not queried on each request.
+ * <p>
+ * Entries are dropped after a short time to see modified files. The least
+ * recently used entry is dropped when the cache is full.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class FileMetadataCache {
+
+    /**
+     * Default time during which attributes are kept, in milliseconds.
+     */
+    static final long DEFAULT_TIME_TO_LIVE = 1000L;
+
+    /**
+     * Default number of entries.
+     */
+    static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final long timeToLive;
+
+    private final Map<String, FileMetadata> entries;
+
+    /**
+     * Creates a cache with the default time to live and size.
+     */
+    FileMetadataCache() {
+        this(DEFAULT_TIME_TO_LIVE, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param timeToLive Time during which attributes are kept, in
+     * milliseconds.
+     * @param maxEntries Number of entries to keep.
+     */
+    FileMetadataCache(long timeToLive, final int maxEntries) {
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+        this.entries = new LinkedHashMap<String, FileMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FileMetadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the attributes of the file at the given path if they were read
+     * recently.
+     *
+     * @param path Path requested.
+     * @return The attributes or <code>null</code> if they must be read again.
+     */
+    synchronized FileMetadata get(String path) {
+        final FileMetadata metadata = entries.get(path);
+        if (metadata != null && System.nanoTime() - metadata.getReadTime() >= timeToLive) {
+            entries.remove(path);
+            return null;
+        }
+        return metadata;
+    }
+
+    /**
+     * Keeps the attributes of the file at the given path.
+     *
+     * @param path Path requested.
+     * @param metadata Attributes of the file.
+     */
+    synchronized void put(String path, FileMetadata metadata) {
+        entries.put(path, metadata);
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.github.raphcal.localserver.index;
+
+import com.github.raphcal.localserver.LocalServer;
+import com.github.raphcal.localserver.ServerConfiguration;
+import com.github.raphcal.localserver.ServerImplementationType;
+import com.github.raphcal.localserver.ServerMetrics;
+import com.github.raphcal.localserver.load.LoadGenerator;
+import com.github.raphcal.localserver.load.LoadGeneratorMain;
+import com.github.raphcal.localserver.load.LoadReport;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Starts a directory index server and measures it with a
+ * {@link LoadGenerator} from the same process.
+ * <pre>
+ * IndexServerBenchmark [--type LOCALSERVER] [--workers N] [--selectors N] [--cache] [load options] root [path]
+ * </pre>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public class IndexServerBenchmark {
+
+    private static final String USAGE = "Usage: IndexServerBenchmark [options] [load options] root [path]\n"
+            + "  --type T              server implementation: LOCALSERVER, SUN_HTTP_SERVER or VIRTUAL_THREADS\n"
+            + "  --workers N           worker threads of LOCALSERVER\n"
+            + "  --selectors N         selector threads of LOCALSERVER\n"
+            + "  --cache               keeps files and listings in memory\n"
+            + "Load options:\n" + LoadGeneratorMain.OPTIONS;
+
+    public static void main(String[] args) throws IOException {
+        ServerImplementationType type = ServerImplementationType.LOCALSERVER;
+        final ServerConfiguration configuration = new ServerConfiguration();
+        boolean cache = false;
+        final List<String> loadArguments = new ArrayList<>();
+        final List<String> paths = new ArrayList<>();
+        try {
+            for (int index = 0; index < args.length; index++) {
+                final String argument = args[index];
+                switch (argument) {
+                    case "--type":
+                        type = ServerImplementationType.valueOf(value(args, ++index).toUpperCase(Locale.ROOT));
+                        break;
+                    case "--workers":
+                        configuration.setWorkerThreads(Integer.parseInt(value(args, ++index)));
+                        break;
+                    case "--selectors":
+                        configuration.setSelectorThreads(Integer.parseInt(value(args, ++index)));
+                        break;
+                    case "--cache":
+                        cache = true;
+                        break;
+                    default:
+                        if (argument.startsWith("-")) {
+                            loadArguments.add(argument);
+                            loadArguments.add(value(args, ++index));
+                        } else {
+                            paths.add(argument);
+                        }
+                }
+            }
+            if (paths.isEmpty() || paths.size() > 2) {
+                throw new IllegalArgumentException("Missing root directory");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        final File root = new File(paths.get(0));
+        if (!root.isDirectory()) {
+            System.err.println("Invalid root path: " + root);
+            System.exit(1);
+            return;
+        }
+        final String path = paths.size() == 2 ? paths.get(1) : "/";
+
+        final FileContentCache contentCache = cache ? new FileContentCache() : null;
+        final DirectoryListingCache listingCache = cache ? new DirectoryListingCache() : null;
+        final LocalServer localServer = new LocalServer(findFreePort(),
+                new DirectoryIndexHttpServlet(root, contentCache, listingCache), type, configuration);
+        localServer.start();
+        try {
+            loadArguments.add("http://localhost:" + localServer.getEndpoint().getPort()
+                    + (path.startsWith("/") ? path : "/" + path));
+            final LoadGenerator generator;
+            try {
+                generator = LoadGeneratorMain.parseArguments(loadArguments.toArray(new String[loadArguments.size()]));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.err.println(USAGE);
+                System.exit(1);
+                return;
+            }
+            System.out.println(type + " serving " + root.getCanonicalPath() + " on " + localServer.getEndpoint());
+            final LoadReport report = generator.run();
+            System.out.println(report);
+
+            final ServerMetrics metrics = localServer.getMetrics();
+            System.out.println(String.format(Locale.ROOT,
+                    "Server: %d connections, %d requests, handler mean %.3f ms, latency p99 %.3f ms",
+                    metrics.getConnectionsAccepted(), metrics.getRequestCount(),
+                    metrics.getHandlerTime().getMean() / 1e6,
+                    metrics.getRequestLatency().getValueAtPercentile(99) / 1e6));
+        } finally {
+            localServer.stop();
+            if (contentCache != null) {
+                contentCache.close();
+            }
+            if (listingCache != null) {
+                listingCache.close();
+            }
+        }
+    }
+
+    private static String value(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static int findFreePort() throws IOException {
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+}
@@ -0,0 +1,247 @@
+package com.github.raphcal.localserver.index;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Options of a directory listing, given as query parameters:
+ * <ul>
+ * <li><code>format</code>: <code>html</code> or <code>json</code>. JSON is
+ * also selected by an <code>Accept: application/json</code> header.</li>
+ * <li><code>sort</code>: <code>name</code>, <code>size</code> or
+ * <code>mtime</code>. Unsorted listings follow the order of the file system
+ * and are streamed while the directory is scanned.</li>
+ * <li><code>order</code>: <code>asc</code> (default) or
+ * <code>desc</code>.</li>
+ * <li><code>glob</code>: pattern that entries must match. A pattern without
+ * <code>/</code> is matched against the name of the entries, otherwise
+ * against their path relative to the listed directory.</li>
+ * <li><code>depth</code>: number of levels to list, 1 (default) for the
+ * children of the directory only.</li>
+ * <li><code>offset</code> and <code>limit</code>: page of entries to
+ * list.</li>
+ * </ul>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ListingQuery {
+
+    /**
+     * Maximum value of the <code>depth</code> parameter.
+     */
+    static final int MAX_DEPTH = 32;
+
+    /**
+     * Order of the entries.
+     */
+    enum Sort {
+        NAME(new Comparator<DirectoryEntry>() {
+            @Override
+            public int compare(DirectoryEntry first, DirectoryEntry second) {
+                return first.getPath().compareTo(second.getPath());
+            }
+        }),
+        SIZE(new Comparator<DirectoryEntry>() {
+            @Override
+            public int compare(DirectoryEntry first, DirectoryEntry second) {
+                final int result = Long.compare(first.getSize(), second.getSize());
+                return result != 0 ? result : first.getPath().compareTo(second.getPath());
+            }
+        }),
+        MTIME(new Comparator<DirectoryEntry>() {
+            @Override
+            public int compare(DirectoryEntry first, DirectoryEntry second) {
+                final int result = Long.compare(first.getLastModified(), second.getLastModified());
+                return result != 0 ? result : first.getPath().compareTo(second.getPath());
+            }
+        });
+
+        private final Comparator<DirectoryEntry> comparator;
+
+        private Sort(Comparator<DirectoryEntry> comparator) {
+            this.comparator = comparator;
+        }
+    }
+
+    private final Map<String, String> parameters;
+    private final boolean json;
+    private final Sort sort;
+    private final boolean descending;
+    private final PathMatcher matcher;
+    private final boolean matchingPath;
+    private final int depth;
+    private final int offset;
+    private final int limit;
+
+    private ListingQuery(Map<String, String> parameters, boolean json, Sort sort, boolean descending,
+            PathMatcher matcher, boolean matchingPath, int depth, int offset, int limit) {
+        this.parameters = parameters;
+        this.json = json;
+        this.sort = sort;
+        this.descending = descending;
+        this.matcher = matcher;
+        this.matchingPath = matchingPath;
+        this.depth = depth;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /**
+     * Reads the options of a listing from the given query parameters.
+     *
+     * @param parameters Query parameters.
+     * @param acceptsJson <code>true</code> if the client asked for JSON with
+     * the <code>Accept</code> header.
+     * @return The options.
+     * @throws IllegalArgumentException If a parameter is invalid.
+     */
+    static ListingQuery parse(Map<String, String> parameters, boolean acceptsJson) {
+        final String format = parameters.get("format");
+        final boolean json;
+        if (format == null) {
+            json = acceptsJson;
+        } else if ("json".equalsIgnoreCase(format)) {
+            json = true;
+        } else if ("html".equalsIgnoreCase(format)) {
+            json = false;
+        } else {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+
+        final String sortName = parameters.get("sort");
+        Sort sort = null;
+        if (sortName != null) {
+            try {
+                sort = Sort.valueOf(sortName.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unsupported sort: " + sortName);
+            }
+        }
+
+        final String order = parameters.get("order");
+        if (order != null && !"asc".equalsIgnoreCase(order) && !"desc".equalsIgnoreCase(order)) {
+            throw new IllegalArgumentException("Unsupported order: " + order);
+        }
+
+        final String glob = parameters.get("glob");
+        PathMatcher matcher = null;
+        if (glob != null && !glob.isEmpty()) {
+            try {
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid glob: " + glob);
+            }
+        }
+
+        final int depth = parseInt(parameters, "depth", 1);
+        if (depth < 1 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("depth must be between 1 and " + MAX_DEPTH);
+        }
+        final int offset = parseInt(parameters, "offset", 0);
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must be positive");
+        }
+        final int limit = parseInt(parameters, "limit", -1);
+        if (limit < -1) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+
+        return new ListingQuery(parameters, json, sort, "desc".equalsIgnoreCase(order),
+                matcher, glob != null && glob.indexOf('/') >= 0, depth, offset, limit);
+    }
+
+    private static int parseInt(Map<String, String> parameters, String name, int defaultValue) {
+        final String value = parameters.get(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a number: " + value);
+        }
+    }
+
+    /**
+     * Indicates if this listing is the plain HTML listing of the children of
+     * a directory, which can be cached.
+     *
+     * @return <code>true</code> if no option is given.
+     */
+    boolean isDefault() {
+        return !json && sort == null && matcher == null && depth == 1 && offset == 0 && limit == -1;
+    }
+
+    boolean isJson() {
+        return json;
+    }
+
+    boolean isSorted() {
+        return sort != null;
+    }
+
+    /**
+     * Returns the comparator giving the order of the entries.
+     *
+     * @return The comparator or <code>null</code> if unsorted.
+     */
+    Comparator<DirectoryEntry> getComparator() {
+        if (sort == null) {
+            return null;
+        }
+        return descending ? sort.comparator.reversed() : sort.comparator;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Indicates if the given entry matches the glob of this query.
+     *
+     * @param relativePath Path of the entry, relative to the listed
+     * directory.
+     * @return <code>true</code> if the entry must be listed.
+     */
+    boolean matches(Path relativePath) {
+        return matcher == null || matcher.matches(matchingPath ? relativePath : relativePath.getFileName());
+    }
+
+    /**
+     * Returns the query string of the page starting at the given offset.
+     *
+     * @param nextOffset Index of the first entry of the page.
+     * @return The query string, starting with a question mark.
+     */
+    String toQueryString(int nextOffset) {
+        final StringBuilder builder = new StringBuilder("?offset=").append(nextOffset);
+        try {
+            for (final Map.Entry<String, String> parameter : parameters.entrySet()) {
+                if (!"offset".equals(parameter.getKey())) {
+                    builder.append('&')
+                            .append(URLEncoder.encode(parameter.getKey(), "UTF-8"))
+                            .append('=')
+                            .append(URLEncoder.encode(parameter.getValue(), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,568 @@
+package com.github.raphcal.localserver.load;
+
+import com.github.raphcal.localserver.HttpConstants;
+import com.github.raphcal.localserver.LatencyHistogram;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the same request over a set of persistent connections and measures
+ * the latency of the responses.
+ * <p>
+ * All the connections are handled by the calling thread with a selector, so
+ * that the generator itself does not need one thread per connection. Two
+ * modes are available:
+ * <ul>
+ * <li>closed loop (default): each connection sends its next request as soon
+ * as it receives a response. The throughput is the one of the server.</li>
+ * <li>open loop ({@link #setRate(double)}): requests are sent at a constant
+ * rate, whatever the time taken by the responses. The latency of a request
+ * is measured from the instant it was due, even if every connection was
+ * busy at that instant, so that a stalled server is not hidden by the
+ * requests it prevented from being sent (coordinated omission).</li>
+ * </ul>
+ * Example:
+ * <pre>
+ * final LoadGenerator generator = new LoadGenerator("localhost", 8787);
+ * generator.setTarget("/index.html");
+ * generator.setConnections(32);
+ * generator.setRate(10000);
+ * System.out.println(generator.run());
+ * </pre>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ * @see LoadGeneratorMain
+ */
+public class LoadGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+
+    /**
+     * Default number of connections.
+     */
+    public static final int DEFAULT_CONNECTIONS = 16;
+
+    /**
+     * Default duration of the measurement in milliseconds.
+     */
+    public static final long DEFAULT_DURATION = 10000L;
+
+    /**
+     * Delay in milliseconds before opening again a connection which could
+     * not connect.
+     */
+    private static final long RECONNECT_DELAY = 10L;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private String method = HttpConstants.METHOD_GET;
+    private String target = "/";
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private byte[] body;
+    private int connections = DEFAULT_CONNECTIONS;
+    private long duration = DEFAULT_DURATION;
+    private long warmup;
+    private double rate;
+
+    /**
+     * Creates a generator sending requests to the given server.
+     *
+     * @param host Name or address of the server.
+     * @param port Port of the server.
+     */
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Sets the path and query of the requests.
+     *
+     * @param target Target of the requests, like <code>/index.html</code>.
+     */
+    public void setTarget(String target) {
+        this.target = target;
+    }
+
+    /**
+     * Adds a header to the requests. "Host" and "Content-Length" are set by
+     * the generator.
+     *
+     * @param name Name of the header.
+     * @param value Value of the header.
+     */
+    public void addHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Sets the content sent with each request.
+     *
+     * @param body Content of the requests or <code>null</code>.
+     */
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Sets the number of connections. In closed loop mode, it is the number
+     * of requests sent at the same time.
+     *
+     * @param connections Number of connections.
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * Returns the duration of the measurement in milliseconds.
+     *
+     * @return Duration in milliseconds, warmup excluded.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Returns the duration in milliseconds during which requests are sent
+     * but not measured, before the measurement.
+     *
+     * @return Duration in milliseconds.
+     */
+    public long getWarmup() {
+        return warmup;
+    }
+
+    public void setWarmup(long warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * Returns the rate of an open loop run.
+     *
+     * @return Requests per second or 0 in closed loop mode.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Sets the number of requests per second to send in open loop mode.
+     *
+     * @param rate Requests per second or 0 to send the requests in closed
+     * loop.
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Sends requests during the warmup and the duration of the measurement.
+     * This method blocks until the end of the run.
+     *
+     * @return The results of the measurement.
+     * @throws IOException If the selector can't be opened.
+     */
+    public LoadReport run() throws IOException {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        try (final Selector selector = Selector.open()) {
+            return new Run(selector).execute();
+        }
+    }
+
+    /**
+     * Encodes the request sent by every connection.
+     *
+     * @return A read-only buffer containing the request.
+     */
+    ByteBuffer encodeRequest() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(method).append(' ').append(target).append(' ').append(HttpConstants.VERSION_1_1).append("\r\n");
+        builder.append(HttpConstants.HEADER_HOST).append(": ").append(host);
+        if (port != 80) {
+            builder.append(':').append(port);
+        }
+        builder.append("\r\n");
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            builder.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body != null) {
+            builder.append(HttpConstants.HEADER_CONTENT_LENGTH).append(": ").append(body.length).append("\r\n");
+        }
+        builder.append("\r\n");
+
+        final byte[] head = builder.toString().getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuffer request = ByteBuffer.allocateDirect(head.length + (body != null ? body.length : 0));
+        request.put(head);
+        if (body != null) {
+            request.put(body);
+        }
+        ((Buffer) request).flip();
+        return request.asReadOnlyBuffer();
+    }
+
+    /**
+     * Connection of the generator to the server.
+     */
+    private static final class Connection {
+
+        final ResponseParser parser = new ResponseParser();
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer request;
+
+        /**
+         * <code>true</code> while a request is sent or its response read.
+         */
+        boolean busy;
+
+        /**
+         * Instant the current request was due.
+         */
+        long intended;
+
+        /**
+         * Instant the current request was sent.
+         */
+        long sent;
+
+        /**
+         * Instant after which a failed connection is opened again.
+         */
+        long retryAt;
+    }
+
+    /**
+     * State of a run.
+     */
+    private final class Run {
+
+        private final Selector selector;
+        private final InetSocketAddress address = new InetSocketAddress(host, port);
+        private final ByteBuffer request = encodeRequest();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final boolean headRequest = HttpConstants.METHOD_HEAD.equals(method);
+        private final boolean openLoop = rate > 0;
+
+        /**
+         * Interval between two requests in open loop mode, in nanoseconds.
+         */
+        private final double interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+
+        private final List<Connection> allConnections = new ArrayList<>();
+        private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+        private final ArrayDeque<Connection> reconnecting = new ArrayDeque<>();
+
+        private long start;
+        private long measureStart;
+        private long end;
+
+        /**
+         * Number of requests sent since the start, in open loop mode.
+         */
+        private long dispatched;
+
+        private long requests;
+        private long errors;
+        private long bytesRead;
+        private final Map<Integer, Long> statusCounts = new HashMap<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+        Run(Selector selector) {
+            this.selector = selector;
+        }
+
+        LoadReport execute() throws IOException {
+            start = System.nanoTime();
+            measureStart = start + TimeUnit.MILLISECONDS.toNanos(warmup);
+            end = measureStart + TimeUnit.MILLISECONDS.toNanos(duration);
+
+            for (int index = 0; index < connections; index++) {
+                final Connection connection = new Connection();
+                allConnections.add(connection);
+                connect(connection, start);
+            }
+
+            try {
+                long now = System.nanoTime();
+                while (now < end) {
+                    reconnect(now);
+                    dispatch(now);
+                    select(now);
+                    now = System.nanoTime();
+                    handleSelectedKeys(now);
+                }
+            } finally {
+                for (final Connection connection : allConnections) {
+                    close(connection);
+                }
+            }
+
+            final long backlog = openLoop
+                    ? Math.max(0, (long) ((end - start) / interval) + 1 - dispatched)
+                    : 0;
+            return new LoadReport(openLoop, rate, connections, end - measureStart, requests, errors, bytesRead,
+                    backlog, statusCounts, latency, serviceTime);
+        }
+
+        /**
+         * Sends the requests which are due on the idle connections.
+         *
+         * @param now Current instant.
+         */
+        private void dispatch(long now) {
+            if (openLoop) {
+                while (!idle.isEmpty() && intended(dispatched) <= now) {
+                    send(idle.poll(), intended(dispatched), now);
+                    dispatched++;
+                }
+            } else {
+                while (!idle.isEmpty()) {
+                    send(idle.poll(), now, now);
+                }
+            }
+        }
+
+        /**
+         * Returns the instant the given request is due in open loop mode.
+         *
+         * @param index Index of the request since the start.
+         * @return The instant in nanoseconds.
+         */
+        private long intended(long index) {
+            return start + (long) (index * interval);
+        }
+
+        /**
+         * Waits for I/O events until the next request is due.
+         *
+         * @param now Current instant.
+         * @throws IOException If the selector fails.
+         */
+        private void select(long now) throws IOException {
+            long wait = end - now;
+            if (openLoop && !idle.isEmpty()) {
+                wait = Math.min(wait, intended(dispatched) - now);
+            }
+            if (!reconnecting.isEmpty()) {
+                wait = Math.min(wait, reconnecting.peek().retryAt - now);
+            }
+            final long millis = TimeUnit.NANOSECONDS.toMillis(wait);
+            if (millis <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(millis);
+            }
+        }
+
+        private void handleSelectedKeys(long now) {
+            final Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+            while (keyIterator.hasNext()) {
+                final SelectionKey key = keyIterator.next();
+                keyIterator.remove();
+                final Connection connection = (Connection) key.attachment();
+                if (!key.isValid() || connection.key != key) {
+                    continue;
+                }
+                try {
+                    if (key.isConnectable()) {
+                        connection.channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                        idle.add(connection);
+                    } else if (key.isWritable()) {
+                        write(connection);
+                    } else if (key.isReadable()) {
+                        read(connection, now);
+                    }
+                } catch (IOException e) {
+                    LOGGER.debug("Connection error", e);
+                    failed(connection, now);
+                }
+            }
+        }
+
+        private void connect(Connection connection, long now) {
+            try {
+                final SocketChannel channel = SocketChannel.open();
+                connection.channel = channel;
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (channel.connect(address)) {
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    idle.add(connection);
+                } else {
+                    connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Unable to connect to " + address, e);
+                failed(connection, now);
+            }
+        }
+
+        /**
+         * Opens again the connections whose retry delay is over.
+         *
+         * @param now Current instant.
+         */
+        private void reconnect(long now) {
+            while (!reconnecting.isEmpty() && reconnecting.peek().retryAt <= now) {
+                connect(reconnecting.poll(), now);
+            }
+        }
+
+        private void send(Connection connection, long intended, long now) {
+            connection.busy = true;
+            connection.intended = intended;
+            connection.sent = now;
+            connection.request = request.duplicate();
+            connection.parser.reset(headRequest);
+            try {
+                write(connection);
+            } catch (IOException e) {
+                LOGGER.debug("Unable to send the request", e);
+                failed(connection, now);
+            }
+        }
+
+        private void write(Connection connection) throws IOException {
+            connection.channel.write(connection.request);
+            connection.key.interestOps(connection.request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void read(Connection connection, long now) throws IOException {
+            ((Buffer) readBuffer).clear();
+            final int count = connection.channel.read(readBuffer);
+            if (count == -1) {
+                if (connection.busy && connection.parser.endOfStream()) {
+                    completed(connection, now);
+                } else if (connection.busy) {
+                    throw new IOException("Connection closed by the server before the end of the response");
+                } else {
+                    // Idle connection closed by the server.
+                    close(connection);
+                    connect(connection, now);
+                }
+                return;
+            }
+            if (now >= measureStart) {
+                bytesRead += count;
+            }
+            ((Buffer) readBuffer).flip();
+            if (!connection.busy) {
+                throw new IOException("Unexpected bytes received on an idle connection");
+            }
+            if (connection.parser.feed(readBuffer)) {
+                if (readBuffer.hasRemaining()) {
+                    throw new IOException("Unexpected bytes received after a response");
+                }
+                completed(connection, now);
+            }
+        }
+
+        private void completed(Connection connection, long now) {
+            connection.busy = false;
+            if (now >= measureStart) {
+                requests++;
+                latency.record(now - connection.intended);
+                serviceTime.record(now - connection.sent);
+                final Integer statusCode = connection.parser.getStatusCode();
+                final Long count = statusCounts.get(statusCode);
+                statusCounts.put(statusCode, count == null ? 1L : count + 1);
+            }
+            if (connection.parser.isKeepAlive() && connection.parser.isComplete()
+                    && connection.channel.isOpen()) {
+                idle.add(connection);
+            } else {
+                close(connection);
+                connect(connection, now);
+            }
+        }
+
+        /**
+         * Counts an error and opens the connection again after a delay.
+         *
+         * @param connection Connection in error.
+         * @param now Current instant.
+         */
+        private void failed(Connection connection, long now) {
+            if (now >= measureStart) {
+                errors++;
+            }
+            connection.busy = false;
+            idle.remove(connection);
+            close(connection);
+            connection.retryAt = now + TimeUnit.MILLISECONDS.toNanos(RECONNECT_DELAY);
+            reconnecting.add(connection);
+        }
+
+        private void close(Connection connection) {
+            if (connection.key != null) {
+                connection.key.cancel();
+                connection.key = null;
+            }
+            if (connection.channel != null) {
+                try {
+                    connection.channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Unable to close connection", e);
+                }
+                connection.channel = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,181 @@
+package com.github.raphcal.localserver.load;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line interface of {@link LoadGenerator}.
+ * <pre>
+ * java -cp localserver.jar com.github.raphcal.localserver.load.LoadGeneratorMain -c 32 -d 30s -R 5000 http://localhost:8787/
+ * </pre>
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public final class LoadGeneratorMain {
+
+    /**
+     * Description of the options accepted by {@link #parseArguments(String[])}.
+     */
+    public static final String OPTIONS
+            = "  -c, --connections N   number of connections (default " + LoadGenerator.DEFAULT_CONNECTIONS + ")\n"
+            + "  -d, --duration T      duration of the measurement, like 500ms, 30s or 2m (default 10s)\n"
+            + "  -w, --warmup T        duration of the warmup, not measured (default 0)\n"
+            + "  -R, --rate N          requests per second in open loop mode (default: closed loop)\n"
+            + "  -m, --method M        method of the requests (default GET)\n"
+            + "  -H, --header 'N: V'   adds a header to the requests\n"
+            + "  -b, --body TEXT       content of the requests\n";
+
+    private LoadGeneratorMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final LoadGenerator generator;
+        try {
+            generator = parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGeneratorMain [options] http://host:port/path\n" + OPTIONS);
+            System.exit(1);
+            return;
+        }
+        System.out.println(generator.run());
+    }
+
+    /**
+     * Creates a generator from the given command line arguments. The last
+     * argument is the URL of the requests.
+     *
+     * @param args Arguments, see {@link #OPTIONS}.
+     * @return A new generator.
+     * @throws IllegalArgumentException If an argument is invalid or missing.
+     */
+    public static LoadGenerator parseArguments(String[] args) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Missing URL");
+        }
+        final LoadGenerator generator = createGenerator(args[args.length - 1]);
+        for (int index = 0; index < args.length - 1; index++) {
+            final String option = args[index];
+            if (index + 1 == args.length - 1) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            final String value = args[++index];
+            switch (option) {
+                case "-c":
+                case "--connections":
+                    generator.setConnections(parseInt(option, value));
+                    break;
+                case "-d":
+                case "--duration":
+                    generator.setDuration(parseDuration(option, value));
+                    break;
+                case "-w":
+                case "--warmup":
+                    generator.setWarmup(parseDuration(option, value));
+                    break;
+                case "-R":
+                case "--rate":
+                    generator.setRate(parseRate(option, value));
+                    break;
+                case "-m":
+                case "--method":
+                    generator.setMethod(value);
+                    break;
+                case "-H":
+                case "--header":
+                    final int colon = value.indexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException("Invalid header: " + value);
+                    }
+                    generator.addHeader(value.substring(0, colon).trim(), value.substring(colon + 1).trim());
+                    break;
+                case "-b":
+                case "--body":
+                    generator.setBody(value.getBytes(StandardCharsets.UTF_8));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        return generator;
+    }
+
+    private static LoadGenerator createGenerator(String url) {
+        final URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid URL: " + url, e);
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            throw new IllegalArgumentException("Only http URLs are supported: " + url);
+        }
+        final LoadGenerator generator = new LoadGenerator(uri.getHost(), uri.getPort() != -1 ? uri.getPort() : 80);
+        final String path = uri.getRawPath() != null && !uri.getRawPath().isEmpty() ? uri.getRawPath() : "/";
+        generator.setTarget(uri.getRawQuery() != null ? path + '?' + uri.getRawQuery() : path);
+        return generator;
+    }
+
+    private static int parseInt(String option, String value) {
+        try {
+            final int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below.
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+    }
+
+    private static double parseRate(String option, String value) {
+        try {
+            final double result = Double.parseDouble(value);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below.
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+    }
+
+    /**
+     * Parses a duration like <code>500ms</code>, <code>30s</code> or
+     * <code>2m</code>. A duration without unit is in seconds.
+     *
+     * @param option Name of the option.
+     * @param value Value to parse.
+     * @return The duration in milliseconds.
+     */
+    private static long parseDuration(String option, String value) {
+        final TimeUnit unit;
+        final String amount;
+        if (value.endsWith("ms")) {
+            unit = TimeUnit.MILLISECONDS;
+            amount = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("s")) {
+            unit = TimeUnit.SECONDS;
+            amount = value.substring(0, value.length() - 1);
+        } else if (value.endsWith("m")) {
+            unit = TimeUnit.MINUTES;
+            amount = value.substring(0, value.length() - 1);
+        } else {
+            unit = TimeUnit.SECONDS;
+            amount = value;
+        }
+        try {
+            final long result = Long.parseLong(amount);
+            if (result >= 0) {
+                return unit.toMillis(result);
+            }
+        } catch (NumberFormatException e) {
+            // Handled below.
+        }
+        throw new IllegalArgumentException("Invalid duration for " + option + ": " + value);
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.github.raphcal.localserver.load;
+
+import com.github.raphcal.localserver.LatencyHistogram;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of a run of a {@link LoadGenerator}: throughput, latency
+ * percentiles, status codes and errors. Only the requests completed after the
+ * warmup are counted.
+ * <p>
+ * In open loop mode, the latency of a request is measured from the instant it
+ * should have been sent according to the rate, so that the time spent waiting
+ * for a free connection behind a slow response is not hidden (coordinated
+ * omission). The service time is measured from the instant the request was
+ * actually sent. In closed loop mode, both are the same.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+public final class LoadReport {
+
+    /**
+     * Percentiles given by {@link #toString()}.
+     */
+    private static final double[] PERCENTILES = {50, 75, 90, 99, 99.9, 99.99};
+
+    private final boolean openLoop;
+    private final double rate;
+    private final int connections;
+    private final long duration;
+    private final long requests;
+    private final long errors;
+    private final long bytesRead;
+    private final long backlog;
+    private final Map<Integer, Long> statusCounts;
+    private final LatencyHistogram latency;
+    private final LatencyHistogram serviceTime;
+
+    LoadReport(boolean openLoop, double rate, int connections, long duration, long requests, long errors, long bytesRead,
+            long backlog, Map<Integer, Long> statusCounts, LatencyHistogram latency, LatencyHistogram serviceTime) {
+        this.openLoop = openLoop;
+        this.rate = rate;
+        this.connections = connections;
+        this.duration = duration;
+        this.requests = requests;
+        this.errors = errors;
+        this.bytesRead = bytesRead;
+        this.backlog = backlog;
+        this.statusCounts = Collections.unmodifiableMap(new TreeMap<>(statusCounts));
+        this.latency = latency;
+        this.serviceTime = serviceTime;
+    }
+
+    /**
+     * Indicates if requests were sent at a constant rate.
+     *
+     * @return <code>true</code> in open loop mode, <code>false</code> in
+     * closed loop mode.
+     */
+    public boolean isOpenLoop() {
+        return openLoop;
+    }
+
+    /**
+     * Returns the target rate of an open loop run.
+     *
+     * @return Requests per second or 0 in closed loop mode.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * Returns the duration of the measurement, warmup excluded.
+     *
+     * @return Duration in nanoseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns the number of responses received.
+     *
+     * @return Number of complete responses.
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns the number of requests which failed because of a connection
+     * error or of an invalid response.
+     *
+     * @return Number of errors.
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the number of requests of an open loop run which were due but
+     * not sent when the run ended, because every connection was busy.
+     *
+     * @return Number of requests late at the end of the run.
+     */
+    public long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Returns the number of responses by status code.
+     *
+     * @return An unmodifiable map sorted by status code.
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        return statusCounts;
+    }
+
+    /**
+     * Returns the number of responses per second.
+     *
+     * @return The throughput.
+     */
+    public double getThroughput() {
+        return duration > 0 ? requests * (double) TimeUnit.SECONDS.toNanos(1) / duration : 0;
+    }
+
+    /**
+     * Returns the latencies, corrected for coordinated omission in open loop
+     * mode.
+     *
+     * @return Histogram of latencies in nanoseconds.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the time between the sending of each request and the end of its
+     * response.
+     *
+     * @return Histogram of durations in nanoseconds.
+     */
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(openLoop
+                ? String.format(Locale.ROOT, "Open loop at %.0f req/s", rate)
+                : "Closed loop")
+                .append(", ").append(connections).append(" connections, ")
+                .append(formatMillis(duration)).append(" ms\n");
+        builder.append(String.format(Locale.ROOT, "  Requests:    %d (%.1f req/s), %d errors, %d bytes read%n",
+                requests, getThroughput(), errors, bytesRead));
+        if (openLoop) {
+            builder.append("  Backlog:     ").append(backlog).append(" late requests at the end\n");
+        }
+        builder.append("  Status:     ");
+        for (final Map.Entry<Integer, Long> entry : statusCounts.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        builder.append('\n');
+        appendHistogram(builder, openLoop ? "Latency (corrected)" : "Latency", latency);
+        if (openLoop) {
+            appendHistogram(builder, "Service time", serviceTime);
+        }
+        return builder.toString();
+    }
+
+    private static void appendHistogram(StringBuilder builder, String title, LatencyHistogram histogram) {
+        builder.append("  ").append(title).append(" in ms:\n");
+        builder.append("    mean=").append(formatMillis((long) histogram.getMean()));
+        for (final double percentile : PERCENTILES) {
+            builder.append(' ').append(String.format(Locale.ROOT, "p%s", formatPercentile(percentile)))
+                    .append('=').append(formatMillis(histogram.getValueAtPercentile(percentile)));
+        }
+        builder.append(" max=").append(formatMillis(histogram.getMax())).append('\n');
+    }
+
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile)
+                ? Long.toString((long) percentile)
+                : Double.toString(percentile);
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+}
@@ -0,0 +1,341 @@
+package com.github.raphcal.localserver.load;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the responses of a connection as their bytes are received, without
+ * keeping their content in memory.
+ * <p>
+ * Only the status code and the headers giving the length of the content and
+ * the persistence of the connection are decoded. The content is skipped.
+ *
+ * @author Raphaël Calabro (ddaeke-github at yahoo.fr)
+ */
+final class ResponseParser {
+
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    private static enum State {
+        STATUS_LINE,
+        HEADERS,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_END,
+        TRAILERS,
+        UNTIL_CLOSE,
+        COMPLETE;
+    }
+
+    private State state = State.COMPLETE;
+
+    /**
+     * Line being read, without its line break.
+     */
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+
+    /**
+     * <code>true</code> if the response answers a HEAD request and has no
+     * content.
+     */
+    private boolean headRequest;
+
+    private int statusCode;
+    private boolean keepAlive;
+    private boolean chunked;
+    private long contentLength;
+
+    /**
+     * Number of bytes of the content or of the current chunk not read yet.
+     */
+    private long remaining;
+
+    /**
+     * Prepares the reading of the next response.
+     *
+     * @param headRequest <code>true</code> if the request is a HEAD request.
+     */
+    void reset(boolean headRequest) {
+        this.headRequest = headRequest;
+        this.state = State.STATUS_LINE;
+        this.lineLength = 0;
+        this.statusCode = 0;
+    }
+
+    /**
+     * Reads the given bytes. Reading stops at the end of the response.
+     *
+     * @param buffer Bytes received, in read mode.
+     * @return <code>true</code> if the response is complete.
+     * @throws IOException If the response is invalid.
+     */
+    boolean feed(ByteBuffer buffer) throws IOException {
+        while (state != State.COMPLETE && buffer.hasRemaining()) {
+            switch (state) {
+                case STATUS_LINE:
+                    if (readLine(buffer)) {
+                        parseStatusLine();
+                    }
+                    break;
+                case HEADERS:
+                    if (readLine(buffer)) {
+                        if (lineLength == 0) {
+                            endOfHeaders();
+                        } else {
+                            parseHeader();
+                        }
+                    }
+                    break;
+                case BODY:
+                case CHUNK_DATA:
+                    skip(buffer);
+                    if (remaining == 0) {
+                        state = state == State.BODY ? State.COMPLETE : State.CHUNK_END;
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    if (readLine(buffer)) {
+                        remaining = parseChunkSize();
+                        state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (readLine(buffer)) {
+                        if (lineLength != 0) {
+                            throw new IOException("Missing line break after a chunk");
+                        }
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    if (readLine(buffer)) {
+                        if (lineLength == 0) {
+                            state = State.COMPLETE;
+                        }
+                        lineLength = 0;
+                    }
+                    break;
+                case UNTIL_CLOSE:
+                    ((Buffer) buffer).position(buffer.limit());
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected state " + state);
+            }
+        }
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * Called when the server closed the connection.
+     *
+     * @return <code>true</code> if the end of the connection ends the
+     * response.
+     */
+    boolean endOfStream() {
+        if (state == State.UNTIL_CLOSE) {
+            state = State.COMPLETE;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * Indicates if a response is being read.
+     *
+     * @return <code>true</code> if the first byte of a response has been
+     * received and the response is not complete yet.
+     */
+    boolean isStarted() {
+        return state != State.COMPLETE && (state != State.STATUS_LINE || lineLength > 0);
+    }
+
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Indicates if the connection can be used for the next request.
+     *
+     * @return <code>false</code> if the server will close the connection.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Reads the bytes of a line until its line break.
+     *
+     * @param buffer Bytes received.
+     * @return <code>true</code> if the line is complete.
+     * @throws IOException If the line is too long.
+     */
+    private boolean readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            final byte b = buffer.get();
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                return true;
+            }
+            if (lineLength == MAX_LINE_LENGTH) {
+                throw new IOException("Response line too long");
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+
+    private void skip(ByteBuffer buffer) {
+        final int count = (int) Math.min(remaining, buffer.remaining());
+        ((Buffer) buffer).position(buffer.position() + count);
+        remaining -= count;
+    }
+
+    private void parseStatusLine() throws IOException {
+        if (lineLength == 0) {
+            // Empty lines before the status line are ignored.
+            return;
+        }
+        // HTTP/1.1 200 OK
+        if (lineLength < 12 || !startsWith("HTTP/1.") || line[8] != ' ') {
+            throw new IOException("Invalid status line: " + new String(line, 0, Math.min(lineLength, 64), "ISO-8859-1"));
+        }
+        statusCode = 0;
+        for (int index = 9; index < 12; index++) {
+            if (line[index] < '0' || line[index] > '9') {
+                throw new IOException("Invalid status code");
+            }
+            statusCode = statusCode * 10 + line[index] - '0';
+        }
+        keepAlive = line[7] == '1';
+        chunked = false;
+        contentLength = -1;
+        lineLength = 0;
+        state = State.HEADERS;
+    }
+
+    private void parseHeader() throws IOException {
+        if (isHeader("content-length")) {
+            contentLength = parseLong(valueStart("content-length".length()));
+        } else if (isHeader("transfer-encoding")) {
+            chunked = containsIgnoreCase(valueStart("transfer-encoding".length()), "chunked");
+        } else if (isHeader("connection")) {
+            final int start = valueStart("connection".length());
+            if (containsIgnoreCase(start, "close")) {
+                keepAlive = false;
+            } else if (containsIgnoreCase(start, "keep-alive")) {
+                keepAlive = true;
+            }
+        }
+        lineLength = 0;
+    }
+
+    private void endOfHeaders() {
+        lineLength = 0;
+        if (statusCode < 200) {
+            // Interim response, the final response follows.
+            state = State.STATUS_LINE;
+        } else if (headRequest || statusCode == 204 || statusCode == 304) {
+            state = State.COMPLETE;
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = contentLength == 0 ? State.COMPLETE : State.BODY;
+        } else {
+            keepAlive = false;
+            state = State.UNTIL_CLOSE;
+        }
+    }
+
+    private long parseChunkSize() throws IOException {
+        long size = 0;
+        int index = 0;
+        for (; index < lineLength; index++) {
+            final int digit = Character.digit(line[index], 16);
+            if (digit == -1) {
+                break;
+            }
+            size = size * 16 + digit;
+        }
+        if (index == 0) {
+            throw new IOException("Invalid chunk size");
+        }
+        lineLength = 0;
+        return size;
+    }
+
+    private boolean startsWith(String prefix) {
+        if (lineLength < prefix.length()) {
+            return false;
+        }
+        for (int index = 0; index < prefix.length(); index++) {
+            if (line[index] != prefix.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates if the current line is the header of the given name.
+     *
+     * @param name Name of the header, in lower case.
+     * @return <code>true</code> if the line starts with the name followed by
+     * a colon.
+     */
+    private boolean isHeader(String name) {
+        if (lineLength <= name.length() || line[name.length()] != ':') {
+            return false;
+        }
+        for (int index = 0; index < name.length(); index++) {
+            if (Character.toLowerCase((char) line[index]) != name.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int valueStart(int nameLength) {
+        int index = nameLength + 1;
+        while (index < lineLength && (line[index] == ' ' || line[index] == '\t')) {
+            index++;
+        }
+        return index;
+    }
+
+    private long parseLong(int start) throws IOException {
+        long value = 0;
+        int index = start;
+        for (; index < lineLength && line[index] >= '0' && line[index] <= '9'; index++) {
+            value = value * 10 + (line[index] - '0');
+        }
+        if (index == start) {
+            throw new IOException("Invalid Content-Length");
+        }
+        return value;
+    }
+
+    private boolean containsIgnoreCase(int start, String token) {
+        final int last = lineLength - token.length();
+        for (int offset = start; offset <= last; offset++) {
+            int index = 0;
+            while (index < token.length() && Character.toLowerCase((char) line[offset + index]) == token.charAt(index)) {
+                index++;
+            }
+            if (index == token.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}